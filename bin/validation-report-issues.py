@@ -1,6 +1,7 @@
 #!/usr/bin/env python3
 from collections import namedtuple
 import os
+from urllib.parse import unquote, urlparse
 import click
 import duckdb
 import pyarrow.dataset as ds
@@ -8,6 +9,80 @@ import pyarrow as pa
 import jinja2
 from markupsafe import Markup, escape
 
+ISSUES_QUERY = "SELECT filename, resource, unnest(issues) AS issue FROM report_tbl"
+
+# the output with --reference-output has a row per issue with the reference to the resource in the input
+REFERENCE_ISSUES_QUERY = """
+SELECT filename, source || '#' || "offset" AS resource, struct_pack(
+    level := level,
+    type := type,
+    message := message,
+    messageId := messageId,{params}
+    location := location,
+    line := line,
+    col := col) AS issue
+FROM report_tbl
+"""
+
+
+def reference_issues_query(names):
+    # the parameters of the messages are only in the output with --compact-issues
+    return REFERENCE_ISSUES_QUERY.format(params='\n    params := params,' if 'params' in names else '')
+
+
+# the max number of placeholders in the message templates of the compact issues
+MAX_MESSAGE_PARAMS = 10
+
+
+def format_message_sql(template, params):
+    # the same formatting as HL7MessageResolver.formatMessage(): replace the {n} placeholders in order
+    sql = template
+    for i in range(MAX_MESSAGE_PARAMS):
+        sql = f"replace({sql}, '{{{i}}}', coalesce({params}[{i + 1}], '{{{i}}}'))"
+    return sql
+
+
+def sql_literal(value):
+    return 'NULL' if value is None else "'" + value.replace("'", "''") + "'"
+
+
+def message_language(messages_tbl, language):
+    # the language the output was validated with, which may be omitted if the dictionary has a single language
+    if language is not None:
+        return language
+    languages = [lang for lang, in duckdb.sql("SELECT DISTINCT language FROM messages_tbl").fetchall()]
+    if len(languages) > 1:
+        raise click.UsageError(f"The message dictionary has multiple languages: {languages}, select one with --language")
+    return languages[0] if languages else None
+
+
+def compact_issues_query(issues_query, language):
+    # the output with --compact-issues, formatted with the message templates (in the language) from `messages_tbl`
+    return """
+SELECT filename, resource, struct_pack(
+    level := issue.level,
+    type := issue.type,
+    message := coalesce(issue.message, """ + format_message_sql('m.template', 'issue.params') + """),
+    messageId := issue.messageId,
+    location := issue.location,
+    line := issue.line,
+    col := issue.col) AS issue
+FROM (""" + issues_query + """)
+LEFT JOIN messages_tbl AS m ON m.messageId = issue.messageId AND m.language IS NOT DISTINCT FROM """ + sql_literal(language) + """
+"""
+
+
+def fetch_resource(reference):
+    # reads the resource at the byte offset of the (local) source file
+    source, offset = reference.rsplit('#', 1)
+    path = unquote(urlparse(source).path) if source.startswith('file:') else source
+    if not os.path.isfile(path):
+        return reference
+    with open(path, 'rb') as f:
+        f.seek(int(offset))
+        return f.readline().decode('utf-8').rstrip('\r\n')
+
+
 REPORT_QUERY = """
 SELECT
     issue.level AS level,
@@ -20,7 +95,7 @@ SELECT
     ANY_VALUE(issue.col) AS col,
     CASE WHEN level='information' THEN 1 WHEN level='warning' then 2 WHEN level='error' then 3 WHEN level='fatal' THEN 4 ELSE 0 END AS level_order,
     issue.messageId AS message_id
-FROM (SELECT filename, resource, unnest(issues) AS issue FROM report_tbl)
+FROM ({issues_query})
 WHERE  level_order >= {min_level_order} {filter_clause}
 GROUP BY level, type, message_id, filename
 ORDER BY 
@@ -101,7 +176,7 @@ REPORT_TEMPLATE = """<!DOCTYPE html>
 
 SUMMARY_QUERY = """
 PIVOT (SELECT filename, issue.level as level
-    FROM (SELECT filename, unnest(issues) AS issue FROM report_tbl))
+    FROM (SELECT filename, issue FROM ({issues_query})))
     ON level in ('fatal', 'error', 'warning', 'information')
     ORDER BY filename
 """
@@ -119,19 +194,32 @@ def zero_as_dash(value):
               help='Minimum level to include in the report. Information=1, Warning=2, Error=3, Fatal=4. Default=3')
 @click.option('--exclude-message', multiple=True, help='Exclude messages matching the given SQL LIKE pattern')
 @click.option('--limit', help='The max number of issues to include in the report. Default=-1', default=None, type=int)
-def validation_report(input_dir, output_file, min_level, exclude_message, partition_by_dir, limit):
+@click.option('--language', help='The language of the compact issues, if the message dictionary has multiple languages.',
+              default=None)
+def validation_report(input_dir, output_file, min_level, exclude_message, partition_by_dir, limit, language):
     click.echo(f"Generating issue validation report from: {input_dir} to: {output_file}, with min level: {min_level}")
     partitioning = ds.DirectoryPartitioning(pa.schema([('filename',
                                                         pa.string())])) if partition_by_dir else None
     report_tbl = ds.dataset(input_dir, format='parquet', partitioning=partitioning)
 
+    reference_layout = 'offset' in report_tbl.schema.names
+    issues_query = reference_issues_query(report_tbl.schema.names) if reference_layout else ISSUES_QUERY
+    messages_dir = input_dir.rstrip('/') + '_messages'
+    if os.path.isdir(messages_dir):
+        click.echo(f"Formatting the compact issues with the message templates from: {messages_dir}")
+        messages_tbl = ds.dataset(messages_dir, format='parquet')
+        issues_query = compact_issues_query(issues_query, message_language(messages_tbl, language))
+
     message_filters = ' AND '.join([f"message NOT LIKE '{m}'" for m in exclude_message])
     filter_clause = f" AND {message_filters}" if message_filters else ""
     click.echo(f"Filtering out messages: {filter_clause}")
 
-    issues_tbl = duckdb.sql(REPORT_QUERY.format(min_level_order=min_level, filter_clause=filter_clause))
+    issues_tbl = duckdb.sql(REPORT_QUERY.format(issues_query=issues_query, min_level_order=min_level, filter_clause=filter_clause))
     IssueRow = namedtuple('IssuRow', issues_tbl.columns)
     issue_rows = list(map(lambda r: IssueRow(*r), issues_tbl.fetchmany(size=limit) if limit else issues_tbl.fetchall()))
+    if reference_layout:
+        # only the examples in the report are fetched from the input
+        issue_rows = [r._replace(example=fetch_resource(r.example)) for r in issue_rows]
     template = jinja2.Template(REPORT_TEMPLATE, autoescape=True, trim_blocks=True, lstrip_blocks=True)
     click.echo(f"Writing report to: {output_file}")
     with open(output_file, 'w') as f:
@@ -1,6 +1,7 @@
 #!/usr/bin/env python3
 from collections import namedtuple
 import os
+from urllib.parse import unquote, urlparse
 import click
 import duckdb
 import pyarrow.dataset as ds
@@ -8,6 +9,80 @@ import pyarrow as pa
 import jinja2
 from markupsafe import Markup, escape
 
+ISSUES_QUERY = "SELECT filename, resource, unnest(issues) AS issue FROM report_tbl"
+
+# the output with --reference-output has a row per issue with the reference to the resource in the input
+REFERENCE_ISSUES_QUERY = """
+SELECT filename, source || '#' || "offset" AS resource, struct_pack(
+    level := level,
+    type := type,
+    message := message,
+    messageId := messageId,{params}
+    location := location,
+    line := line,
+    col := col) AS issue
+FROM report_tbl
+"""
+
+
+def reference_issues_query(names):
+    # the parameters of the messages are only in the output with --compact-issues
+    return REFERENCE_ISSUES_QUERY.format(params='\n    params := params,' if 'params' in names else '')
+
+
+# the max number of placeholders in the message templates of the compact issues
+MAX_MESSAGE_PARAMS = 10
+
+
+def format_message_sql(template, params):
+    # the same formatting as HL7MessageResolver.formatMessage(): replace the {n} placeholders in order
+    sql = template
+    for i in range(MAX_MESSAGE_PARAMS):
+        sql = f"replace({sql}, '{{{i}}}', coalesce({params}[{i + 1}], '{{{i}}}'))"
+    return sql
+
+
+def sql_literal(value):
+    return 'NULL' if value is None else "'" + value.replace("'", "''") + "'"
+
+
+def message_language(messages_tbl, language):
+    # the language the output was validated with, which may be omitted if the dictionary has a single language
+    if language is not None:
+        return language
+    languages = [lang for lang, in duckdb.sql("SELECT DISTINCT language FROM messages_tbl").fetchall()]
+    if len(languages) > 1:
+        raise click.UsageError(f"The message dictionary has multiple languages: {languages}, select one with --language")
+    return languages[0] if languages else None
+
+
+def compact_issues_query(issues_query, language):
+    # the output with --compact-issues, formatted with the message templates (in the language) from `messages_tbl`
+    return """
+SELECT filename, resource, struct_pack(
+    level := issue.level,
+    type := issue.type,
+    message := coalesce(issue.message, """ + format_message_sql('m.template', 'issue.params') + """),
+    messageId := issue.messageId,
+    location := issue.location,
+    line := issue.line,
+    col := issue.col) AS issue
+FROM (""" + issues_query + """)
+LEFT JOIN messages_tbl AS m ON m.messageId = issue.messageId AND m.language IS NOT DISTINCT FROM """ + sql_literal(language) + """
+"""
+
+
+def fetch_resource(reference):
+    # reads the resource at the byte offset of the (local) source file
+    source, offset = reference.rsplit('#', 1)
+    path = unquote(urlparse(source).path) if source.startswith('file:') else source
+    if not os.path.isfile(path):
+        return reference
+    with open(path, 'rb') as f:
+        f.seek(int(offset))
+        return f.readline().decode('utf-8').rstrip('\r\n')
+
+
 REPORT_QUERY = """
 SELECT
     issue.level AS level,
@@ -18,7 +93,7 @@ SELECT
     ANY_VALUE(issue.location) AS location,
     ANY_VALUE(issue.col) AS col,
     CASE WHEN level='information' THEN 1 WHEN level='warning' then 2 WHEN level='error' then 3 WHEN level='fatal' THEN 4 ELSE 0 END AS level_order
-FROM (SELECT resource, unnest(issues) AS issue FROM report_tbl WHERE filename = '{filename}')
+FROM (SELECT resource, issue FROM ({issues_query}) WHERE filename = '{filename}')
 WHERE  level_order >= {min_level_order}
 GROUP BY level, type, message
 ORDER BY 
@@ -92,7 +167,7 @@ REPORT_TEMPLATE = """<!DOCTYPE html>
 
 SUMMARY_QUERY = """
 PIVOT (SELECT filename, issue.level as level
-    FROM (SELECT filename, unnest(issues) AS issue FROM report_tbl))
+    FROM (SELECT filename, issue FROM ({issues_query})))
     ON level in ('fatal', 'error', 'warning', 'information')
     ORDER BY filename
 """
@@ -169,12 +244,22 @@ SUMMARY_TEMPLATE = """<!DOCTYPE html>
 @click.option('--min-level', default=3,
               help='Minimum level to include in the report. Information=1, Warning=2, Error=3, Fatal=4. Default=3')
 @click.option('--partition-by-dir', help='Partition the input directory by directory. Default=False', is_flag=True)
-def validation_report(input_dir, output_dir, min_level, partition_by_dir):
+@click.option('--language', help='The language of the compact issues, if the message dictionary has multiple languages.',
+              default=None)
+def validation_report(input_dir, output_dir, min_level, partition_by_dir, language):
     click.echo(f"Generating validation report from: {input_dir} to: {output_dir}, with min level: {min_level}")
     partitioning = ds.DirectoryPartitioning(pa.schema([('filename',
                                                         pa.string())])) if partition_by_dir else None
     report_tbl = ds.dataset(input_dir, format='parquet', partitioning=partitioning)
-    summary_df = duckdb.sql(SUMMARY_QUERY)
+
+    reference_layout = 'offset' in report_tbl.schema.names
+    issues_query = reference_issues_query(report_tbl.schema.names) if reference_layout else ISSUES_QUERY
+    messages_dir = input_dir.rstrip('/') + '_messages'
+    if os.path.isdir(messages_dir):
+        click.echo(f"Formatting the compact issues with the message templates from: {messages_dir}")
+        messages_tbl = ds.dataset(messages_dir, format='parquet')
+        issues_query = compact_issues_query(issues_query, message_language(messages_tbl, language))
+    summary_df = duckdb.sql(SUMMARY_QUERY.format(issues_query=issues_query))
     SummaryRow = namedtuple('SummaryRow', summary_df.columns)
     summary_rows = list(map(lambda r: SummaryRow(*r), summary_df.fetchall()))
     summary_template = jinja2.Template(SUMMARY_TEMPLATE, autoescape=True, trim_blocks=True, lstrip_blocks=True)
@@ -186,9 +271,12 @@ def validation_report(input_dir, output_dir, min_level, partition_by_dir):
     filenames = [fr for fr, in duckdb.sql("SELECT DISTINCT filename FROM report_tbl ORDER BY  filename").fetchall()]
     for filename in filenames:
         click.echo(f"Generating report for: {filename}")
-        issues_tbl = duckdb.sql(REPORT_QUERY.format(filename=filename, min_level_order=min_level))
+        issues_tbl = duckdb.sql(REPORT_QUERY.format(issues_query=issues_query, filename=filename, min_level_order=min_level))
         issues_headings = issues_tbl.columns[0:6]
         issues = issues_tbl.fetchall()
+        if reference_layout:
+            # only the examples in the report are fetched from the input
+            issues = [issue[:4] + (fetch_resource(issue[4]),) + issue[5:] for issue in issues]
         template = jinja2.Template(REPORT_TEMPLATE, autoescape=True, trim_blocks=True, lstrip_blocks=True)
         file_report = os.path.join(output_dir, f'{filename}.html')
         click.echo(f"Writing report to: {file_report}")
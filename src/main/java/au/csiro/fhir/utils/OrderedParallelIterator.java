@@ -0,0 +1,130 @@
+package au.csiro.fhir.utils;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Iterator that maps the elements of the input iterator in parallel with a bounded pool of threads,
+ * preserving the order of the input.
+ * <p>
+ * At most {@code maxInFlight} elements are taken from the input ahead of the consumer, which bounds
+ * the memory used regardless of the size of the input. The pool is shut down when the input is exhausted
+ * or when the iterator is closed, whichever comes first.
+ *
+ * @param <T> the type of the input elements
+ * @param <R> the type of the mapped elements
+ */
+public class OrderedParallelIterator<T, R> implements Iterator<R>, Closeable {
+
+    @Nonnull
+    private final Iterator<T> input;
+
+    @Nonnull
+    private final Function<T, R> mapper;
+
+    @Nonnull
+    private final ExecutorService executor;
+
+    private final int maxInFlight;
+
+    @Nonnull
+    private final Deque<Future<R>> inFlight = new ArrayDeque<>();
+
+    private OrderedParallelIterator(@Nonnull final Iterator<T> input, @Nonnull final Function<T, R> mapper,
+                                    @Nonnull final ExecutorService executor, final int maxInFlight) {
+        this.input = input;
+        this.mapper = mapper;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Creates the iterator with its own pool of daemon threads.
+     *
+     * @param input the input iterator
+     * @param mapper the function to apply to each element (called concurrently)
+     * @param threads the number of threads in the pool
+     * @param <T> the type of the input elements
+     * @param <R> the type of the mapped elements
+     * @return the ordered parallel iterator
+     */
+    @Nonnull
+    public static <T, R> OrderedParallelIterator<T, R> of(@Nonnull final Iterator<T> input,
+                                                         @Nonnull final Function<T, R> mapper,
+                                                         final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+        }
+        return new OrderedParallelIterator<>(input, mapper,
+                Executors.newFixedThreadPool(threads, daemonThreadFactory()), 2 * threads);
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        fill();
+        if (inFlight.isEmpty()) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized R next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final Future<R> head = inFlight.poll();
+        try {
+            return head.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Interrupted while waiting for the result", ex);
+        } catch (final ExecutionException ex) {
+            close();
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Cancels all the pending elements and shuts down the pool.
+     */
+    @Override
+    public synchronized void close() {
+        inFlight.forEach(f -> f.cancel(true));
+        inFlight.clear();
+        executor.shutdownNow();
+    }
+
+    private void fill() {
+        while (inFlight.size() < maxInFlight && !executor.isShutdown() && input.hasNext()) {
+            final T element = input.next();
+            inFlight.add(executor.submit(() -> mapper.apply(element)));
+        }
+    }
+
+    @Nonnull
+    private static ThreadFactory daemonThreadFactory() {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, "ordered-parallel-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
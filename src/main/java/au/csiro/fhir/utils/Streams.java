@@ -10,7 +10,10 @@ package au.csiro.fhir.utils;
 import lombok.experimental.UtilityClass;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -35,4 +38,37 @@ public  class Streams {
     return StreamSupport
         .stream(iterable.spliterator(), false);
   }
+
+  /**
+   * Groups the elements of the iterator into consecutive batches.
+   *
+   * @param iterator an iterator
+   * @param batchSize the maximum size of a batch
+   * @param <T> the type (of elements)
+   * @return the iterator of batches, all but the last one of size {@code batchSize}
+   */
+  @Nonnull
+  public static <T> Iterator<List<T>> batchesOf(@Nonnull final Iterator<T> iterator, final int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("The batch size must be positive: " + batchSize);
+    }
+    return new Iterator<>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public List<T> next() {
+        if (!iterator.hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final List<T> batch = new ArrayList<>(batchSize);
+        while (batch.size() < batchSize && iterator.hasNext()) {
+          batch.add(iterator.next());
+        }
+        return batch;
+      }
+    };
+  }
 }
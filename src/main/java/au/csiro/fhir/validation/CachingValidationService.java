@@ -0,0 +1,120 @@
+package au.csiro.fhir.validation;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * Validation service that returns the results cached in a {@link ValidationResultCache} for
+ * resources with the same content and delegates the validation of other resources.
+ * The {@link ValidationResult#hasIncompleteIssues() incomplete} results (e.g. after a timeout) are not cached,
+ * so that the resources are validated again next time.
+ * <p>
+ * The number of hits and misses are counted per instance.
+ */
+public class CachingValidationService implements ValidationService {
+
+    @Nonnull
+    private final ValidationService delegate;
+
+    @Nonnull
+    private final ValidationResultCache cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CachingValidationService(@Nonnull final ValidationService delegate, @Nonnull final ValidationResultCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    @Nonnull
+    public ValidationResult validateJson(@Nonnull final byte[] data, final int offset, final int length) {
+        return validateBatch(List.of(Arrays.copyOfRange(data, offset, offset + length))).get(0);
+    }
+
+    @Override
+    @Nonnull
+    public List<ValidationResult> validateBatch(@Nonnull final List<byte[]> batch) {
+        return validateBatch(batch, index -> {
+        });
+    }
+
+    /**
+     * Validates the batch, with the resources not found in the cache validated by the delegate in a single batch
+     * (each of the resources repeated in the batch only once).
+     *
+     * @param batch the resources to validate
+     * @param delegatedIndexes receives the index in the batch of each resource in the batch passed to the delegate,
+     * in the order of that batch
+     * @return the validation results in the same order as the resources
+     */
+    @Nonnull
+    public List<ValidationResult> validateBatch(@Nonnull final List<byte[]> batch, @Nonnull final IntConsumer delegatedIndexes) {
+        final ValidationResult[] results = new ValidationResult[batch.size()];
+        final ValidationResultCache.Key[] keys = new ValidationResultCache.Key[batch.size()];
+        // the resources repeated within the batch are only validated once
+        final Map<ByteBuffer, Integer> missedIndexes = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            keys[i] = cache.keyOf(batch.get(i));
+            results[i] = cache.get(keys[i]);
+            if (results[i] == null) {
+                missedIndexes.putIfAbsent(keys[i].getLookupHash(), i);
+            }
+        }
+        misses.addAndGet(missedIndexes.size());
+        hits.addAndGet(batch.size() - missedIndexes.size());
+        if (!missedIndexes.isEmpty()) {
+            final List<byte[]> missed = new ArrayList<>(missedIndexes.size());
+            missedIndexes.values().forEach(i -> {
+                missed.add(batch.get(i));
+                delegatedIndexes.accept(i);
+            });
+            final Iterator<ValidationResult> validated = delegate.validateBatch(missed).iterator();
+            final Map<ByteBuffer, ValidationResult> incompleteResults = new HashMap<>();
+            missedIndexes.forEach((lookupHash, i) -> {
+                results[i] = validated.next();
+                if (results[i].hasIncompleteIssues()) {
+                    incompleteResults.put(lookupHash, results[i]);
+                } else {
+                    cache.put(keys[i], results[i]);
+                }
+            });
+            for (int i = 0; i < batch.size(); i++) {
+                if (results[i] == null) {
+                    final ValidationResult cached = cache.get(keys[i]);
+                    // the repeated resources share the incomplete result rather than being validated again
+                    final ValidationResult incomplete = incompleteResults.get(keys[i].getLookupHash());
+                    // unless already evicted from a very small cache (and then not reported as delegated)
+                    results[i] = cached != null ? cached
+                            : incomplete != null ? incomplete
+                            : delegate.validateJson(batch.get(i));
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * @return the number of resources with results from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of resources validated by the delegate
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
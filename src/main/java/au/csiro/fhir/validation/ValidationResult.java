@@ -69,13 +69,24 @@ public class ValidationResult implements Serializable {
         @Nonnull
         String type;
 
-        @Nonnull
+        /**
+         * The message, or null for the compact issues, which can be formatted from the template of the message id
+         * with the parameters.
+         */
+        @Nullable
         String message;
 
         @Nullable
         @Builder.Default
         String messageId = null;
 
+        /**
+         * The values of the placeholders of the message template (only for the compact issues).
+         */
+        @Nullable
+        @Builder.Default
+        List<String> params = null;
+
         @Nullable
         @Builder.Default
         String location = null;
@@ -92,6 +103,45 @@ public class ValidationResult implements Serializable {
     @Nonnull
     List<Issue> issues;
 
+    /**
+     * The type of the issue reported for the resources whose validation was abandoned after a timeout.
+     */
+    public static final String TIMEOUT_TYPE = "timeout";
+
+    /**
+     * Checks if the issue reports an incomplete validation, i.e. abandoned after the timeout
+     * (see {@link #fromTimeout(long)}) or failed with an exception (see {@link #fromException(Exception)}).
+     * The issues of the exceptions are recognized by their type, which is the name of the exception class,
+     * unlike the (lower case) issue type codes reported by the validator.
+     *
+     * @param issue the issue
+     * @return true if the issue reports an incomplete validation
+     */
+    public static boolean isIncomplete(@Nonnull final Issue issue) {
+        return TIMEOUT_TYPE.equals(issue.getType())
+                || (IssueLevel.FATAL.toCode().equals(issue.getLevel()) && issue.getMessageId() == null
+                && issue.getType() != null && !issue.getType().isEmpty() && Character.isUpperCase(issue.getType().charAt(0)));
+    }
+
+    /**
+     * Checks if the result has any {@link #isIncomplete(Issue) incomplete} issues, so that the validation of the resource
+     * may have a different result next time, and the result should not be reused.
+     *
+     * @return true if the result has any incomplete issues
+     */
+    public boolean hasIncompleteIssues() {
+        return issues.stream().anyMatch(ValidationResult::isIncomplete);
+    }
+
+    @Nonnull
+    public static ValidationResult fromTimeout(final long timeoutMillis) {
+        return new ValidationResult(List.of(Issue.builder()
+                .level(IssueLevel.FATAL.toCode())
+                .type(TIMEOUT_TYPE)
+                .message("Validation abandoned after the timeout of " + timeoutMillis + " ms")
+                .build()));
+    }
+
     @Nonnull
     public static ValidationResult fromException(@Nonnull final Exception ex) {
         return new ValidationResult(List.of(Issue.builder()
@@ -0,0 +1,193 @@
+package au.csiro.fhir.validation;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Bounded (LRU) cache of validation results keyed by the content hash of the resources.
+ * <p>
+ * The caches are shared by all the threads of a JVM and are identified by a name, which should include
+ * everything that affects the validation results (e.g. the fingerprint of the validation configuration).
+ * <p>
+ * With normalization, the {@code id} and {@code meta.lastUpdated} elements (if they are valid) are excluded
+ * from the hash, so that resources that only differ in these elements share the cached result. As the line
+ * and column numbers of the issues may not apply to such resources, they are removed from the results of hits
+ * on resources that are not byte-identical to the cached one.
+ */
+@Slf4j
+public class ValidationResultCache {
+
+    private static final Map<String, ValidationResultCache> CACHES = new ConcurrentHashMap<>();
+    // duplicate properties and decimal precision are significant for validation, so they must be preserved
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION)
+            .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+            .setNodeFactory(JsonNodeFactory.withExactBigDecimals(true));
+
+    private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9\\-.]{1,64}");
+    private static final Pattern INSTANT_PATTERN = Pattern.compile(
+            "([0-9]([0-9]([0-9][1-9]|[1-9]0)|[1-9]00)|[1-9]000)-(0[1-9]|1[0-2])-(0[1-9]|[1-2][0-9]|3[0-1])" +
+                    "T([01][0-9]|2[0-3]):[0-5][0-9]:([0-5][0-9]|60)(\\.[0-9]{1,9})?(Z|([+\\-])((0[0-9]|1[0-3]):[0-5][0-9]|14:00))");
+
+    @Value
+    private static class Entry {
+        @Nonnull
+        ByteBuffer contentHash;
+        @Nonnull
+        ValidationResult result;
+    }
+
+    private final int maxSize;
+    private final boolean normalize;
+    private final Map<ByteBuffer, Entry> entries;
+
+    private ValidationResultCache(final int maxSize, final boolean normalize) {
+        this.maxSize = maxSize;
+        this.normalize = normalize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, Entry> eldest) {
+                return size() > ValidationResultCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets the JVM wide cache with the given name, creating it if needed.
+     *
+     * @param name the name of the cache
+     * @param maxSize the maximum number of results in the cache
+     * @param normalize if true, the resource ids and last updated timestamps are ignored
+     * @return the cache
+     */
+    @Nonnull
+    public static ValidationResultCache getOrCreate(@Nonnull final String name, final int maxSize, final boolean normalize) {
+        return CACHES.computeIfAbsent(name + "|" + maxSize + "|" + normalize, key -> {
+            log.debug("Creating validation result cache: {} with max size: {}", key, maxSize);
+            return new ValidationResultCache(maxSize, normalize);
+        });
+    }
+
+    /**
+     * The key of a resource in the cache.
+     */
+    @Value
+    public static class Key {
+        /**
+         * The hash of the (normalized) resource used to look up the results.
+         */
+        @Nonnull
+        ByteBuffer lookupHash;
+        /**
+         * The hash of the exact content of the resource.
+         */
+        @Nonnull
+        ByteBuffer contentHash;
+    }
+
+    /**
+     * Computes the cache key for the resource.
+     *
+     * @param data the UTF-8 encoded JSON resource
+     * @return the key
+     */
+    @Nonnull
+    public Key keyOf(@Nonnull final byte[] data) {
+        final ByteBuffer contentHash = hash(data);
+        if (normalize) {
+            final byte[] normalized = normalized(data);
+            if (normalized != null) {
+                return new Key(hash(normalized), contentHash);
+            }
+        }
+        return new Key(contentHash, contentHash);
+    }
+
+    /**
+     * Gets the cached result for the resource.
+     *
+     * @param key the key of the resource
+     * @return the cached result or null if not cached
+     */
+    @Nullable
+    public ValidationResult get(@Nonnull final Key key) {
+        final Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key.getLookupHash());
+        }
+        if (entry == null) {
+            return null;
+        }
+        return entry.getContentHash().equals(key.getContentHash())
+                ? entry.getResult()
+                : withoutPositions(entry.getResult());
+    }
+
+    /**
+     * Adds the result for the resource to the cache.
+     *
+     * @param key the key of the resource
+     * @param result the validation result
+     */
+    public void put(@Nonnull final Key key, @Nonnull final ValidationResult result) {
+        synchronized (entries) {
+            entries.put(key.getLookupHash(), new Entry(key.getContentHash(), result));
+        }
+    }
+
+    @Nonnull
+    private static ValidationResult withoutPositions(@Nonnull final ValidationResult result) {
+        return new ValidationResult(result.getIssues().stream()
+                .map(issue -> issue.toBuilder().line(null).col(null).build())
+                .collect(Collectors.toList()));
+    }
+
+    @Nullable
+    private static byte[] normalized(@Nonnull final byte[] data) {
+        try {
+            final JsonNode resource = OBJECT_MAPPER.readTree(data);
+            if (!(resource instanceof ObjectNode)) {
+                return null;
+            }
+            final ObjectNode object = (ObjectNode) resource;
+            if (isTextMatching(object.get("id"), ID_PATTERN)) {
+                object.remove("id");
+            }
+            final JsonNode meta = object.get("meta");
+            if (meta instanceof ObjectNode && isTextMatching(meta.get("lastUpdated"), INSTANT_PATTERN)) {
+                ((ObjectNode) meta).remove("lastUpdated");
+            }
+            return OBJECT_MAPPER.writeValueAsBytes(object);
+        } catch (final Exception ex) {
+            // not a valid JSON so cannot be normalized
+            return null;
+        }
+    }
+
+    private static boolean isTextMatching(@Nullable final JsonNode node, @Nonnull final Pattern pattern) {
+        return node != null && node.isTextual() && pattern.matcher(node.textValue()).matches();
+    }
+
+    @Nonnull
+    @SneakyThrows
+    private static ByteBuffer hash(@Nonnull final byte[] data) {
+        return ByteBuffer.wrap(MessageDigest.getInstance("MD5").digest(data));
+    }
+}
@@ -1,9 +1,54 @@
 package au.csiro.fhir.validation;
 
 import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.stream.Collectors;
 
 public interface ValidationService {
 
+    /**
+     * Validates the resource encoded as UTF-8 JSON in a slice of the byte array.
+     *
+     * @param data the array with the resource
+     * @param offset the offset of the resource in the array
+     * @param length the length of the resource in bytes
+     * @return the validation result
+     */
     @Nonnull
-    ValidationResult validateJson(@Nonnull final byte[] data);
+    ValidationResult validateJson(@Nonnull final byte[] data, int offset, int length);
+
+    @Nonnull
+    default ValidationResult validateJson(@Nonnull final byte[] data) {
+        return validateJson(data, 0, data.length);
+    }
+
+    /**
+     * Validates the resource encoded as UTF-8 JSON in the remaining bytes of the buffer.
+     * The bytes are only copied if the buffer is not backed by an array.
+     *
+     * @param data the buffer with the resource
+     * @return the validation result
+     */
+    @Nonnull
+    default ValidationResult validateJson(@Nonnull final ByteBuffer data) {
+        if (data.hasArray()) {
+            return validateJson(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        final byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return validateJson(bytes);
+    }
+
+    /**
+     * Validates a batch of resources encoded as UTF-8 JSON. Implementations can amortize the per-resource
+     * setup across the batch.
+     *
+     * @param batch the resources to validate
+     * @return the validation results in the same order as the resources
+     */
+    @Nonnull
+    default List<ValidationResult> validateBatch(@Nonnull final List<byte[]> batch) {
+        return batch.stream().map(this::validateJson).collect(Collectors.toList());
+    }
 }
@@ -0,0 +1,475 @@
+package au.csiro.fhir.validation.cli;
+
+import au.csiro.fhir.utils.Streams;
+import au.csiro.fhir.validation.ValidationResult;
+import au.csiro.fhir.validation.cli.ValidateApp.ResourceWithIssues;
+import au.csiro.fhir.validation.hl7.HL7MessageResolver;
+import au.csiro.fhir.validation.hl7.HL7PhaseTimes;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import lombok.SneakyThrows;
+import lombok.Value;
+import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.function.FlatMapGroupsFunction;
+import org.apache.spark.api.java.function.MapFunction;
+import org.apache.spark.api.java.function.MapPartitionsFunction;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.catalyst.encoders.RowEncoder;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Splits the large Bundles into units that are validated independently (and possibly in parallel on different
+ * executors), and merges the results of the units back into the results for the Bundles.
+ * <p>
+ * A Bundle is split into its entry resources (each validated as a standalone resource) and a shell, which is
+ * the Bundle with the entry resources replaced with stubs that only have the `resourceType`, `id`
+ * and `meta.versionId` of the resources. The shell is validated for the Bundle level rules, e.g. the uniqueness
+ * of the `fullUrl`s or the consistency of the `request`s. The internal (`urn:`) references of the entry resources,
+ * which cannot be resolved in the standalone resources, are checked when the results are merged.
+ * <p>
+ * The locations of the issues of the entry resources are mapped back to the Bundle, in the form reported by the
+ * validator for the Bundle (e.g. {@code Bundle.entry[1].resource/*Observation/o1*&#47;.subject}), and so are the
+ * columns of the issues of the resources on the first line of the Bundle (i.e. of the ndjson Bundles).
+ * The results are close but not identical to those of validating the whole Bundle, e.g. the validator does not
+ * check the profiles of the targets of the internal references.
+ */
+@Value
+class BundleFanOut implements Serializable {
+
+    static final String BUNDLE_COLUMN = "bundle";
+    static final String ENTRY_COLUMN = "entry";
+
+    /**
+     * The entry index of the shell of a split Bundle.
+     */
+    static final int SHELL_ENTRY = -1;
+
+    static final String NOT_LOCAL_MESSAGE_ID = "BUNDLE_BUNDLE_NOT_LOCAL";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * The location of the issues of the entry resources in the shell, which are reported for the entry units instead.
+     */
+    private static final String ENTRY_RESOURCE_LOCATION = "^Bundle\\.entry\\[\\d+]\\.resource.*";
+
+    /**
+     * The minimum number of entries of the Bundles to split.
+     */
+    int minEntries;
+
+    /**
+     * The template of the message for the unresolved internal references (in the language of the validation).
+     */
+    @Nonnull
+    String notLocalTemplate;
+
+    @Nullable
+    String language;
+
+    boolean compactIssues;
+
+    /**
+     * The position and the properties of an entry resource in a Bundle.
+     */
+    @Value
+    static class Entry {
+        int start;
+        int end;
+        @Nullable
+        String fullUrl;
+        @Nullable
+        String resourceType;
+        @Nullable
+        String id;
+        @Nullable
+        String versionId;
+        /**
+         * The internal references of the resource, as pairs of the path of the reference element and the reference.
+         */
+        @Nonnull
+        List<String[]> references;
+
+        boolean hasResource() {
+            return start >= 0;
+        }
+
+        /**
+         * The location of the resource in the Bundle, in the form reported by the validator.
+         */
+        @Nonnull
+        String location(final int index) {
+            return "Bundle.entry[" + index + "].resource/*" + resourceType + "/" + id + "*/";
+        }
+
+        @Nonnull
+        String stub() {
+            final JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+            final StringBuilder stub = new StringBuilder("{\"resourceType\":\"").append(encoder.quoteAsString(resourceType)).append('"');
+            if (id != null) {
+                stub.append(",\"id\":\"").append(encoder.quoteAsString(id)).append('"');
+            }
+            if (versionId != null) {
+                stub.append(",\"meta\":{\"versionId\":\"").append(encoder.quoteAsString(versionId)).append("\"}");
+            }
+            return stub.append('}').toString();
+        }
+    }
+
+    /**
+     * Creates the fan-out for the validation in the given language.
+     *
+     * @param minEntries the minimum number of entries of the Bundles to split
+     * @param language the language of the validation messages (null for the default)
+     * @param compactIssues if true, the issues of the internal references are in the compact form
+     * @return the fan-out
+     */
+    @Nonnull
+    static BundleFanOut of(final int minEntries, @Nullable final String language, final boolean compactIssues) {
+        if (minEntries < 1) {
+            throw new IllegalArgumentException("The minimum number of entries must be positive: " + minEntries);
+        }
+        return new BundleFanOut(minEntries, HL7MessageResolver.getTemplates(language).get(NOT_LOCAL_MESSAGE_ID),
+                language, compactIssues);
+    }
+
+    /**
+     * Splits the Bundles with at least {@link #minEntries} entries into a shell and the entry resources.
+     * The units of the split Bundles have the same id in the {@link #BUNDLE_COLUMN} and the index of the entry
+     * (or {@link #SHELL_ENTRY}) in the {@link #ENTRY_COLUMN}, both of which are null for the other resources.
+     *
+     * @param rows the rows with the `value` column (the other columns are copied to the units)
+     * @return the units
+     */
+    @Nonnull
+    Dataset<Row> split(@Nonnull final Dataset<Row> rows) {
+        final StructType schema = rows.schema()
+                .add(BUNDLE_COLUMN, DataTypes.LongType, true)
+                .add(ENTRY_COLUMN, DataTypes.IntegerType, true);
+        final int valueIndex = rows.schema().fieldIndex(ValidateApp.VALUE_COLUMN);
+        return rows.mapPartitions((MapPartitionsFunction<Row, Row>) input -> {
+            // unique ids in the same way as monotonically_increasing_id()
+            final long firstId = (long) TaskContext.getPartitionId() << 33;
+            final long[] count = {0};
+            return Streams.streamOf(input)
+                    .flatMap(row -> splitRow(row, valueIndex, firstId + count[0]++).stream())
+                    .iterator();
+        }, RowEncoder.apply(schema));
+    }
+
+    /**
+     * Merges the results of the units of the split Bundles into the results for the Bundles.
+     *
+     * @param units the validated units of the split Bundles (all of them, including those without issues)
+     * @return the Bundles with issues
+     */
+    @Nonnull
+    Dataset<ResourceWithIssues> merge(@Nonnull final Dataset<ResourceWithIssues> units) {
+        return units
+                .groupByKey((MapFunction<ResourceWithIssues, Long>) ResourceWithIssues::getBundle, Encoders.LONG())
+                .flatMapGroups((FlatMapGroupsFunction<Long, ResourceWithIssues, ResourceWithIssues>) (bundle, bundleUnits) ->
+                        mergeUnits(bundleUnits).stream().iterator(), Encoders.bean(ResourceWithIssues.class));
+    }
+
+    @Nonnull
+    private List<Row> splitRow(@Nonnull final Row row, final int valueIndex, final long bundleId) {
+        final Object value = row.get(valueIndex);
+        final String bundle = value instanceof byte[]
+                ? new String((byte[]) value, StandardCharsets.UTF_8)
+                : (String) value;
+        // most of the resources are not parsed at all
+        final List<Entry> entries = bundle != null && bundle.contains("\"Bundle\"")
+                ? scan(bundle)
+                : null;
+        if (entries == null || entries.size() < minEntries) {
+            return List.of(withUnit(row, valueIndex, value, null, null));
+        }
+        final List<Row> units = new ArrayList<>();
+        units.add(withUnit(row, valueIndex, toShell(bundle, entries), bundleId, SHELL_ENTRY));
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            if (entry.hasResource() && entry.getResourceType() != null) {
+                units.add(withUnit(row, valueIndex, bundle.substring(entry.getStart(), entry.getEnd()), bundleId, i));
+            }
+        }
+        return units;
+    }
+
+    @Nonnull
+    private static Row withUnit(@Nonnull final Row row, final int valueIndex, @Nullable final Object value,
+                                @Nullable final Long bundleId, @Nullable final Integer entry) {
+        final Object[] values = new Object[row.size() + 2];
+        for (int i = 0; i < row.size(); i++) {
+            values[i] = row.get(i);
+        }
+        values[valueIndex] = value;
+        values[row.size()] = bundleId;
+        values[row.size() + 1] = entry;
+        return RowFactory.create(values);
+    }
+
+    @Nonnull
+    private static String toShell(@Nonnull final String bundle, @Nonnull final List<Entry> entries) {
+        final StringBuilder shell = new StringBuilder(bundle.length());
+        int pos = 0;
+        for (final Entry entry : entries) {
+            if (entry.hasResource() && entry.getResourceType() != null) {
+                shell.append(bundle, pos, entry.getStart()).append(entry.stub());
+                pos = entry.getEnd();
+            }
+        }
+        return shell.append(bundle, pos, bundle.length()).toString();
+    }
+
+    @Nonnull
+    private List<ResourceWithIssues> mergeUnits(@Nonnull final Iterator<ResourceWithIssues> bundleUnits) {
+        final List<ResourceWithIssues> units = new ArrayList<>();
+        bundleUnits.forEachRemaining(units::add);
+        units.sort(Comparator.comparing(ResourceWithIssues::getEntry));
+        final ResourceWithIssues shell = units.get(0);
+        if (shell.getEntry() != SHELL_ENTRY) {
+            throw new IllegalStateException("Missing the shell of bundle: " + shell.getBundle());
+        }
+        final Map<Integer, ResourceWithIssues> unitsByEntry = units.stream()
+                .skip(1)
+                .collect(Collectors.toMap(ResourceWithIssues::getEntry, u -> u));
+
+        // the entry resources are put back in place of the stubs
+        final String shellBundle = new String(shell.getResource(), StandardCharsets.UTF_8);
+        final List<Entry> shellEntries = scan(shellBundle);
+        final StringBuilder rebuilt = new StringBuilder(shellBundle.length());
+        int pos = 0;
+        for (int i = 0; i < shellEntries.size(); i++) {
+            final ResourceWithIssues unit = unitsByEntry.get(i);
+            if (unit != null) {
+                rebuilt.append(shellBundle, pos, shellEntries.get(i).getStart())
+                        .append(new String(unit.getResource(), StandardCharsets.UTF_8));
+                pos = shellEntries.get(i).getEnd();
+            }
+        }
+        final String bundle = rebuilt.append(shellBundle, pos, shellBundle.length()).toString();
+
+        final List<Entry> entries = scan(bundle);
+        final Set<String> fullUrls = entries.stream()
+                .map(Entry::getFullUrl)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toUnmodifiableSet());
+        final List<ValidationResult.Issue> issues = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            final ResourceWithIssues unit = unitsByEntry.get(i);
+            if (unit != null && unit.getIssues() != null) {
+                for (final ValidationResult.Issue issue : unit.getIssues()) {
+                    issues.add(toBundleIssue(issue, entry, i));
+                }
+            }
+            for (final String[] reference : entry.getReferences()) {
+                if (!fullUrls.contains(reference[1])) {
+                    issues.add(notLocalIssue(entry.location(i) + reference[0], reference[1]));
+                }
+            }
+        }
+        if (shell.getIssues() != null) {
+            shell.getIssues().stream()
+                    .filter(issue -> issue.getLocation() == null || !issue.getLocation().matches(ENTRY_RESOURCE_LOCATION))
+                    .map(issue -> toBundleIssue(issue, shellEntries, entries))
+                    .forEach(issues::add);
+        }
+        // the phase times of the Bundle are the sum of the times of its units
+        final HL7PhaseTimes phaseTimes = units.stream()
+                .map(ResourceWithIssues::getPhaseTimes)
+                .filter(Objects::nonNull)
+                .reduce(HL7PhaseTimes::plus)
+                .orElse(null);
+        return issues.isEmpty() && phaseTimes == null
+                ? List.of()
+                : List.of(new ResourceWithIssues(bundle.getBytes(StandardCharsets.UTF_8), shell.getFilename(),
+                issues.isEmpty() ? null : issues, shell.getSource(), shell.getOffset(), null, null, phaseTimes));
+    }
+
+    @Nonnull
+    private static ValidationResult.Issue toBundleIssue(@Nonnull final ValidationResult.Issue issue, @Nonnull final Entry entry,
+                                                        final int index) {
+        final String location = issue.getLocation();
+        final String resourceType = entry.getResourceType();
+        final String bundleLocation;
+        if (location == null) {
+            bundleLocation = entry.location(index);
+        } else if (resourceType != null && (location.equals(resourceType) || location.startsWith(resourceType + "."))) {
+            bundleLocation = entry.location(index) + location.substring(resourceType.length());
+        } else {
+            bundleLocation = location;
+        }
+        // the resources of ndjson Bundles are on the first line
+        final boolean firstLine = issue.getLine() != null && issue.getLine() == 1 && issue.getCol() != null;
+        return issue.toBuilder()
+                .location(bundleLocation)
+                .col(firstLine ? issue.getCol() + entry.getStart() : issue.getCol())
+                .build();
+    }
+
+    @Nonnull
+    private static ValidationResult.Issue toBundleIssue(@Nonnull final ValidationResult.Issue issue, @Nonnull final List<Entry> shellEntries,
+                                                        @Nonnull final List<Entry> entries) {
+        if (issue.getLine() == null || issue.getLine() != 1 || issue.getCol() == null) {
+            return issue;
+        }
+        // the column in the shell is shifted by the difference in length of the stubs preceding it
+        int col = issue.getCol();
+        for (int i = 0; i < shellEntries.size(); i++) {
+            final Entry shellEntry = shellEntries.get(i);
+            if (shellEntry.hasResource() && shellEntry.getEnd() <= issue.getCol()) {
+                col += (entries.get(i).getEnd() - entries.get(i).getStart()) - (shellEntry.getEnd() - shellEntry.getStart());
+            }
+        }
+        return issue.toBuilder().col(col).build();
+    }
+
+    @Nonnull
+    private ValidationResult.Issue notLocalIssue(@Nonnull final String location, @Nonnull final String reference) {
+        // the same issue as reported by the validator for the whole Bundle
+        final ValidationResult.Issue issue = ValidationResult.Issue.builder()
+                .level("warning")
+                .type("required")
+                .message(HL7MessageResolver.formatMessage(notLocalTemplate, List.of(reference)))
+                .messageId(NOT_LOCAL_MESSAGE_ID)
+                .location(location)
+                .build();
+        return compactIssues
+                ? HL7MessageResolver.compact(issue, language)
+                : issue;
+    }
+
+    /**
+     * Scans the entries of a Bundle.
+     *
+     * @param json the json representation of the resource
+     * @return the entries of the Bundle, or null if the resource is not a Bundle (or is not valid json)
+     */
+    @Nullable
+    static List<Entry> scan(@Nonnull final String json) {
+        try (final JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            String resourceType = null;
+            List<Entry> entries = List.of();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                if ("resourceType".equals(name) && token == JsonToken.VALUE_STRING) {
+                    resourceType = parser.getText();
+                } else if ("entry".equals(name) && token == JsonToken.START_ARRAY) {
+                    entries = scanEntries(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return "Bundle".equals(resourceType)
+                    ? entries
+                    : null;
+        } catch (final Exception ex) {
+            // the invalid resources are reported by the validator
+            return null;
+        }
+    }
+
+    @Nonnull
+    @SneakyThrows
+    private static List<Entry> scanEntries(@Nonnull final JsonParser parser) {
+        final List<Entry> entries = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                entries.add(new Entry(-1, -1, null, null, null, null, List.of()));
+                continue;
+            }
+            String fullUrl = null;
+            Entry resource = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("fullUrl".equals(name) && value == JsonToken.VALUE_STRING) {
+                    fullUrl = parser.getText();
+                } else if ("resource".equals(name) && value == JsonToken.START_OBJECT) {
+                    resource = scanResource(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            entries.add(resource != null
+                    ? new Entry(resource.getStart(), resource.getEnd(), fullUrl, resource.getResourceType(), resource.getId(),
+                    resource.getVersionId(), resource.getReferences())
+                    : new Entry(-1, -1, fullUrl, null, null, null, List.of()));
+        }
+        return entries;
+    }
+
+    @Nonnull
+    @SneakyThrows
+    private static Entry scanResource(@Nonnull final JsonParser parser) {
+        final int start = (int) parser.getTokenLocation().getCharOffset();
+        final String[] properties = new String[3];
+        final List<String[]> references = new ArrayList<>();
+        scanObject(parser, "", properties, references);
+        final int end = (int) parser.getCurrentLocation().getCharOffset();
+        return new Entry(start, end, null, properties[0], properties[1], properties[2], references);
+    }
+
+    /**
+     * Scans an object of a resource for the internal references (and the `resourceType`, `id` and `meta.versionId`
+     * of the resource itself).
+     */
+    @SneakyThrows
+    private static void scanObject(@Nonnull final JsonParser parser, @Nonnull final String path,
+                                   @Nonnull final String[] properties, @Nonnull final List<String[]> references) {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                scanObject(parser, path + "." + name, properties, references);
+            } else if (token == JsonToken.START_ARRAY) {
+                int index = 0;
+                JsonToken element;
+                while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if (element == JsonToken.START_OBJECT) {
+                        scanObject(parser, path + "." + name + "[" + index + "]", properties, references);
+                    } else {
+                        parser.skipChildren();
+                    }
+                    index++;
+                }
+            } else if (token == JsonToken.VALUE_STRING) {
+                if (path.isEmpty() && "resourceType".equals(name)) {
+                    properties[0] = parser.getText();
+                } else if (path.isEmpty() && "id".equals(name)) {
+                    properties[1] = parser.getText();
+                } else if (".meta".equals(path) && "versionId".equals(name)) {
+                    properties[2] = parser.getText();
+                } else if ("reference".equals(name) && parser.getText().startsWith("urn:")) {
+                    references.add(new String[]{path, parser.getText()});
+                }
+            }
+        }
+    }
+}
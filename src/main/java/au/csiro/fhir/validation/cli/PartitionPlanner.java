@@ -0,0 +1,180 @@
+package au.csiro.fhir.validation.cli;
+
+import lombok.Value;
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.DataTypes;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Plans the partitions of the input so that each one has a similar estimated validation cost.
+ * <p>
+ * The cost of a resource is estimated from the size of its json representation (plus a fixed overhead per resource),
+ * so that a few large Bundles weigh as much as many small Patients. The resources are grouped by the configuration
+ * they are validated with, their type and their first profile, and each group is kept in as few partitions as
+ * its cost allows (the large groups are split into slices of about the cost of a partition). The groups are
+ * assigned to the least loaded partitions, the costliest first, and each partition is sorted by the group,
+ * so that the per profile caches of the validation engine stay hot within a task.
+ * <p>
+ * The planning requires an additional pass over the input to measure the groups.
+ */
+class PartitionPlanner {
+
+    /**
+     * The fixed cost of validating a resource (in bytes of json).
+     */
+    static final long RESOURCE_OVERHEAD = 1024;
+
+    static final String GROUP_COLUMN = "_group";
+    static final String COST_COLUMN = "_cost";
+    static final String PARTITION_COLUMN = "_partition";
+
+    /**
+     * The measured cost of a group of resources.
+     */
+    @Value
+    static class GroupCost {
+        @Nonnull
+        String group;
+        long cost;
+        long count;
+    }
+
+    /**
+     * Partitioner for the keys that are already the partition ids.
+     */
+    private static class ExactPartitioner extends Partitioner {
+        private final int numPartitions;
+
+        ExactPartitioner(final int numPartitions) {
+            this.numPartitions = numPartitions;
+        }
+
+        @Override
+        public int numPartitions() {
+            return numPartitions;
+        }
+
+        @Override
+        public int getPartition(final Object key) {
+            return (Integer) key;
+        }
+    }
+
+    private PartitionPlanner() {
+    }
+
+    /**
+     * Repartitions the rows into the given number of partitions balanced by the estimated validation cost.
+     *
+     * @param rows the rows with the `value` and `route` columns
+     * @param numPartitions the number of partitions
+     * @return the repartitioned rows (with the same columns), sorted by the group within each partition
+     */
+    @Nonnull
+    static Dataset<Row> plan(@Nonnull final Dataset<Row> rows, final int numPartitions) {
+        if (numPartitions < 1) {
+            throw new IllegalArgumentException("The number of partitions must be positive: " + numPartitions);
+        }
+        final String[] columns = rows.columns();
+        final Dataset<Row> measured = rows
+                .withColumn(GROUP_COLUMN, groupColumn())
+                .withColumn(COST_COLUMN, functions.length(functions.col(ValidateApp.VALUE_COLUMN).cast(DataTypes.StringType))
+                        .cast(DataTypes.LongType).plus(RESOURCE_OVERHEAD));
+        final List<GroupCost> groups = new ArrayList<>();
+        measured.groupBy(GROUP_COLUMN)
+                .agg(functions.sum(COST_COLUMN), functions.count(functions.lit(1)))
+                .collectAsList()
+                .forEach(row -> groups.add(new GroupCost(row.getString(0), row.getLong(1), row.getLong(2))));
+        if (groups.isEmpty()) {
+            return rows;
+        }
+        final int[][] slices = assign(groups, numPartitions);
+        final long[] loads = new long[numPartitions];
+        for (int i = 0; i < groups.size(); i++) {
+            for (final int partition : slices[i]) {
+                loads[partition] += groups.get(i).getCost() / slices[i].length;
+            }
+        }
+        System.out.printf("Planned %d partitions for %d groups of resources, estimated cost per partition: %d - %d bytes\n",
+                numPartitions, groups.size(), IntStream.range(0, numPartitions).mapToLong(i -> loads[i]).min().orElse(0),
+                IntStream.range(0, numPartitions).mapToLong(i -> loads[i]).max().orElse(0));
+
+        // the partitions of the slices of each group, with the slice selected by the hash of the resource
+        final List<Column> groupSlices = new ArrayList<>();
+        for (int i = 0; i < groups.size(); i++) {
+            groupSlices.add(functions.lit(groups.get(i).getGroup()));
+            groupSlices.add(functions.array(IntStream.of(slices[i]).mapToObj(functions::lit).toArray(Column[]::new)));
+        }
+        final Column partitions = functions.element_at(functions.map(groupSlices.toArray(Column[]::new)), functions.col(GROUP_COLUMN));
+        final Dataset<Row> assigned = measured.withColumn(PARTITION_COLUMN, functions.element_at(partitions,
+                functions.pmod(functions.hash(functions.col(ValidateApp.VALUE_COLUMN)), functions.size(partitions)).plus(1)));
+        final int partitionIndex = assigned.schema().fieldIndex(PARTITION_COLUMN);
+        final JavaRDD<Row> partitioned = assigned.javaRDD()
+                .keyBy(row -> row.getInt(partitionIndex))
+                .partitionBy(new ExactPartitioner(numPartitions))
+                .values();
+        return SparkSession.active().createDataFrame(partitioned, assigned.schema())
+                .sortWithinPartitions(functions.col(GROUP_COLUMN), functions.col(COST_COLUMN).desc())
+                .select(Arrays.stream(columns).map(functions::col).toArray(Column[]::new));
+    }
+
+    /**
+     * Assigns the slices of the groups to the partitions, so that each partition has about the same cost.
+     *
+     * @param groups the measured groups
+     * @param numPartitions the number of partitions
+     * @return the partitions of the slices of each group (in the order of the groups)
+     */
+    @Nonnull
+    static int[][] assign(@Nonnull final List<GroupCost> groups, final int numPartitions) {
+        final long totalCost = groups.stream().mapToLong(GroupCost::getCost).sum();
+        final long partitionCost = Math.max(1, totalCost / numPartitions);
+        final long[] loads = new long[numPartitions];
+        final PriorityQueue<Integer> leastLoaded = new PriorityQueue<>(
+                Comparator.<Integer>comparingLong(p -> loads[p]).thenComparingInt(p -> p));
+        IntStream.range(0, numPartitions).forEach(leastLoaded::add);
+        final int[][] slices = new int[groups.size()][];
+        final Integer[] order = IntStream.range(0, groups.size()).boxed()
+                .sorted(Comparator.<Integer>comparingLong(i -> groups.get(i).getCost()).reversed())
+                .toArray(Integer[]::new);
+        for (final int i : order) {
+            final GroupCost group = groups.get(i);
+            final int sliceCount = (int) Math.min(Math.min(numPartitions, group.getCount()),
+                    Math.max(1, (group.getCost() + partitionCost - 1) / partitionCost));
+            final long sliceCost = group.getCost() / sliceCount;
+            // the slices of a group go to distinct partitions
+            final int[] partitions = new int[sliceCount];
+            for (int s = 0; s < sliceCount; s++) {
+                partitions[s] = leastLoaded.poll();
+            }
+            for (final int partition : partitions) {
+                loads[partition] += sliceCost;
+                leastLoaded.add(partition);
+            }
+            slices[i] = partitions;
+        }
+        return slices;
+    }
+
+    @Nonnull
+    private static Column groupColumn() {
+        final Column value = functions.col(ValidateApp.VALUE_COLUMN).cast(DataTypes.StringType);
+        return functions.concat_ws("|",
+                functions.col(ValidateApp.ROUTE_COLUMN).cast(DataTypes.StringType),
+                functions.coalesce(functions.get_json_object(value, "$.resourceType"), functions.lit("")),
+                functions.coalesce(functions.get_json_object(value, "$.meta.profile[0]"), functions.lit("")));
+    }
+}
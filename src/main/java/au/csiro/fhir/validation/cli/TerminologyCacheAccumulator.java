@@ -0,0 +1,48 @@
+package au.csiro.fhir.validation.cli;
+
+import au.csiro.fhir.validation.hl7.HL7TerminologyCache;
+import org.apache.spark.util.AccumulatorV2;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Collects the new entries of the terminology caches of the engines in the executors
+ * (see {@link HL7TerminologyCache#collect()}), to be merged into the persistent cache by the driver.
+ */
+class TerminologyCacheAccumulator extends AccumulatorV2<HL7TerminologyCache.Entries, HL7TerminologyCache.Entries> {
+
+    @Nonnull
+    private HL7TerminologyCache.Entries entries = new HL7TerminologyCache.Entries();
+
+    @Override
+    public synchronized boolean isZero() {
+        return entries.isEmpty();
+    }
+
+    @Override
+    public synchronized TerminologyCacheAccumulator copy() {
+        final TerminologyCacheAccumulator copy = new TerminologyCacheAccumulator();
+        copy.entries.merge(entries);
+        return copy;
+    }
+
+    @Override
+    public synchronized void reset() {
+        entries = new HL7TerminologyCache.Entries();
+    }
+
+    @Override
+    public synchronized void add(@Nonnull final HL7TerminologyCache.Entries v) {
+        entries.merge(v);
+    }
+
+    @Override
+    public synchronized void merge(@Nonnull final AccumulatorV2<HL7TerminologyCache.Entries, HL7TerminologyCache.Entries> other) {
+        entries.merge(other.value());
+    }
+
+    @Override
+    public synchronized HL7TerminologyCache.Entries value() {
+        return entries;
+    }
+}
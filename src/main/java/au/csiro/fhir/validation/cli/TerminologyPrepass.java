@@ -0,0 +1,153 @@
+package au.csiro.fhir.validation.cli;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.api.java.UDF1;
+import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.DataTypes;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Selects the resources validated in the terminology pre-pass (see `--tx-prepass`).
+ * <p>
+ * The terminology checks of a coding depend on the coding (system, version, code and display) and on the binding
+ * of the element it is in, i.e. on the profile of the resource and the path of the element. The pre-pass validates
+ * a single (the smallest) resource for each distinct combination of them (in each route), so that all the distinct
+ * codings of the input are checked against the terminology server with the bindings they are used with. The responses
+ * are collected from the terminology caches of the engines and preloaded into the engines of the main pass,
+ * which then answer the terminology checks from memory.
+ */
+final class TerminologyPrepass {
+
+    static final String CODING_KEY_COLUMN = "codingKey";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String REPRESENTATIVE_COLUMN = "representative";
+    private static final String[] CODING_ELEMENTS = {"system", "version", "code", "display"};
+
+    private TerminologyPrepass() {
+    }
+
+    /**
+     * Selects a single resource (the smallest) for each distinct coding key (see {@link #codingKeys(byte[])})
+     * in each route.
+     *
+     * @param resources the resources to validate
+     * @return the distinct resources for the pre-pass
+     */
+    @Nonnull
+    static Dataset<ValidateApp.ValueWithFile> representatives(@Nonnull final Dataset<ValidateApp.ValueWithFile> resources) {
+        final Column[] columns = Arrays.stream(resources.columns()).map(functions::col).toArray(Column[]::new);
+        return resources.toDF()
+                .withColumn(CODING_KEY_COLUMN, functions.explode(functions.udf((UDF1<byte[], List<String>>) TerminologyPrepass::codingKeys,
+                        DataTypes.createArrayType(DataTypes.StringType)).apply(functions.col(ValidateApp.VALUE_COLUMN))))
+                .groupBy(functions.col(ValidateApp.ROUTE_COLUMN), functions.col(CODING_KEY_COLUMN))
+                .agg(functions.min_by(functions.struct(columns), functions.length(functions.col(ValidateApp.VALUE_COLUMN)))
+                        .as(REPRESENTATIVE_COLUMN))
+                .select(REPRESENTATIVE_COLUMN + ".*")
+                .distinct()
+                .as(Encoders.bean(ValidateApp.ValueWithFile.class));
+    }
+
+    /**
+     * Extracts the distinct codings of a json resource, as keys made of the resource type, the first profile,
+     * the path of the coding (without the indexes) and the system, version, code and display of the coding.
+     *
+     * @param resource the resource
+     * @return the coding keys, or an empty list if the resource is not valid json
+     */
+    @Nonnull
+    static List<String> codingKeys(@Nonnull final byte[] resource) {
+        final Set<String> codings = new LinkedHashSet<>();
+        final String[] typeAndProfile = new String[2];
+        try (final JsonParser parser = JSON_FACTORY.createParser(resource)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return Collections.emptyList();
+            }
+            collectCodings(parser, "", 0, typeAndProfile, codings);
+        } catch (final IOException ex) {
+            return Collections.emptyList();
+        }
+        final String prefix = typeAndProfile[0] + "|" + typeAndProfile[1] + "|";
+        final List<String> keys = new ArrayList<>(codings.size());
+        codings.forEach(coding -> keys.add(prefix + coding));
+        return keys;
+    }
+
+    private static void collectCodings(@Nonnull final JsonParser parser, @Nonnull final String path, final int depth,
+                                       @Nonnull final String[] typeAndProfile, @Nonnull final Set<String> codings) throws IOException {
+        // the parser is at the start of an object
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final String fieldPath = path.isEmpty() ? field : path + "." + field;
+            JsonToken token = parser.nextToken();
+            if (depth == 0 && "resourceType".equals(field) && token == JsonToken.VALUE_STRING) {
+                typeAndProfile[0] = parser.getText();
+                continue;
+            }
+            if (depth == 1 && "meta.profile".equals(fieldPath) && token == JsonToken.START_ARRAY) {
+                if (parser.nextToken() == JsonToken.VALUE_STRING) {
+                    typeAndProfile[1] = parser.getText();
+                }
+                if (parser.currentToken() != JsonToken.END_ARRAY) {
+                    parser.skipChildren();
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        parser.skipChildren();
+                    }
+                }
+                continue;
+            }
+            final boolean array = token == JsonToken.START_ARRAY;
+            if (array) {
+                token = parser.nextToken();
+            }
+            while (token != null && token != JsonToken.END_ARRAY) {
+                if (token == JsonToken.START_OBJECT && "coding".equals(field)) {
+                    final String coding = readCoding(parser);
+                    if (coding != null) {
+                        codings.add(fieldPath + "|" + coding);
+                    }
+                } else if (token == JsonToken.START_OBJECT) {
+                    collectCodings(parser, fieldPath, depth + 1, typeAndProfile, codings);
+                } else {
+                    parser.skipChildren();
+                }
+                token = array ? parser.nextToken() : null;
+            }
+        }
+    }
+
+    /**
+     * Reads the coding at the start of an object, or null if it has no code.
+     */
+    @Nullable
+    private static String readCoding(@Nonnull final JsonParser parser) throws IOException {
+        final String[] values = new String[CODING_ELEMENTS.length];
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            for (int i = 0; i < CODING_ELEMENTS.length; i++) {
+                if (CODING_ELEMENTS[i].equals(field) && token == JsonToken.VALUE_STRING) {
+                    values[i] = parser.getText();
+                }
+            }
+            parser.skipChildren();
+        }
+        return values[2] != null
+                ? String.join("|", values[0], values[1], values[2], values[3])
+                : null;
+    }
+}
@@ -1,20 +1,70 @@
 package au.csiro.fhir.validation.cli;
 
+import au.csiro.fhir.utils.OrderedParallelIterator;
 import au.csiro.fhir.utils.Streams;
+import au.csiro.fhir.validation.CachingValidationService;
+import au.csiro.fhir.validation.ValidationResultCache;
+import au.csiro.fhir.validation.hl7.HL7CodeLists;
+import au.csiro.fhir.validation.hl7.HL7EngineSnapshot;
+import au.csiro.fhir.validation.hl7.HL7MessageResolver;
+import au.csiro.fhir.validation.hl7.HL7PackageCache;
+import au.csiro.fhir.validation.hl7.HL7PhaseTimes;
+import au.csiro.fhir.validation.hl7.HL7TerminologyCache;
 import au.csiro.fhir.validation.hl7.HL7ValidationConfig;
 import au.csiro.fhir.validation.ValidationResult;
 import au.csiro.fhir.validation.hl7.HL7ValidationService;
 import lombok.*;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.SparkFiles;
+import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.JavaNewHadoopRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
 import org.apache.spark.sql.*;
+import org.apache.spark.sql.api.java.UDF1;
+import org.apache.spark.sql.api.java.UDF3;
+import org.apache.spark.sql.expressions.UserDefinedFunction;
+import org.apache.spark.sql.catalyst.catalog.ExternalCatalogUtils;
+import org.apache.spark.sql.streaming.DataStreamReader;
+import org.apache.spark.sql.streaming.StreamingQuery;
+import org.apache.spark.sql.streaming.StreamingQueryProgress;
+import org.apache.spark.sql.streaming.Trigger;
+import org.apache.spark.sql.types.ArrayType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.LongAccumulator;
+import org.apache.spark.util.TaskCompletionListener;
 import org.hl7.fhir.r5.utils.validation.constants.BestPracticeWarningLevel;
 import picocli.CommandLine;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.File;
+import java.io.OutputStream;
 import java.io.Serializable;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -39,6 +89,41 @@ import java.util.stream.Stream;
  * For non-partitioned data the `filename` column is added to the dataset with the value of the input file.
  *
  * <p>
+ * Resources conforming to different FHIR versions or sets of IGs can be validated in the same run with routes
+ * (see {@link Route}). Each resource is validated with the configuration of the first route matching
+ * any of its `meta.profile` canonicals, or with the default configuration if none matches.
+ *
+ * <p>
+ * With `--manifest` the content hash of each input resource and the fingerprint of the configuration it was
+ * validated with are written to `&lt;output&gt;_manifest`. A later run with `--previous &lt;output&gt;` only validates
+ * the resources that are not in that manifest (new, changed or routed to a changed configuration) and carries forward
+ * the previous results for the others, so that its output is the same as that of a full run.
+ *
+ * <p>
+ * With `--plan-partitions` the input is repartitioned by the estimated validation cost of the resources rather than
+ * by its size in bytes, with the resources of the same type and profile kept together (see {@link PartitionPlanner}).
+ *
+ * <p>
+ * With `--fan-out-bundles` the entries of the large Bundles are validated as independent resources and the issues
+ * are merged back into the results for the Bundles (see {@link BundleFanOut}).
+ *
+ * <p>
+ * With `--code-list` the code lists in CSV files (e.g. LOINC or ICD) are loaded into the engines as local code systems
+ * (see {@link HL7CodeLists}), so that their codes and displays are validated in memory without the terminology server.
+ *
+ * <p>
+ * With `--tx-prepass` a single resource for each distinct coding is validated first, and the terminology responses
+ * collected from it are preloaded into the engines of the validation, so that the number of the requests to the
+ * terminology server depends on the number of the distinct codings rather than of the resources
+ * (see {@link TerminologyPrepass}).
+ *
+ * <p>
+ * With `--streaming` the input directory is watched for new ndjson files, which are validated in micro-batches
+ * (at most `--max-files-per-trigger` files each) and appended to the output. The progress is recorded in the checkpoint
+ * directory (`&lt;output&gt;_checkpoint` by default), so a restarted run continues with the files not yet validated.
+ * With `--trigger available-now` the files present at the start are validated and the run stops.
+ *
+ * <p>
  * The output is a parquet dataset with the following schema:
  * <pre>
  *     root
@@ -48,12 +133,23 @@ import java.util.stream.Stream;
  *     |    |-- element: struct (containsNull = false)
  *     |    |    |-- level: string (nullable = false) // Issue severity (information, warning, error, fatal)
  *     |    |    |-- type: string (nullable = false) // Issue type (according to the validator classification)
- *     |    |    |-- message: string (nullable = false) // Issue message
+ *     |    |    |-- message: string (nullable = true) // Issue message (null if compacted)
  *     |    |    |-- messageId: string (nullable = true) // Issue message id
+ *     |    |    |-- params: array (nullable = true) // The parameters of the message template (only with --compact-issues)
+ *     |    |    |    |-- element: string (containsNull = true)
  *     |    |    |-- location: string (nullable = true) // Issue location, e.g. the fhirpath expression
  *     |    |    |-- line: integer (nullable = true) // Issue line number
  *     |    |    |-- col: integer(nullable = true) // Issue column number
  *  </pre>
+ * <p>
+ * With `--compact-issues` the messages that can be reproduced from their template are replaced by their parameters,
+ * and the templates are written to `&lt;output&gt;_messages` (with the `language`, `messageId` and `template` columns).
+ * The message is then formatted by replacing the `{n}` placeholders of the template with the `params[n]` values.
+ *
+ * <p>
+ * With `--reference-output` the output has one row per issue, with the columns of the issue and instead of the resource:
+ * `filename`, `source` (the path of the input file), `offset` (the byte offset of the resource in the source file),
+ * `resourceType`, `id` and `hash` (the MD5 hash of the resource).
  *
  * @see <a href="https://confluence.hl7.org/display/FHIR/Using+the+FHIR+Validator">HL7 FHIR Validator</a>
  * @see <a href="https://github.com/hapifhir/org.hl7.fhir.core">HL7 FHIR Core tools</a>
@@ -65,6 +161,29 @@ import java.util.stream.Stream;
 public class ValidateApp implements Runnable {
 
     public static final String FILENAME_COLUMN = "filename";
+    public static final String ROUTE_COLUMN = "route";
+    public static final String VALUE_COLUMN = "value";
+    public static final String RESOURCE_COLUMN = "resource";
+    public static final String ISSUES_COLUMN = "issues";
+    public static final String HASH_COLUMN = "hash";
+    public static final String FINGERPRINT_COLUMN = "fingerprint";
+    public static final String MANIFEST_SUFFIX = "_manifest";
+    public static final String LANGUAGE_COLUMN = "language";
+    public static final String MESSAGE_ID_COLUMN = "messageId";
+    public static final String TEMPLATE_COLUMN = "template";
+    public static final String MESSAGES_SUFFIX = "_messages";
+    public static final String SOURCE_COLUMN = "source";
+    public static final String OFFSET_COLUMN = "offset";
+    public static final String RESOURCE_TYPE_COLUMN = "resourceType";
+    public static final String ID_COLUMN = "id";
+    public static final String CHECKPOINT_SUFFIX = "_checkpoint";
+    public static final String METRICS_SUFFIX = "_metrics.json";
+    public static final String PHASE_TIMES_COLUMN = "phaseTimes";
+    public static final String AVAILABLE_NOW_TRIGGER = "available-now";
+    private static final String ISSUE_COLUMN = "issue";
+    private static final String PARAMS_FIELD = "params";
+    private static final int PHASE_TIMES_SUMMARY_ROWS = 20;
+    private static final Pattern FILENAME_PARTITION = Pattern.compile("/" + FILENAME_COLUMN + "=([^/]+)/");
     @CommandLine.Parameters(index = "0", description = "Input file.")
     String inputFile;
 
@@ -89,20 +208,216 @@ public class ValidateApp implements Runnable {
     @CommandLine.Option(names = {"-tx", "--tx-server"}, description = "Tx server to use")
     String txServer = null;
 
+    @CommandLine.Option(names = {"-cl", "--code-list"}, description = "Code list(s) loaded as local code systems, " +
+            "which are validated without the terminology server, as <system>[|<version>]=<csv file>[,<code column>[,<display column>]] " +
+            "(the columns default to: code and display).", arity = "0..*")
+    List<String> codeLists = List.of();
+
+    @CommandLine.Option(names = {"-tc", "--tx-cache"}, description = "Directory of the persistent cache of the terminology server " +
+            "responses (used with --tx-server). The cache is distributed to the executors to preload the validation engines, " +
+            "and the new responses are merged into it after the validation.")
+    String txCacheDir = null;
+
+    @CommandLine.Option(names = {"-tp", "--tx-prepass"}, description = "Validate a single resource for each distinct coding " +
+            "(in each element and profile) before the validation, and preload the collected terminology responses into the " +
+            "validation engines (requires --tx-server and --tx-cache).", defaultValue = "false")
+    boolean txPrepass = false;
+
+    @CommandLine.Option(names = {"-c", "--shared-context"}, description = "Share a single validation engine between all the threads of an executor.", defaultValue = "false")
+    boolean sharedContext = false;
+
+    @CommandLine.Option(names = {"-t", "--threads-per-task"}, description = "Number of threads used to validate the resources of a partition. " +
+            "Implies --shared-context if greater than 1.", defaultValue = "1")
+    int threadsPerTask = 1;
+
+    @CommandLine.Option(names = {"-r", "--route"}, description = "Route(s) for resources with profiles starting with a prefix " +
+            "in the format: <profile-prefix>=<fhir-version>[,<ig>...]", arity = "0..*")
+    List<String> routes = List.of();
+
+    @CommandLine.Option(names = {"-b", "--batch-size"}, description = "Number of resources validated together " +
+            "(and the unit of work of the --threads-per-task threads).", defaultValue = "100")
+    int batchSize = 100;
+
+    @CommandLine.Option(names = {"-rc", "--result-cache-size"}, description = "Maximum number of validation results cached " +
+            "per executor by the content hash of the resources (0 to disable).", defaultValue = "0")
+    int resultCacheSize = 0;
+
+    @CommandLine.Option(names = {"-rn", "--result-cache-normalize"}, description = "Ignore the resource id and meta.lastUpdated " +
+            "in the result cache.", defaultValue = "false")
+    boolean normalizeResultCache = false;
+
+    @CommandLine.Option(names = {"-w", "--prewarm"}, description = "Number of sample resources from the input used to pre-warm " +
+            "the validation engines on the executors before the validation job (0 to disable). This is best effort, as Spark " +
+            "does not pin the warm-up tasks to the executors: the coverage of the executors is reported.", defaultValue = "0")
+    int prewarmSampleSize = 0;
+
+    @CommandLine.Option(names = {"-k", "--offline-package-dir"}, description = "Directory to prepare the offline cache of the required " +
+            "FHIR packages in. The cache is distributed to the executors, which then do not access the package registry.")
+    String offlinePackageDir = null;
+
+    @CommandLine.Option(names = {"-s", "--engine-snapshot-dir"}, description = "Directory with pre-built validation engine snapshots. " +
+            "The snapshot for the current configuration is created if it does not exist.")
+    String engineSnapshotDir = null;
+
+    @CommandLine.Option(names = {"-m", "--manifest"}, description = "Write the manifest of the validated resources (content hashes " +
+            "and configuration fingerprints) next to the output, as `<output>" + MANIFEST_SUFFIX + "`.", defaultValue = "false")
+    boolean writeManifest = false;
+
+    @CommandLine.Option(names = {"-ci", "--compact-issues"}, description = "Write the issues with the message id and the parameters " +
+            "of the message instead of the formatted message (where possible), and the message templates to `<output>" + MESSAGES_SUFFIX + "`.",
+            defaultValue = "false")
+    boolean compactIssues = false;
+
+    @CommandLine.Option(names = {"-ro", "--reference-output"}, description = "Write one row per issue with a reference to the resource " +
+            "in the input (source file, byte offset, resource type, id and content hash) instead of the resource itself.",
+            defaultValue = "false")
+    boolean referenceOutput = false;
+
+    @CommandLine.Option(names = {"--streaming"}, description = "Validate the files as they arrive in the input directory " +
+            "with a streaming query, until it is stopped (or until all the available files are validated with --trigger " +
+            AVAILABLE_NOW_TRIGGER + ").", defaultValue = "false")
+    boolean streaming = false;
+
+    @CommandLine.Option(names = {"--checkpoint-dir"}, description = "Checkpoint directory of the streaming query " +
+            "(default: `<output>" + CHECKPOINT_SUFFIX + "`).")
+    String checkpointDir = null;
+
+    @CommandLine.Option(names = {"--trigger"}, description = "Interval of the streaming micro-batches, e.g. `30 seconds`, " +
+            "or `" + AVAILABLE_NOW_TRIGGER + "` to validate the available files and stop.", defaultValue = "1 minute")
+    String trigger = "1 minute";
+
+    @CommandLine.Option(names = {"--max-files-per-trigger"}, description = "Maximum number of new files validated " +
+            "in each streaming micro-batch (0 for no limit).", defaultValue = "0")
+    int maxFilesPerTrigger = 0;
+
+    @CommandLine.Option(names = {"-pp", "--plan-partitions"}, description = "Repartition the input into the given number of " +
+            "partitions balanced by the estimated validation cost of the resources (their size), with the resources of the same " +
+            "type and profile grouped together (0 to keep the partitions of the input).", defaultValue = "0")
+    int plannedPartitions = 0;
+
+    @CommandLine.Option(names = {"-fb", "--fan-out-bundles"}, description = "Split the Bundles with at least the given number " +
+            "of entries into the entry resources, validated independently (and in parallel), and the Bundle itself, validated " +
+            "for the Bundle level rules. The issues are merged back into the results for the Bundle (0 to disable).",
+            defaultValue = "0")
+    int fanOutMinEntries = 0;
+
+    @CommandLine.Option(names = {"-rt", "--resource-timeout"}, description = "Maximum time in milliseconds to validate " +
+            "a single resource. The validation of a resource is abandoned after that time with a `fatal` issue of type `" +
+            ValidationResult.TIMEOUT_TYPE + "` and the validation engine is recreated (0 for no limit).", defaultValue = "0")
+    long resourceTimeout = 0;
+
+    @CommandLine.Option(names = {"-mt", "--metrics"}, description = "Write the throughput metrics of the validation (the number " +
+            "and size of the resources, the issues by level and message id, the latency histograms by resource type and the engine " +
+            "initialization time by executor) as json next to the output, as `<output>" + METRICS_SUFFIX + "`. The resources of " +
+            "the re-executed (e.g. retried or speculative) tasks are counted again.", defaultValue = "false")
+    boolean writeMetrics = false;
+
+    @CommandLine.Option(names = {"-ph", "--phase-times"}, description = "Measure the time spent in the phases of the validation " +
+            "of each resource (parsing, profile resolution, invariants, special checks, terminology and structural checks). " +
+            "All the validated resources are written to the output with the `" + PHASE_TIMES_COLUMN + "` column (with zero " +
+            "times for the results from the result cache, and only the total time for the abandoned validations), and the " +
+            "times are summarized by resource type and profile.", defaultValue = "false")
+    boolean phaseTimes = false;
+
+    @CommandLine.Option(names = {"--previous"}, description = "Output of a previous run (written with --manifest). " +
+            "Only the resources that are new or changed since then are validated, the results for the others are carried forward. " +
+            "Implies --manifest.")
+    String previousOutput = null;
 
     @Data
     @NoArgsConstructor
     public static class ValueWithFile implements Serializable {
+        /**
+         * The UTF-8 encoded resource (the `value` column is read as binary to avoid decoding it).
+         */
         @Nonnull
-        String value;
+        byte[] value;
         @Nonnull
         String filename;
+        /**
+         * The index of the configuration to validate the resource with (0 for the default configuration).
+         */
+        int route;
+        /**
+         * The path of the input file the resource was read from (only with --reference-output).
+         */
+        @Nullable
+        String source;
+        /**
+         * The byte offset of the resource in the source file (only with --reference-output).
+         */
+        @Nullable
+        Long offset;
+        /**
+         * The id of the Bundle the resource was split from (only with --fan-out-bundles).
+         */
+        @Nullable
+        Long bundle;
+        /**
+         * The index of the entry of the Bundle, or {@link BundleFanOut#SHELL_ENTRY} for the Bundle itself.
+         */
+        @Nullable
+        Integer entry;
     }
 
+    /**
+     * Routes the resources with a profile starting with the given prefix to the engine
+     * for the given FHIR version and implementation guides.
+     */
     @Value
+    static class Route {
+        @Nonnull
+        String profilePrefix;
+
+        @Nonnull
+        String version;
+
+        @Nonnull
+        List<String> igs;
+
+        @Nonnull
+        HL7ValidationConfig applyTo(@Nonnull final HL7ValidationConfig config) {
+            return config.toBuilder()
+                    .version(version)
+                    .clearIgs()
+                    .igs(igs)
+                    .build();
+        }
+
+        @Nonnull
+        Column matches(@Nonnull final Column profiles) {
+            return functions.exists(profiles, profile -> profile.startsWith(profilePrefix));
+        }
+
+        /**
+         * Parses the route from the format: {@code <profile-prefix>=<fhir-version>[,<ig>...]}.
+         *
+         * @param route the route definition
+         * @return the route
+         */
+        @Nonnull
+        static Route parse(@Nonnull final String route) {
+            // the igs may contain '=' (e.g. in the file names), but the profile prefix is a canonical url
+            final int separator = route.indexOf('=');
+            if (separator <= 0 || separator == route.length() - 1) {
+                throw new IllegalArgumentException("Invalid route: " + route +
+                        ". Expected: <profile-prefix>=<fhir-version>[,<ig>...]");
+            }
+            final List<String> versionAndIgs = Arrays.asList(route.substring(separator + 1).split(","));
+            return new Route(route.substring(0, separator), versionAndIgs.get(0),
+                    List.copyOf(versionAndIgs.subList(1, versionAndIgs.size())));
+        }
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
     public static class ResourceWithIssues implements Serializable {
+        /**
+         * The UTF-8 encoded resource (cast back to string in the output).
+         */
         @Nonnull
-        String resource;
+        byte[] resource;
 
         @Nonnull
         String filename;
@@ -110,32 +425,312 @@ public class ValidateApp implements Runnable {
         @Nullable
         List<ValidationResult.Issue> issues;
 
+        @Nullable
+        String source;
+
+        @Nullable
+        Long offset;
+
+        @Nullable
+        Long bundle;
+
+        @Nullable
+        Integer entry;
+
+        /**
+         * The time spent in the phases of the validation, if measured (and the resource was validated
+         * rather than found in the result cache).
+         */
+        @Nullable
+        HL7PhaseTimes phaseTimes;
 
         boolean hasIssues() {
             return issues != null;
         }
 
         @Nonnull
-        static ResourceWithIssues of(@Nonnull final String resource, @Nonnull final String filename, @Nonnull final ValidationResult validationResult) {
-            return new ResourceWithIssues(resource, filename, validationResult.getIssues().isEmpty() ? null : validationResult.getIssues());
+        static ResourceWithIssues of(@Nonnull final ValueWithFile value, @Nonnull final ValidationResult validationResult,
+                                     @Nullable final HL7PhaseTimes phaseTimes) {
+            return new ResourceWithIssues(value.getValue(), value.getFilename(),
+                    validationResult.getIssues().isEmpty() ? null : validationResult.getIssues(),
+                    value.getSource(), value.getOffset(), value.getBundle(), value.getEntry(), phaseTimes);
         }
     }
 
     @AllArgsConstructor
     static class Validator implements Serializable {
 
+        /**
+         * The configurations indexed by route, with the default configuration at index 0.
+         */
         @Nonnull
-        private final HL7ValidationConfig config;
+        private final List<HL7ValidationConfig> configs;
+
+        /**
+         * The names of the engine snapshot files (indexed by route) distributed with
+         * {@link org.apache.spark.SparkContext#addFile(String)}, or null if the engine is created from the IGs.
+         */
+        @Nonnull
+        private final List<String> engineSnapshotFiles;
+
+        /**
+         * The name of the offline package cache directory distributed with
+         * {@link org.apache.spark.SparkContext#addFile(String, boolean)}, or null if not used.
+         */
+        @Nullable
+        private final String offlinePackageDir;
+
+        /**
+         * The number of threads used to validate the resources of a single partition.
+         */
+        private final int threadsPerTask;
+
+        /**
+         * The number of resources validated together with {@link HL7ValidationService#validateBatch(List)}.
+         */
+        private final int batchSize;
+
+        /**
+         * The maximum number of results in the per executor result cache of each route (0 to disable the cache).
+         */
+        private final int resultCacheSize;
+
+        /**
+         * If true, the ids and last updated timestamps of the resources are ignored by the result cache.
+         */
+        private final boolean normalizeResultCache;
+
+        /**
+         * If true, the issues are converted to the compact form (see {@link HL7MessageResolver#compact}).
+         */
+        private final boolean compactIssues;
+
+        @Nonnull
+        private final LongAccumulator resultCacheHits;
+
+        @Nonnull
+        private final LongAccumulator resultCacheMisses;
+
+        /**
+         * The maximum time to validate a single resource in milliseconds (0 for no limit).
+         */
+        private final long resourceTimeout;
+
+        /**
+         * The number of resources whose validation was abandoned after the timeout.
+         */
+        @Nonnull
+        private final LongAccumulator abandonedResources;
+
+        /**
+         * The throughput metrics, or null if not collected.
+         */
+        @Nullable
+        private final ValidationMetrics.Accumulator metrics;
+
+        /**
+         * If true, the time spent in the phases of the validation is measured (and all the results are kept).
+         */
+        private final boolean phaseTimes;
+
+        /**
+         * The name of the terminology cache directory distributed with
+         * {@link org.apache.spark.SparkContext#addFile(String, boolean)}, or null if not used.
+         */
+        @Nullable
+        private final String txCacheDir;
+
+        /**
+         * The new entries of the terminology caches of the engines, or null if not collected.
+         */
+        @Nullable
+        private final TerminologyCacheAccumulator txCacheEntries;
+
+        /**
+         * The terminology cache entries collected by the pre-pass, which are preloaded into the engines created
+         * with the distributed cache, or null if not used.
+         */
+        @With
+        @Nullable
+        private final Broadcast<HL7TerminologyCache.Entries> txCachePreload;
+
+        @Nonnull
+        private HL7ValidationConfig resolveConfig(final int route) {
+            final String engineSnapshotFile = engineSnapshotFiles.get(route);
+            final String txCache = txCacheDir != null ? SparkFiles.get(txCacheDir) : null;
+            return configs.get(route).toBuilder()
+                    .engineSnapshot(engineSnapshotFile != null ? SparkFiles.get(engineSnapshotFile) : null)
+                    .packageCache(offlinePackageDir != null ? SparkFiles.get(offlinePackageDir) : null)
+                    .txCache(txCache)
+                    .build();
+        }
+
+        /**
+         * Resolves the configurations of all the routes, and keeps an engine for each of them in the executor.
+         */
+        @Nonnull
+        private List<HL7ValidationConfig> resolveConfigs() {
+            HL7ValidationService.ensureEngineCapacity(configs.size());
+            final List<HL7ValidationConfig> resolvedConfigs = new ArrayList<>(configs.size());
+            for (int route = 0; route < configs.size(); route++) {
+                resolvedConfigs.add(resolveConfig(route));
+            }
+            return resolvedConfigs;
+        }
 
         @Nonnull
         private Iterator<ResourceWithIssues> validatePartition(@Nonnull final Iterator<ValueWithFile> input) {
-            final HL7ValidationService validationService = HL7ValidationService.getOrCreate(config);
-            return Streams.streamOf(input)
-                    .map(s -> ResourceWithIssues.of(s.getValue(), s.getFilename(),
-                            validationService.validateJson(s.getValue().getBytes(StandardCharsets.UTF_8))))
-                    .filter(ResourceWithIssues::hasIssues)
+            if (txCacheDir != null && txCachePreload != null) {
+                // before any validation in this JVM, into the engines of the pre-pass too, which are then reused
+                final String txCache = SparkFiles.get(txCacheDir);
+                // the distributed cache is unique to the SparkContext and so is the broadcast id
+                HL7TerminologyCache.preload(txCache, txCachePreload.value(), txCache + "#" + txCachePreload.id());
+            }
+            final List<HL7ValidationConfig> resolvedConfigs = resolveConfigs();
+            final Iterator<List<ValueWithFile>> batches = Streams.batchesOf(input, batchSize);
+            final Iterator<List<ResourceWithIssues>> results;
+            if (threadsPerTask > 1) {
+                final OrderedParallelIterator<List<ValueWithFile>, List<ResourceWithIssues>> parallelResults = OrderedParallelIterator.of(batches,
+                        batch -> measureBatch(batch, route -> serviceFor(resolvedConfigs.get(route))), threadsPerTask);
+                final TaskContext taskContext = TaskContext.get();
+                if (taskContext != null) {
+                    taskContext.addTaskCompletionListener((TaskCompletionListener) context -> parallelResults.close());
+                }
+                results = parallelResults;
+            } else {
+                final HL7ValidationService[] validationServices = new HL7ValidationService[resolvedConfigs.size()];
+                final IntFunction<HL7ValidationService> serviceForRoute = route -> {
+                    if (validationServices[route] == null) {
+                        validationServices[route] = serviceFor(resolvedConfigs.get(route));
+                    }
+                    return validationServices[route];
+                };
+                results = Streams.streamOf(batches).map(batch -> measureBatch(batch, serviceForRoute)).iterator();
+            }
+            final TaskContext taskContext = TaskContext.get();
+            if (txCacheEntries != null && taskContext != null) {
+                taskContext.addTaskCompletionListener((TaskCompletionListener) context -> txCacheEntries.add(HL7TerminologyCache.collect()));
+            }
+            return Streams.streamOf(results)
+                    .flatMap(List::stream)
+                    .peek(r -> {
+                        if (r.hasIssues() && r.getIssues().stream().anyMatch(i -> ValidationResult.TIMEOUT_TYPE.equals(i.getType()))) {
+                            abandonedResources.add(1);
+                        }
+                    })
+                    // the units of the split Bundles are kept until they are merged back
+                    .filter(r -> r.hasIssues() || r.getBundle() != null || r.getPhaseTimes() != null)
                     .iterator();
         }
+
+        @Nonnull
+        private HL7ValidationService serviceFor(@Nonnull final HL7ValidationConfig config) {
+            final HL7ValidationService service = HL7ValidationService.getOrCreate(config);
+            return resourceTimeout > 0
+                    ? service.withTimeout(resourceTimeout)
+                    : service;
+        }
+
+        /**
+         * Creates the engines for all the configurations in the current executor thread and validates
+         * the sample resources with them.
+         *
+         * @param sample the resources to validate
+         * @return the id of the executor and the name of the thread the engines were warmed up in
+         */
+        @Nonnull
+        private String warmUp(@Nonnull final List<ValueWithFile> sample) {
+            resolveConfigs().forEach(HL7ValidationService::getOrCreate);
+            validatePartition(sample.iterator()).forEachRemaining(r -> {
+            });
+            final SparkEnv sparkEnv = SparkEnv.get();
+            return (sparkEnv != null ? sparkEnv.executorId() : "driver") + "/" + Thread.currentThread().getName();
+        }
+
+        /**
+         * Validates the batch and adds its metrics (if collected) to the accumulator.
+         */
+        @Nonnull
+        private List<ResourceWithIssues> measureBatch(@Nonnull final List<ValueWithFile> batch,
+                                                      @Nonnull final IntFunction<HL7ValidationService> serviceForRoute) {
+            if (metrics == null) {
+                return validateBatch(batch, serviceForRoute, null);
+            }
+            final ValidationMetrics batchMetrics = new ValidationMetrics();
+            final List<ResourceWithIssues> results = validateBatch(batch, serviceForRoute, batchMetrics);
+            final SparkEnv sparkEnv = SparkEnv.get();
+            batchMetrics.recordEngineInit(sparkEnv != null ? sparkEnv.executorId() : "driver",
+                    HL7ValidationService.getEngineInitMillis());
+            metrics.add(batchMetrics);
+            return results;
+        }
+
+        /**
+         * Validates the batch with {@link HL7ValidationService#validateBatch(List)}, with the resources
+         * of each route validated together.
+         */
+        @Nonnull
+        private List<ResourceWithIssues> validateBatch(@Nonnull final List<ValueWithFile> batch,
+                                                       @Nonnull final IntFunction<HL7ValidationService> serviceForRoute,
+                                                       @Nullable final ValidationMetrics batchMetrics) {
+            final Map<Integer, List<Integer>> indexesByRoute = IntStream.range(0, batch.size()).boxed()
+                    .collect(Collectors.groupingBy(i -> batch.get(i).getRoute()));
+            final ResourceWithIssues[] results = new ResourceWithIssues[batch.size()];
+            indexesByRoute.forEach((route, indexes) -> {
+                final List<byte[]> routeBatch = indexes.stream().map(i -> batch.get(i).getValue()).collect(Collectors.toList());
+                // the phase times by the index in the batch validated by the service (which may skip the cached resources),
+                // but not of the resources validated again after the eviction of their result from a very small cache
+                final Map<Integer, HL7PhaseTimes> validatedTimes = phaseTimes ? new HashMap<>() : null;
+                // the engine may be created (or waited for) when the service is first obtained, which is not validation time
+                final HL7ValidationService service = validatedTimes != null
+                        ? serviceForRoute.apply(route).withPhaseTimes((times, index) -> validatedTimes.putIfAbsent(index, times))
+                        : serviceForRoute.apply(route);
+                final CachingValidationService cachingService = resultCacheSize > 0
+                        ? new CachingValidationService(service,
+                        ValidationResultCache.getOrCreate(configs.get(route).fingerprint(), resultCacheSize, normalizeResultCache))
+                        : null;
+                final List<Integer> validatedIndexes = new ArrayList<>();
+                final long startTime = System.nanoTime();
+                final List<ValidationResult> routeResults;
+                if (cachingService != null) {
+                    routeResults = cachingService.validateBatch(routeBatch, validatedIndexes::add);
+                    resultCacheHits.add(cachingService.getHits());
+                    resultCacheMisses.add(cachingService.getMisses());
+                } else {
+                    routeResults = service.validateBatch(routeBatch);
+                    IntStream.range(0, routeBatch.size()).forEach(validatedIndexes::add);
+                }
+                // the resources not validated (with the results from the cache) have zero times
+                final HL7PhaseTimes[] routeTimes = new HL7PhaseTimes[routeBatch.size()];
+                if (validatedTimes != null) {
+                    Arrays.fill(routeTimes, HL7PhaseTimes.ofTotal(0));
+                    validatedTimes.forEach((index, times) -> routeTimes[validatedIndexes.get(index)] = times);
+                }
+                if (batchMetrics != null) {
+                    // the time of the batch is shared by the resources in proportion to their size
+                    final double batchMillis = (System.nanoTime() - startTime) / 1e6;
+                    final long batchBytes = Math.max(1, routeBatch.stream().mapToLong(r -> r.length).sum());
+                    for (int i = 0; i < indexes.size(); i++) {
+                        batchMetrics.record(routeBatch.get(i), routeResults.get(i), batchMillis * routeBatch.get(i).length / batchBytes);
+                    }
+                }
+                for (int i = 0; i < indexes.size(); i++) {
+                    final ValueWithFile s = batch.get(indexes.get(i));
+                    final ValidationResult result = compactIssues
+                            ? compact(routeResults.get(i), configs.get(route).getLanguage())
+                            : routeResults.get(i);
+                    results[indexes.get(i)] = ResourceWithIssues.of(s, result, routeTimes[i]);
+                }
+            });
+            return Arrays.asList(results);
+        }
+
+        @Nonnull
+        private static ValidationResult compact(@Nonnull final ValidationResult result, @Nullable final String language) {
+            return new ValidationResult(result.getIssues().stream()
+                    .map(issue -> HL7MessageResolver.compact(issue, language))
+                    .collect(Collectors.toUnmodifiableList()));
+        }
     }
 
     public void run() {
@@ -148,32 +743,563 @@ public class ValidateApp implements Runnable {
             sparkSession.sparkContext().setLogLevel(debugLevel);
         }
         final HL7ValidationConfig config = HL7ValidationConfig.builder()
+                .version(fhirVersion)
                 .txSever(txServer)
                 .language(language)
                 .igs(igs)
+                .codeLists(codeLists)
                 .showProgress(logProgress)
+                // the pool threads only live as long as the task, so they need to share the engine
+                .sharedContext(sharedContext || threadsPerTask > 1)
                 // hardcoded for no
                 .bestPracticeLevel(BestPracticeWarningLevel.Warning)
                 .displayMismatchAsWarning(true)
                 .build();
         System.out.println("Validation config: " + config);
-        final Validator validator = new Validator(config);
+        final List<Route> parsedRoutes = routes.stream().map(Route::parse).collect(Collectors.toUnmodifiableList());
+        final List<HL7ValidationConfig> configs = new ArrayList<>();
+        configs.add(config);
+        parsedRoutes.forEach(route -> {
+            final HL7ValidationConfig routeConfig = route.applyTo(config);
+            System.out.println("Route: " + route.getProfilePrefix() + " -> " + routeConfig);
+            configs.add(routeConfig);
+        });
+        // pins the resolved packages and guide files, which the results, caches and snapshots are keyed by
+        configs.replaceAll(HL7ValidationConfig::withResolvedContent);
+        if (offlinePackageDir != null) {
+            final File packageDir = new File(offlinePackageDir);
+            System.out.println("Preparing offline package cache: " + packageDir);
+            configs.replaceAll(c -> HL7PackageCache.prepare(c, packageDir));
+            sparkSession.sparkContext().addFile(packageDir.getAbsolutePath(), true);
+        }
+        if (txCacheDir != null) {
+            final File cacheDir = new File(txCacheDir);
+            if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+                throw new IllegalStateException("Cannot create directory: " + cacheDir);
+            }
+            System.out.println("Using terminology cache: " + cacheDir);
+            sparkSession.sparkContext().addFile(cacheDir.getAbsolutePath(), true);
+        }
+        final List<String> engineSnapshotFiles = new ArrayList<>();
+        // the engines on the driver load the guides from the offline packages as well
+        configs.forEach(c -> engineSnapshotFiles.add(prepareEngineSnapshot(sparkSession, offlinePackageDir != null
+                ? c.toBuilder().packageCache(new File(offlinePackageDir).getAbsolutePath()).build()
+                : c)));
+        final Validator validator = new Validator(configs, engineSnapshotFiles,
+                offlinePackageDir != null ? new File(offlinePackageDir).getName() : null, threadsPerTask, batchSize,
+                resultCacheSize, normalizeResultCache, compactIssues,
+                sparkSession.sparkContext().longAccumulator("resultCacheHits"),
+                sparkSession.sparkContext().longAccumulator("resultCacheMisses"),
+                resourceTimeout, sparkSession.sparkContext().longAccumulator("abandonedResources"),
+                writeMetrics ? new ValidationMetrics.Accumulator() : null, phaseTimes,
+                txCacheDir != null ? new File(txCacheDir).getName() : null,
+                txCacheDir != null ? new TerminologyCacheAccumulator() : null, null);
+        if (validator.metrics != null) {
+            sparkSession.sparkContext().register(validator.metrics, "validationMetrics");
+        }
+        if (validator.txCacheEntries != null) {
+            sparkSession.sparkContext().register(validator.txCacheEntries, "terminologyCacheEntries");
+        }
+        if (streaming && (referenceOutput || writeManifest || previousOutput != null || prewarmSampleSize > 0 || plannedPartitions > 0
+                || fanOutMinEntries > 0 || writeMetrics || phaseTimes || txPrepass)) {
+            throw new IllegalArgumentException("--streaming cannot be used with --reference-output, --manifest, --previous, --prewarm, " +
+                    "--plan-partitions, --fan-out-bundles, --metrics, --phase-times or --tx-prepass");
+        }
+        if (txPrepass && (txServer == null || txCacheDir == null)) {
+            throw new IllegalArgumentException("--tx-prepass requires --tx-server and --tx-cache");
+        }
+        if (phaseTimes && (referenceOutput || previousOutput != null)) {
+            throw new IllegalArgumentException("--phase-times cannot be used with --reference-output or --previous");
+        }
+        if (previousOutput != null && new File(previousOutput).getAbsoluteFile().equals(new File(outputFile).getAbsoluteFile())) {
+            throw new IllegalArgumentException("The previous output cannot be overwritten: " + previousOutput);
+        }
+        if (streaming) {
+            runStreaming(sparkSession, validator, parsedRoutes);
+            return;
+        }
         System.out.println("Validating: " + inputFile + " and writing to: " + outputFile);
-        final Dataset<Row> inputDF = sparkSession.read().text(inputFile);
-        final Dataset<ValueWithFile> ndjsonDatset;
-        if (Stream.of(inputDF.columns()).noneMatch(FILENAME_COLUMN::equals)) {
-            System.out.println("Setting `filename` column to:" + inputFile);
-            ndjsonDatset = inputDF.withColumn(FILENAME_COLUMN, functions.lit(inputFile)).as(Encoders.bean(ValueWithFile.class));
+        final Dataset<Row> ndjsonDatset;
+        if (referenceOutput) {
+            System.out.println("Reading the input with the byte offsets of the resources.");
+            ndjsonDatset = readWithOffsets(sparkSession);
         } else {
-            System.out.println("Using `filename` column present in the dataset.");
-            ndjsonDatset = inputDF.as(Encoders.bean(ValueWithFile.class));
+            final Dataset<Row> inputDF = sparkSession.read().text(inputFile);
+            final Dataset<Row> namedDF;
+            if (Stream.of(inputDF.columns()).noneMatch(FILENAME_COLUMN::equals)) {
+                System.out.println("Setting `filename` column to:" + inputFile);
+                namedDF = inputDF.withColumn(FILENAME_COLUMN, functions.lit(inputFile));
+            } else {
+                System.out.println("Using `filename` column present in the dataset.");
+                namedDF = inputDF;
+            }
+            ndjsonDatset = namedDF
+                    .withColumn(SOURCE_COLUMN, functions.lit(null).cast(DataTypes.StringType))
+                    .withColumn(OFFSET_COLUMN, functions.lit(null).cast(DataTypes.LongType));
         }
-        final Dataset<ResourceWithIssues> result = ndjsonDatset.mapPartitions(validator::validatePartition, Encoders.bean(ResourceWithIssues.class));
-        result.toDF().write().mode(SaveMode.Overwrite).parquet(outputFile);
+        Dataset<Row> routedRows = ndjsonDatset.withColumn(ROUTE_COLUMN, routeColumn(parsedRoutes));
+        if (writeManifest || previousOutput != null) {
+            // used for the changed and the carried forward resources and for the manifest, so read and hashed once
+            routedRows = routedRows
+                    .withColumn(HASH_COLUMN, functions.md5(functions.col(VALUE_COLUMN).cast(DataTypes.BinaryType)))
+                    .withColumn(FINGERPRINT_COLUMN, fingerprintColumn(configs, compactIssues, referenceOutput))
+                    .persist(StorageLevel.MEMORY_AND_DISK());
+        }
+        Dataset<Row> changedRows = routedRows;
+        Dataset<Row> carriedForward = null;
+        if (previousOutput != null) {
+            System.out.println("Carrying forward the results for the resources unchanged since: " + previousOutput);
+            final Dataset<Row> previousManifest = sparkSession.read().parquet(previousOutput + MANIFEST_SUFFIX)
+                    .select(HASH_COLUMN, FINGERPRINT_COLUMN)
+                    .distinct();
+            final String[] joinColumns = {HASH_COLUMN, FINGERPRINT_COLUMN};
+            changedRows = routedRows.join(previousManifest, joinColumns, "left_anti");
+            // only the resources with issues are in the output, the other unchanged resources have nothing to carry forward
+            carriedForward = routedRows.join(previousManifest, joinColumns, "left_semi")
+                    .join(previousIssues(sparkSession.read().parquet(previousOutput)), HASH_COLUMN)
+                    .select(functions.col(VALUE_COLUMN).as(RESOURCE_COLUMN), functions.col(FILENAME_COLUMN), functions.col(ISSUES_COLUMN),
+                            functions.col(SOURCE_COLUMN), functions.col(OFFSET_COLUMN));
+        }
+        final BundleFanOut bundleFanOut = fanOutMinEntries > 0
+                ? BundleFanOut.of(fanOutMinEntries, config.getLanguage(), compactIssues)
+                : null;
+        if (bundleFanOut != null) {
+            System.out.println("Splitting the Bundles with at least: " + fanOutMinEntries + " entries");
+            // the entries are routed by their own profiles
+            changedRows = bundleFanOut.split(changedRows)
+                    .withColumn(ROUTE_COLUMN, functions.when(functions.col(BundleFanOut.ENTRY_COLUMN).geq(0), routeColumn(parsedRoutes))
+                            .otherwise(functions.col(ROUTE_COLUMN)));
+            if (plannedPartitions == 0) {
+                // the entries of a Bundle are in the partition of the Bundle otherwise
+                changedRows = changedRows.repartition(Math.max(changedRows.rdd().getNumPartitions(),
+                        sparkSession.sparkContext().defaultParallelism()));
+            }
+        }
+        if (plannedPartitions > 0) {
+            sparkSession.sparkContext().setJobDescription("Plan partitions: " + inputFile);
+            changedRows = PartitionPlanner.plan(changedRows, plannedPartitions);
+        }
+        final Dataset<ValueWithFile> routedDataset = toValueWithFile(changedRows);
+        final Validator mainValidator = txPrepass
+                ? terminologyPrepass(sparkSession, validator, routedDataset)
+                : validator;
+        if (prewarmSampleSize > 0) {
+            prewarm(sparkSession, mainValidator, routedDataset);
+        }
+        sparkSession.sparkContext().setJobDescription("Validate: " + inputFile);
+        final Dataset<Row> validated;
+        Dataset<ResourceWithIssues> units = null;
+        if (bundleFanOut != null) {
+            // the results of the units are used both for the merged Bundles and for the other resources
+            units = validateUnits(mainValidator, routedDataset).persist(StorageLevel.MEMORY_AND_DISK());
+            final Column isUnit = functions.col(BundleFanOut.BUNDLE_COLUMN).isNotNull();
+            validated = toOutputRows(units.filter(functions.not(isUnit))
+                    .union(bundleFanOut.merge(units.filter(isUnit))));
+        } else {
+            validated = validate(mainValidator, routedDataset);
+        }
+        final Dataset<Row> resourcesWithIssues = carriedForward != null
+                ? withOutputIssues(validated).unionByName(withOutputIssues(carriedForward), true)
+                : withOutputIssues(validated);
+        if (referenceOutput) {
+            toReferenceLayout(resourcesWithIssues).write().mode(SaveMode.Overwrite).parquet(outputFile);
+        } else if (phaseTimes) {
+            resourcesWithIssues.select(RESOURCE_COLUMN, FILENAME_COLUMN, ISSUES_COLUMN, PHASE_TIMES_COLUMN)
+                    .write().mode(SaveMode.Overwrite).parquet(outputFile);
+        } else {
+            resourcesWithIssues.select(RESOURCE_COLUMN, FILENAME_COLUMN, ISSUES_COLUMN)
+                    .write().mode(SaveMode.Overwrite).parquet(outputFile);
+        }
+        if (compactIssues) {
+            writeMessageDictionary(sparkSession, configs);
+        }
+        if (writeManifest || previousOutput != null) {
+            sparkSession.sparkContext().setJobDescription("Write manifest: " + outputFile + MANIFEST_SUFFIX);
+            // the resources with incomplete results (e.g. after a timeout) are validated again by the next run
+            routedRows.select(HASH_COLUMN, FINGERPRINT_COLUMN)
+                    .join(incompleteHashes(sparkSession.read().parquet(outputFile)), new String[]{HASH_COLUMN}, "left_anti")
+                    .write().mode(SaveMode.Overwrite).parquet(outputFile + MANIFEST_SUFFIX);
+            routedRows.unpersist();
+        }
+        sparkSession.sparkContext().setJobDescription(null);
+        if (units != null) {
+            units.unpersist();
+        }
+        if (phaseTimes) {
+            printPhaseTimes(sparkSession);
+        }
+        if (resourceTimeout > 0) {
+            System.out.println("Abandoned resources (timeout): " + validator.abandonedResources.value());
+        }
+        if (resultCacheSize > 0) {
+            System.out.println("Result cache hits: " + validator.resultCacheHits.value() + ", misses: " + validator.resultCacheMisses.value());
+        }
+        mergeTerminologyCache(validator);
         long endTime = System.currentTimeMillis();
+        if (validator.metrics != null) {
+            writeMetrics(sparkSession, validator.metrics.value(), endTime - startTime);
+        }
         System.out.printf("Elapsed time: %.3f s\n", (endTime - startTime) / 1000.0);
     }
 
+    /**
+     * Merges the new entries of the terminology caches of the engines (if collected) into the persistent cache.
+     */
+    private void mergeTerminologyCache(@Nonnull final Validator validator) {
+        if (validator.txCacheEntries != null) {
+            final int added = HL7TerminologyCache.merge(validator.txCacheEntries.value(), new File(txCacheDir));
+            System.out.println("Terminology cache: added " + added + " entries to: " + txCacheDir);
+        }
+    }
+
+    /**
+     * Writes the throughput metrics as json to `&lt;output&gt;_metrics.json`.
+     */
+    @SneakyThrows
+    private void writeMetrics(@Nonnull final SparkSession sparkSession, @Nonnull final ValidationMetrics metrics,
+                              final long elapsedMillis) {
+        final Path metricsPath = new Path(outputFile + METRICS_SUFFIX);
+        System.out.println("Writing metrics to: " + metricsPath);
+        final FileSystem fileSystem = metricsPath.getFileSystem(sparkSession.sparkContext().hadoopConfiguration());
+        try (final OutputStream os = fileSystem.create(metricsPath, true)) {
+            ValidationMetrics.writeReport(metrics.toReport(inputFile, outputFile, elapsedMillis), os);
+        }
+    }
+
+    /**
+     * Validates the resources in the input directory as they arrive, with a streaming query that writes the results
+     * of each micro-batch to the output (with the exactly-once guarantees of the file sink) until it is stopped.
+     * The validation engines stay in the executors between the micro-batches.
+     */
+    @SneakyThrows
+    private void runStreaming(@Nonnull final SparkSession sparkSession, @Nonnull final Validator validator,
+                              @Nonnull final List<Route> parsedRoutes) {
+        final String checkpointLocation = checkpointDir != null ? checkpointDir : outputFile + CHECKPOINT_SUFFIX;
+        System.out.println("Streaming from: " + inputFile + " to: " + outputFile + " with checkpoint: " + checkpointLocation);
+        DataStreamReader reader = sparkSession.readStream()
+                .schema(DataTypes.createStructType(List.of(
+                        DataTypes.createStructField(VALUE_COLUMN, DataTypes.StringType, true))));
+        if (maxFilesPerTrigger > 0) {
+            reader = reader.option("maxFilesPerTrigger", maxFilesPerTrigger);
+        }
+        final Column inputFileName = functions.input_file_name();
+        final Dataset<Row> input = reader.text(inputFile)
+                .withColumn(FILENAME_COLUMN, functions.coalesce(
+                        functions.udf((UDF1<String, String>) ValidateApp::filenamePartition, DataTypes.StringType).apply(inputFileName),
+                        functions.lit(inputFile)))
+                .withColumn(SOURCE_COLUMN, functions.lit(null).cast(DataTypes.StringType))
+                .withColumn(OFFSET_COLUMN, functions.lit(null).cast(DataTypes.LongType))
+                .withColumn(ROUTE_COLUMN, routeColumn(parsedRoutes));
+        if (compactIssues) {
+            writeMessageDictionary(sparkSession, validator.configs);
+        }
+        final StreamingQuery query = withOutputIssues(validate(validator, toValueWithFile(input)))
+                .select(RESOURCE_COLUMN, FILENAME_COLUMN, ISSUES_COLUMN)
+                .writeStream()
+                .format("parquet")
+                .option("checkpointLocation", checkpointLocation)
+                .trigger(parseTrigger(trigger))
+                .queryName("Validate: " + inputFile)
+                .start(outputFile);
+        query.awaitTermination();
+        mergeTerminologyCache(validator);
+        final StreamingQueryProgress lastProgress = query.lastProgress();
+        if (lastProgress != null) {
+            System.out.println("Last micro-batch: " + lastProgress.batchId() + ", input rows: " + lastProgress.numInputRows());
+        }
+    }
+
+    @Nonnull
+    static Trigger parseTrigger(@Nonnull final String trigger) {
+        return AVAILABLE_NOW_TRIGGER.equals(trigger)
+                ? Trigger.AvailableNow()
+                : Trigger.ProcessingTime(trigger);
+    }
+
+    /**
+     * Gets the `filename` from the hive style partition in the path of an input file.
+     */
+    @Nullable
+    static String filenamePartition(@Nonnull final String path) {
+        final Matcher partition = FILENAME_PARTITION.matcher(path);
+        return partition.find()
+                ? ExternalCatalogUtils.unescapePathName(partition.group(1))
+                : null;
+    }
+
+    @Nonnull
+    private static Dataset<ValueWithFile> toValueWithFile(@Nonnull final Dataset<Row> rows) {
+        final boolean isSplit = Arrays.asList(rows.columns()).contains(BundleFanOut.BUNDLE_COLUMN);
+        return rows
+                .select(functions.col(VALUE_COLUMN).cast(DataTypes.BinaryType).as(VALUE_COLUMN),
+                        functions.col(FILENAME_COLUMN), functions.col(ROUTE_COLUMN),
+                        functions.col(SOURCE_COLUMN), functions.col(OFFSET_COLUMN),
+                        isSplit ? functions.col(BundleFanOut.BUNDLE_COLUMN) : functions.lit(null).cast(DataTypes.LongType).as(BundleFanOut.BUNDLE_COLUMN),
+                        isSplit ? functions.col(BundleFanOut.ENTRY_COLUMN) : functions.lit(null).cast(DataTypes.IntegerType).as(BundleFanOut.ENTRY_COLUMN))
+                .as(Encoders.bean(ValueWithFile.class));
+    }
+
+    @Nonnull
+    private static Dataset<Row> validate(@Nonnull final Validator validator, @Nonnull final Dataset<ValueWithFile> dataset) {
+        return toOutputRows(validateUnits(validator, dataset));
+    }
+
+    /**
+     * Removes the parameters of the messages from the issues, unless the issues are compacted.
+     */
+    @Nonnull
+    private Dataset<Row> withOutputIssues(@Nonnull final Dataset<Row> rows) {
+        final StructType issueType = (StructType) ((ArrayType) rows.schema().apply(ISSUES_COLUMN).dataType()).elementType();
+        if (compactIssues || !Arrays.asList(issueType.fieldNames()).contains(PARAMS_FIELD)) {
+            return rows;
+        }
+        return rows.withColumn(ISSUES_COLUMN, functions.transform(functions.col(ISSUES_COLUMN), issue -> functions.struct(
+                Stream.of(issueType.fieldNames())
+                        .filter(field -> !PARAMS_FIELD.equals(field))
+                        .map(field -> issue.getField(field).as(field))
+                        .toArray(Column[]::new))));
+    }
+
+    @Nonnull
+    private static Dataset<ResourceWithIssues> validateUnits(@Nonnull final Validator validator, @Nonnull final Dataset<ValueWithFile> dataset) {
+        return dataset.mapPartitions(validator::validatePartition, Encoders.bean(ResourceWithIssues.class));
+    }
+
+    @Nonnull
+    private static Dataset<Row> toOutputRows(@Nonnull final Dataset<ResourceWithIssues> results) {
+        return results.toDF()
+                .withColumn(RESOURCE_COLUMN, functions.col(RESOURCE_COLUMN).cast(DataTypes.StringType))
+                .select(RESOURCE_COLUMN, FILENAME_COLUMN, ISSUES_COLUMN, SOURCE_COLUMN, OFFSET_COLUMN, PHASE_TIMES_COLUMN);
+    }
+
+    /**
+     * Prints the phase times of the validated resources in the output, summed by the resource type and
+     * the first profile (the costliest first).
+     */
+    private void printPhaseTimes(@Nonnull final SparkSession sparkSession) {
+        final Dataset<Row> output = sparkSession.read().parquet(outputFile);
+        final List<Column> sums = new ArrayList<>();
+        sums.add(functions.count(functions.col(PHASE_TIMES_COLUMN)).as("resources"));
+        for (final String phase : output.select(PHASE_TIMES_COLUMN + ".*").columns()) {
+            sums.add(functions.round(functions.sum(functions.col(PHASE_TIMES_COLUMN).getField(phase)), 1).as(phase));
+        }
+        System.out.println("Phase times by resource type and profile:");
+        output.groupBy(
+                        functions.get_json_object(functions.col(RESOURCE_COLUMN), "$.resourceType").as(RESOURCE_TYPE_COLUMN),
+                        functions.get_json_object(functions.col(RESOURCE_COLUMN), "$.meta.profile[0]").as("profile"))
+                .agg(sums.get(0), sums.subList(1, sums.size()).toArray(Column[]::new))
+                .orderBy(functions.col("totalMillis").desc())
+                .show(PHASE_TIMES_SUMMARY_ROWS, false);
+    }
+
+    /**
+     * Validates a single resource for each distinct coding of the input (see {@link TerminologyPrepass}), which sends
+     * each distinct terminology request to the server once, and broadcasts the collected terminology cache entries
+     * to preload the engines of the validation job, so that they answer the terminology checks from memory.
+     *
+     * @return the validator for the validation job
+     */
+    @Nonnull
+    private Validator terminologyPrepass(@Nonnull final SparkSession sparkSession, @Nonnull final Validator validator,
+                                         @Nonnull final Dataset<ValueWithFile> dataset) {
+        final long startTime = System.currentTimeMillis();
+        sparkSession.sparkContext().setJobDescription("Terminology pre-pass: " + inputFile);
+        final long resources = validateUnits(validator, TerminologyPrepass.representatives(dataset)).count();
+        // a copy, as the accumulator keeps collecting the entries in the validation job
+        final HL7TerminologyCache.Entries entries = new HL7TerminologyCache.Entries();
+        entries.merge(Objects.requireNonNull(validator.txCacheEntries).value());
+        System.out.printf("Terminology pre-pass: collected %d cache entries from %d resources in: %.3f s\n",
+                entries.size(), resources, (System.currentTimeMillis() - startTime) / 1000.0);
+        resetCounters(validator);
+        return validator.withTxCachePreload(new JavaSparkContext(sparkSession.sparkContext()).broadcast(entries));
+    }
+
+    /**
+     * Runs a job with one task per core, which creates the validation engines and validates a sample
+     * of the input in each task, so that the validation job starts on warm executors.
+     */
+    private void prewarm(@Nonnull final SparkSession sparkSession, @Nonnull final Validator validator,
+                         @Nonnull final Dataset<ValueWithFile> dataset) {
+        final long startTime = System.currentTimeMillis();
+        final List<ValueWithFile> sample = new ArrayList<>(dataset.limit(prewarmSampleSize).collectAsList());
+        final int parallelism = sparkSession.sparkContext().defaultParallelism();
+        System.out.println("Pre-warming validation engines with: " + sample.size() + " resources in: " + parallelism + " tasks");
+        sparkSession.sparkContext().setJobDescription("Pre-warm validation engines");
+        // the tasks are scheduled on any free slots, so some executors may run several of them and others none
+        final List<String> warmedThreads = new JavaSparkContext(sparkSession.sparkContext())
+                .parallelize(IntStream.range(0, parallelism).boxed().collect(Collectors.toList()), parallelism)
+                .mapPartitions(ignored -> List.of(validator.warmUp(sample)).iterator())
+                .collect();
+        final long warmedExecutors = warmedThreads.stream().map(thread -> thread.substring(0, thread.indexOf('/'))).distinct().count();
+        // the driver is listed with the executors, unless running in the local mode
+        final int executors = Math.max(1, sparkSession.sparkContext().statusTracker().getExecutorInfos().length - 1);
+        System.out.println("Pre-warmed validation engines in: " + warmedThreads.stream().distinct().count() + " threads of: "
+                + warmedExecutors + "/" + executors + " executors");
+        resetCounters(validator);
+        System.out.printf("Warm-up time: %.3f s\n", (System.currentTimeMillis() - startTime) / 1000.0);
+    }
+
+    /**
+     * Resets the counters of the validator, to only count the results of the validation job.
+     */
+    private static void resetCounters(@Nonnull final Validator validator) {
+        validator.resultCacheHits.reset();
+        validator.resultCacheMisses.reset();
+        validator.abandonedResources.reset();
+        if (validator.metrics != null) {
+            validator.metrics.reset();
+        }
+    }
+
+    @Nonnull
+    private static Column routeColumn(@Nonnull final List<Route> routes) {
+        if (routes.isEmpty()) {
+            return functions.lit(0);
+        }
+        final Column profiles = functions.from_json(
+                functions.get_json_object(functions.col(VALUE_COLUMN), "$.meta.profile"),
+                DataTypes.createArrayType(DataTypes.StringType));
+        Column route = functions.when(routes.get(0).matches(profiles), 1);
+        for (int i = 1; i < routes.size(); i++) {
+            route = route.when(routes.get(i).matches(profiles), i + 1);
+        }
+        return route.otherwise(0);
+    }
+
+    /**
+     * The fingerprint of the configuration each resource is validated with, so that the results of a previous
+     * run are only carried forward if the resource was validated with the same configuration.
+     */
+    @Nonnull
+    private static Column fingerprintColumn(@Nonnull final List<HL7ValidationConfig> configs, final boolean compactIssues,
+                                            final boolean referenceOutput) {
+        // the issues of the compact output cannot be carried forward to the full one (and vice versa)
+        final String outputMode = (compactIssues ? ":compact" : "") + (referenceOutput ? ":reference" : "");
+        return functions.element_at(
+                functions.array(configs.stream().map(c -> functions.lit(c.fingerprint() + outputMode)).toArray(Column[]::new)),
+                functions.col(ROUTE_COLUMN).plus(1));
+    }
+
+    /**
+     * Reads the lines of the input files with the paths of the files and the byte offsets of the lines,
+     * and with the `filename` from the hive style partitioning of the input directory (if present).
+     */
+    @Nonnull
+    private Dataset<Row> readWithOffsets(@Nonnull final SparkSession sparkSession) {
+        final JavaSparkContext sparkContext = new JavaSparkContext(sparkSession.sparkContext());
+        final Configuration configuration = new Configuration(sparkContext.hadoopConfiguration());
+        configuration.setBoolean(FileInputFormat.INPUT_DIR_RECURSIVE, true);
+        final String defaultFilename = inputFile;
+        final JavaRDD<Row> rows = ((JavaNewHadoopRDD<LongWritable, Text>) sparkContext.newAPIHadoopFile(inputFile,
+                TextInputFormat.class, LongWritable.class, Text.class, configuration))
+                .mapPartitionsWithInputSplit((split, lines) -> {
+                    final String source = ((FileSplit) split).getPath().toString();
+                    final String filename = Optional.ofNullable(filenamePartition(source)).orElse(defaultFilename);
+                    return Streams.streamOf(lines)
+                            .map(line -> RowFactory.create(line._2().toString(), filename, source, line._1().get()))
+                            .iterator();
+                }, true);
+        return sparkSession.createDataFrame(rows, DataTypes.createStructType(List.of(
+                DataTypes.createStructField(VALUE_COLUMN, DataTypes.StringType, false),
+                DataTypes.createStructField(FILENAME_COLUMN, DataTypes.StringType, false),
+                DataTypes.createStructField(SOURCE_COLUMN, DataTypes.StringType, false),
+                DataTypes.createStructField(OFFSET_COLUMN, DataTypes.LongType, false))));
+    }
+
+    /**
+     * Converts the resources with issues to one row per issue with the reference to the resource in the input.
+     */
+    @Nonnull
+    private static Dataset<Row> toReferenceLayout(@Nonnull final Dataset<Row> resourcesWithIssues) {
+        final Column resource = functions.col(RESOURCE_COLUMN);
+        return resourcesWithIssues
+                .select(functions.col(FILENAME_COLUMN), functions.col(SOURCE_COLUMN), functions.col(OFFSET_COLUMN),
+                        functions.get_json_object(resource, "$.resourceType").as(RESOURCE_TYPE_COLUMN),
+                        functions.get_json_object(resource, "$.id").as(ID_COLUMN),
+                        functions.md5(resource.cast(DataTypes.BinaryType)).as(HASH_COLUMN),
+                        functions.explode(functions.col(ISSUES_COLUMN)).as(ISSUE_COLUMN))
+                .select(FILENAME_COLUMN, SOURCE_COLUMN, OFFSET_COLUMN, RESOURCE_TYPE_COLUMN, ID_COLUMN, HASH_COLUMN, ISSUE_COLUMN + ".*");
+    }
+
+    /**
+     * Gets the issues of the resources in a previous output (in either layout) by the content hash of the resources.
+     */
+    @Nonnull
+    private static Dataset<Row> previousIssues(@Nonnull final Dataset<Row> previousOutput) {
+        if (Arrays.asList(previousOutput.columns()).contains(ISSUES_COLUMN)) {
+            return previousOutput
+                    .withColumn(HASH_COLUMN, functions.md5(functions.col(RESOURCE_COLUMN).cast(DataTypes.BinaryType)))
+                    .select(HASH_COLUMN, ISSUES_COLUMN)
+                    .dropDuplicates(HASH_COLUMN);
+        } else {
+            // the issues of a single occurrence of each resource in the reference layout
+            final List<String> referenceColumns = List.of(FILENAME_COLUMN, SOURCE_COLUMN, OFFSET_COLUMN,
+                    RESOURCE_TYPE_COLUMN, ID_COLUMN, HASH_COLUMN);
+            final Column issue = functions.struct(Stream.of(previousOutput.columns())
+                    .filter(c -> !referenceColumns.contains(c))
+                    .map(functions::col)
+                    .toArray(Column[]::new));
+            return previousOutput
+                    .groupBy(HASH_COLUMN, SOURCE_COLUMN, OFFSET_COLUMN)
+                    .agg(functions.collect_list(issue).as(ISSUES_COLUMN))
+                    .dropDuplicates(HASH_COLUMN)
+                    .select(HASH_COLUMN, ISSUES_COLUMN);
+        }
+    }
+
+    /**
+     * Gets the content hashes of the resources with {@link ValidationResult#isIncomplete incomplete} issues
+     * in the output (in either layout).
+     */
+    @Nonnull
+    private static Dataset<Row> incompleteHashes(@Nonnull final Dataset<Row> output) {
+        final UserDefinedFunction isIncomplete = functions.udf((UDF3<String, String, String, Boolean>) (level, type, messageId) ->
+                ValidationResult.isIncomplete(ValidationResult.Issue.builder().level(level).type(type).messageId(messageId).build()),
+                DataTypes.BooleanType);
+        final Dataset<Row> issues = Arrays.asList(output.columns()).contains(ISSUES_COLUMN)
+                ? output.select(functions.md5(functions.col(RESOURCE_COLUMN).cast(DataTypes.BinaryType)).as(HASH_COLUMN),
+                        functions.explode(functions.col(ISSUES_COLUMN)).as(ISSUE_COLUMN))
+                .select(HASH_COLUMN, ISSUE_COLUMN + ".*")
+                : output;
+        return issues.where(isIncomplete.apply(functions.col("level"), functions.col("type"), functions.col(MESSAGE_ID_COLUMN)))
+                .select(HASH_COLUMN)
+                .distinct();
+    }
+
+    /**
+     * Writes the templates of the compact issues in the languages of the configurations to `&lt;output&gt;_messages`.
+     */
+    private void writeMessageDictionary(@Nonnull final SparkSession sparkSession, @Nonnull final List<HL7ValidationConfig> configs) {
+        final List<Row> rows = new ArrayList<>();
+        configs.stream().map(HL7ValidationConfig::getLanguage).distinct().forEach(language ->
+                HL7MessageResolver.getTemplates(language).forEach((messageId, template) ->
+                        rows.add(RowFactory.create(language, messageId, template))));
+        final StructType schema = DataTypes.createStructType(List.of(
+                DataTypes.createStructField(LANGUAGE_COLUMN, DataTypes.StringType, true),
+                DataTypes.createStructField(MESSAGE_ID_COLUMN, DataTypes.StringType, false),
+                DataTypes.createStructField(TEMPLATE_COLUMN, DataTypes.StringType, false)));
+        System.out.println("Writing message dictionary to: " + outputFile + MESSAGES_SUFFIX);
+        sparkSession.createDataFrame(rows, schema)
+                .coalesce(1)
+                .write().mode(SaveMode.Overwrite).parquet(outputFile + MESSAGES_SUFFIX);
+    }
+
+    @Nullable
+    private String prepareEngineSnapshot(@Nonnull final SparkSession sparkSession, @Nonnull final HL7ValidationConfig config) {
+        if (engineSnapshotDir == null) {
+            return null;
+        }
+        final File snapshotFile = new File(engineSnapshotDir, HL7EngineSnapshot.fileName(config));
+        if (snapshotFile.isFile()) {
+            System.out.println("Using engine snapshot: " + snapshotFile);
+        } else {
+            System.out.println("Creating engine snapshot: " + snapshotFile);
+            HL7EngineSnapshot.create(config, snapshotFile);
+        }
+        sparkSession.sparkContext().addFile(snapshotFile.getAbsolutePath());
+        return snapshotFile.getName();
+    }
+
     static int execute(String[] args) {
         return new CommandLine(new ValidateApp()).execute(args);
     }
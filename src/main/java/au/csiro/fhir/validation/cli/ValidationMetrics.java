@@ -0,0 +1,287 @@
+package au.csiro.fhir.validation.cli;
+
+import au.csiro.fhir.validation.ValidationResult;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import lombok.Getter;
+import org.apache.spark.util.AccumulatorV2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * The throughput metrics of a validation run, collected in the executors with an {@link Accumulator}
+ * and written as a json report next to the output.
+ * <p>
+ * The metrics count the validated units (i.e. the resources, or the entries and shells of the split Bundles):
+ * their number and size, the number of the issues by level and message id, the histograms of the validation
+ * latency by resource type and the time spent creating the validation engines in each executor.
+ * The resources of a batch are validated together, so the latency of a resource is estimated as the share
+ * of the time of its batch proportional to its size (it is measured exactly with a batch size of 1).
+ * <p>
+ * The metrics are added to the accumulator in the validation (a transformation), not in an action, so Spark does not
+ * guarantee that they are added exactly once: the resources of the tasks that are re-executed (e.g. after the loss
+ * of an executor, or speculatively) are counted again, so the counts may exceed the number of resources in the input.
+ */
+@Getter
+class ValidationMetrics implements Serializable {
+
+    /**
+     * The upper bounds of the buckets of the latency histograms in milliseconds (the last bucket is unbounded).
+     */
+    static final long[] LATENCY_BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
+    /**
+     * The key of the resources with an unknown type and of the issues without a message id.
+     */
+    static final String UNKNOWN = "unknown";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * A histogram of the validation latency.
+     */
+    @Getter
+    static class LatencyHistogram implements Serializable {
+        private long count;
+        private double totalMillis;
+        private double maxMillis;
+        private final long[] buckets = new long[LATENCY_BOUNDS_MILLIS.length + 1];
+
+        void record(final double millis) {
+            int bucket = 0;
+            while (bucket < LATENCY_BOUNDS_MILLIS.length && millis > LATENCY_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket]++;
+            count++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+        }
+
+        void merge(@Nonnull final LatencyHistogram other) {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] += other.buckets[i];
+            }
+            count += other.count;
+            totalMillis += other.totalMillis;
+            maxMillis = Math.max(maxMillis, other.maxMillis);
+        }
+
+        @Nonnull
+        Map<String, Object> toReport() {
+            final Map<String, Object> report = new LinkedHashMap<>();
+            report.put("count", count);
+            report.put("totalMillis", totalMillis);
+            report.put("meanMillis", count > 0 ? totalMillis / count : 0.0);
+            report.put("maxMillis", maxMillis);
+            report.put("buckets", LongStream.of(buckets).boxed().collect(Collectors.toList()));
+            return report;
+        }
+    }
+
+    /**
+     * Collects the metrics of the tasks. The batches of a task may be validated by multiple threads,
+     * so the metrics of each batch are added in a single synchronized step.
+     */
+    static class Accumulator extends AccumulatorV2<ValidationMetrics, ValidationMetrics> {
+
+        @Nonnull
+        private ValidationMetrics metrics = new ValidationMetrics();
+
+        @Override
+        public synchronized boolean isZero() {
+            return metrics.isEmpty();
+        }
+
+        @Override
+        public synchronized Accumulator copy() {
+            final Accumulator copy = new Accumulator();
+            copy.metrics.merge(metrics);
+            return copy;
+        }
+
+        @Override
+        public synchronized void reset() {
+            metrics = new ValidationMetrics();
+        }
+
+        @Override
+        public synchronized void add(@Nonnull final ValidationMetrics v) {
+            metrics.merge(v);
+        }
+
+        @Override
+        public synchronized void merge(@Nonnull final AccumulatorV2<ValidationMetrics, ValidationMetrics> other) {
+            metrics.merge(other.value());
+        }
+
+        @Override
+        public synchronized ValidationMetrics value() {
+            return metrics;
+        }
+    }
+
+    private long resources;
+    private long resourcesWithIssues;
+    private long bytes;
+    private final Map<String, Long> issuesByLevel = new TreeMap<>();
+    private final Map<String, Long> issuesByMessageId = new TreeMap<>();
+    private final Map<String, LatencyHistogram> latencyByResourceType = new TreeMap<>();
+
+    /**
+     * The time spent creating the engines in each executor JVM (since its start).
+     */
+    private final Map<String, Long> engineInitMillisByExecutor = new TreeMap<>();
+
+    /**
+     * Records the validation of a resource.
+     *
+     * @param resource the resource
+     * @param result the validation result
+     * @param millis the (estimated) validation time in milliseconds
+     */
+    void record(@Nonnull final byte[] resource, @Nonnull final ValidationResult result, final double millis) {
+        resources++;
+        bytes += resource.length;
+        if (!result.getIssues().isEmpty()) {
+            resourcesWithIssues++;
+        }
+        for (final ValidationResult.Issue issue : result.getIssues()) {
+            issuesByLevel.merge(issue.getLevel(), 1L, Long::sum);
+            issuesByMessageId.merge(issue.getMessageId() != null ? issue.getMessageId() : UNKNOWN, 1L, Long::sum);
+        }
+        final String resourceType = resourceTypeOf(resource);
+        latencyByResourceType.computeIfAbsent(resourceType != null ? resourceType : UNKNOWN, k -> new LatencyHistogram())
+                .record(millis);
+    }
+
+    /**
+     * Records the time spent creating the engines in an executor, which is cumulative so the latest
+     * (i.e. the largest) value is kept.
+     *
+     * @param executorId the id of the executor
+     * @param millis the engine initialization time in milliseconds
+     */
+    void recordEngineInit(@Nonnull final String executorId, final long millis) {
+        engineInitMillisByExecutor.merge(executorId, millis, Math::max);
+    }
+
+    void merge(@Nonnull final ValidationMetrics other) {
+        resources += other.resources;
+        resourcesWithIssues += other.resourcesWithIssues;
+        bytes += other.bytes;
+        other.issuesByLevel.forEach((k, v) -> issuesByLevel.merge(k, v, Long::sum));
+        other.issuesByMessageId.forEach((k, v) -> issuesByMessageId.merge(k, v, Long::sum));
+        other.latencyByResourceType.forEach((k, v) -> latencyByResourceType.computeIfAbsent(k, key -> new LatencyHistogram()).merge(v));
+        other.engineInitMillisByExecutor.forEach(this::recordEngineInit);
+    }
+
+    boolean isEmpty() {
+        return resources == 0 && engineInitMillisByExecutor.isEmpty();
+    }
+
+    /**
+     * Creates the report of the run.
+     *
+     * @param input the input of the run
+     * @param output the output of the run
+     * @param elapsedMillis the elapsed time of the run in milliseconds
+     * @return the report, to be serialized as json
+     */
+    @Nonnull
+    Map<String, Object> toReport(@Nonnull final String input, @Nonnull final String output, final long elapsedMillis) {
+        final double elapsedSeconds = Math.max(elapsedMillis, 1) / 1000.0;
+        final Map<String, Object> report = new LinkedHashMap<>();
+        report.put("input", input);
+        report.put("output", output);
+        report.put("elapsedMillis", elapsedMillis);
+        report.put("resources", resources);
+        report.put("resourcesWithIssues", resourcesWithIssues);
+        report.put("bytes", bytes);
+        report.put("resourcesPerSecond", resources / elapsedSeconds);
+        report.put("bytesPerSecond", bytes / elapsedSeconds);
+        report.put("issuesByLevel", issuesByLevel);
+        report.put("issuesByMessageId", issuesByMessageId);
+        report.put("latencyBoundsMillis", LongStream.of(LATENCY_BOUNDS_MILLIS).boxed().collect(Collectors.toList()));
+        report.put("latencyByResourceType", latencyByResourceType.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().toReport(), (a, b) -> a, TreeMap::new)));
+        report.put("engineInitMillisByExecutor", engineInitMillisByExecutor);
+        return report;
+    }
+
+    /**
+     * Writes the report (see {@link #toReport(String, String, long)}) as json.
+     *
+     * @param report the report
+     * @param os the stream to write to
+     */
+    static void writeReport(@Nonnull final Map<String, Object> report, @Nonnull final OutputStream os) throws IOException {
+        try (final JsonGenerator generator = JSON_FACTORY.createGenerator(os)) {
+            generator.useDefaultPrettyPrinter();
+            writeValue(generator, report);
+        }
+    }
+
+    private static void writeValue(@Nonnull final JsonGenerator generator, @Nullable final Object value) throws IOException {
+        if (value instanceof Map) {
+            generator.writeStartObject();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                generator.writeFieldName(String.valueOf(entry.getKey()));
+                writeValue(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        } else if (value instanceof List) {
+            generator.writeStartArray();
+            for (final Object element : (List<?>) value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        } else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        } else if (value instanceof Double) {
+            generator.writeNumber((Double) value);
+        } else if (value != null) {
+            generator.writeString(value.toString());
+        } else {
+            generator.writeNull();
+        }
+    }
+
+    /**
+     * Reads the `resourceType` of a json resource, skipping the other (nested) elements.
+     *
+     * @param resource the resource
+     * @return the resource type, or null if the resource is not a json object with a `resourceType`
+     */
+    @Nullable
+    static String resourceTypeOf(@Nonnull final byte[] resource) {
+        try (final JsonParser parser = JSON_FACTORY.createParser(resource)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("resourceType".equals(field)) {
+                    return value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } catch (final IOException ex) {
+            return null;
+        }
+    }
+}
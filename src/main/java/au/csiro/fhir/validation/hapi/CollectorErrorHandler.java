@@ -53,6 +53,19 @@ public class CollectorErrorHandler implements IParserErrorHandler {
         return new ValidationResult(issues);
     }
 
+    /**
+     * Returns the issues collected so far and clears them, so that the handler can be reused
+     * for the next resource.
+     *
+     * @return the validation result with the collected issues
+     */
+    @Nonnull
+    public ValidationResult drainValidationResult() {
+        final ValidationResult result = new ValidationResult(new ArrayList<>(issues));
+        issues.clear();
+        return result;
+    }
+
     @Override
     public void containedResourceWithNoId(IParseLocation theLocation) {
         addError(Msg.code(1819), "Resource has contained child resource with no ID", theLocation);
@@ -11,7 +11,9 @@ import lombok.AllArgsConstructor;
 
 import javax.annotation.Nonnull;
 import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @AllArgsConstructor(access = AccessLevel.PRIVATE)
@@ -24,16 +26,37 @@ public class HapiValidationService implements ValidationService {
 
     @Override
     @Nonnull
-    public ValidationResult validateJson(@Nonnull final byte[] data) {
+    public ValidationResult validateJson(@Nonnull final byte[] data, final int offset, final int length) {
         try {
             final CollectorErrorHandler errorHandler = new CollectorErrorHandler();
-            new JsonParser(fhirContext, errorHandler).parseResource(new ByteArrayInputStream(data));
+            new JsonParser(fhirContext, errorHandler).parseResource(new ByteArrayInputStream(data, offset, length));
             return errorHandler.toValidationResult();
         } catch (DataFormatException e) {
             return ValidationResult.fromException(e);
         }
     }
 
+    /**
+     * Validates the batch with a single parser and error handler.
+     */
+    @Override
+    @Nonnull
+    public List<ValidationResult> validateBatch(@Nonnull final List<byte[]> batch) {
+        final CollectorErrorHandler errorHandler = new CollectorErrorHandler();
+        final JsonParser parser = new JsonParser(fhirContext, errorHandler);
+        final List<ValidationResult> results = new ArrayList<>(batch.size());
+        for (final byte[] data : batch) {
+            try {
+                parser.parseResource(new ByteArrayInputStream(data));
+                results.add(errorHandler.drainValidationResult());
+            } catch (DataFormatException e) {
+                errorHandler.drainValidationResult();
+                results.add(ValidationResult.fromException(e));
+            }
+        }
+        return results;
+    }
+
     @Nonnull
     public static HapiValidationService getOrCreate(@Nonnull final FhirVersionEnum version) {
         return new HapiValidationService(LOCAL.get().computeIfAbsent(version, FhirContext::new));
@@ -0,0 +1,248 @@
+package au.csiro.fhir.validation.hl7;
+
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.Coding;
+import org.hl7.fhir.r5.model.Enumerations;
+import org.hl7.fhir.r5.terminologies.providers.SpecialCodeSystem;
+import org.hl7.fhir.validation.ValidationEngine;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bulk code lists (e.g. the LOINC or ICD codes exported to CSV) loaded into the validation engines as local code
+ * systems, so that the codes and their displays are validated in memory, without a terminology server.
+ * <p>
+ * A code list is specified as {@code <system>[|<version>]=<file>[,<code column>[,<display column>]]}, where the file is
+ * a CSV file with a header row and the code and display columns default to {@code code} and {@code display}.
+ * It is registered in the engine as a complete CodeSystem without concepts, and the HL7 validator looks the codes up
+ * in a compact sorted index (shared by the engines of a JVM), in the same way as for its own special code systems.
+ * The value sets with the whole code system or some of its codes are then checked locally too.
+ * The CodeSystem and ValueSet resources in the loaded packages are validated locally by the HL7 validator itself.
+ */
+@Slf4j
+@UtilityClass
+public class HL7CodeLists {
+
+    private static final String SPECIAL_CODE_SYSTEM = "tx.cs.special";
+    private static final String DEFAULT_CODE_COLUMN = "code";
+    private static final String DEFAULT_DISPLAY_COLUMN = "display";
+    private static final Pattern SPEC_PATTERN = Pattern.compile("([^|=]+)(?:\\|([^=]+))?=([^,]+)(?:,([^,]+))?(?:,([^,]+))?");
+
+    /**
+     * The indexes of the code lists loaded in this JVM by their specifications and the size and modification time
+     * of their files, so that a file changed at the same path is read again.
+     */
+    private static final Map<String, CodeListIndex> INDEXES = new ConcurrentHashMap<>();
+
+    /**
+     * The specification of a code list.
+     */
+    @Value
+    static class CodeList {
+        @Nonnull
+        String system;
+        @Nullable
+        String version;
+        @Nonnull
+        String file;
+        @Nonnull
+        String codeColumn;
+        @Nonnull
+        String displayColumn;
+
+        /**
+         * Parses a code list specification of the form:
+         * {@code <system>[|<version>]=<file>[,<code column>[,<display column>]]}.
+         *
+         * @param spec the specification
+         * @return the parsed code list
+         */
+        @Nonnull
+        static CodeList parse(@Nonnull final String spec) {
+            final Matcher matcher = SPEC_PATTERN.matcher(spec);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid code list: " + spec +
+                        ", expected: <system>[|<version>]=<file>[,<code column>[,<display column>]]");
+            }
+            return new CodeList(matcher.group(1), matcher.group(2), matcher.group(3),
+                    matcher.group(4) != null ? matcher.group(4) : DEFAULT_CODE_COLUMN,
+                    matcher.group(5) != null ? matcher.group(5) : DEFAULT_DISPLAY_COLUMN);
+        }
+    }
+
+    /**
+     * The codes and displays of a code list, sorted by the code.
+     */
+    static class CodeListIndex extends SpecialCodeSystem {
+
+        @Nonnull
+        private final String[] codes;
+
+        @Nonnull
+        private final String[] displays;
+
+        private CodeListIndex(@Nonnull final String[] codes, @Nonnull final String[] displays) {
+            this.codes = codes;
+            this.displays = displays;
+        }
+
+        @Override
+        @Nullable
+        public CodeSystem.ConceptDefinitionComponent findConcept(@Nonnull final Coding coding) {
+            final int index = coding.hasCode() ? Arrays.binarySearch(codes, coding.getCode()) : -1;
+            return index >= 0
+                    ? new CodeSystem.ConceptDefinitionComponent(codes[index]).setDisplay(displays[index])
+                    : null;
+        }
+
+        int size() {
+            return codes.length;
+        }
+
+        /**
+         * Reads the index from the CSV file of the code list. The first of the duplicate codes is kept.
+         */
+        @Nonnull
+        @SneakyThrows
+        static CodeListIndex read(@Nonnull final CodeList codeList) {
+            final List<String[]> entries = new ArrayList<>();
+            try (final BufferedReader reader = Files.newBufferedReader(Path.of(codeList.getFile()), StandardCharsets.UTF_8)) {
+                final List<String> header = readRecord(reader);
+                if (header == null) {
+                    throw new IllegalArgumentException("Empty code list file: " + codeList.getFile());
+                }
+                // the byte order mark of the files exported from spreadsheets
+                if (!header.isEmpty() && header.get(0).startsWith("\uFEFF")) {
+                    header.set(0, header.get(0).substring(1));
+                }
+                final int codeIndex = header.indexOf(codeList.getCodeColumn());
+                final int displayIndex = header.indexOf(codeList.getDisplayColumn());
+                if (codeIndex < 0) {
+                    throw new IllegalArgumentException("Column: " + codeList.getCodeColumn() + " not found in: " + codeList.getFile());
+                }
+                List<String> record;
+                while ((record = readRecord(reader)) != null) {
+                    if (codeIndex < record.size() && !record.get(codeIndex).isEmpty()) {
+                        final String display = displayIndex >= 0 && displayIndex < record.size() && !record.get(displayIndex).isEmpty()
+                                ? record.get(displayIndex)
+                                : null;
+                        entries.add(new String[]{record.get(codeIndex), display});
+                    }
+                }
+            }
+            // stable, so that the first of the duplicates is kept
+            entries.sort(Comparator.comparing(entry -> entry[0]));
+            final List<String> codes = new ArrayList<>(entries.size());
+            final List<String> displays = new ArrayList<>(entries.size());
+            for (final String[] entry : entries) {
+                if (codes.isEmpty() || !codes.get(codes.size() - 1).equals(entry[0])) {
+                    codes.add(entry[0]);
+                    displays.add(entry[1]);
+                }
+            }
+            return new CodeListIndex(codes.toArray(String[]::new), displays.toArray(String[]::new));
+        }
+    }
+
+    /**
+     * Loads the code lists into the engine.
+     *
+     * @param engine the engine to load the code lists into
+     * @param codeLists the specifications of the code lists
+     */
+    @SneakyThrows
+    public static void load(@Nonnull final ValidationEngine engine, @Nonnull final List<String> codeLists) {
+        for (int i = 0; i < codeLists.size(); i++) {
+            final String spec = codeLists.get(i);
+            final CodeList codeList = CodeList.parse(spec);
+            final File file = new File(codeList.getFile());
+            final String key = spec + "|" + file.length() + "|" + file.lastModified();
+            // the indexes of the previous versions of the file are no longer needed
+            INDEXES.keySet().removeIf(existing -> existing.startsWith(spec + "|") && !existing.equals(key));
+            final CodeListIndex index = INDEXES.computeIfAbsent(key, k -> {
+                final long startTime = System.currentTimeMillis();
+                final CodeListIndex newIndex = CodeListIndex.read(codeList);
+                log.info("Loaded code list: {} with {} codes in {} ms", spec, newIndex.size(), System.currentTimeMillis() - startTime);
+                return newIndex;
+            });
+            engine.getContext().cacheResource(toCodeSystem(codeList, index, i));
+        }
+    }
+
+    @Nonnull
+    private static CodeSystem toCodeSystem(@Nonnull final CodeList codeList, @Nonnull final CodeListIndex index, final int id) {
+        final CodeSystem codeSystem = new CodeSystem();
+        codeSystem.setId("code-list-" + id);
+        codeSystem.setUrl(codeList.getSystem());
+        codeSystem.setVersion(codeList.getVersion());
+        codeSystem.setName("CodeList" + id);
+        codeSystem.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        codeSystem.setContent(Enumerations.CodeSystemContentMode.COMPLETE);
+        codeSystem.setCaseSensitive(true);
+        codeSystem.setCount(index.size());
+        codeSystem.setUserData(SPECIAL_CODE_SYSTEM, index);
+        return codeSystem;
+    }
+
+    /**
+     * Reads a record of a CSV file (RFC 4180), with the quoted values possibly spanning multiple lines.
+     *
+     * @return the values of the record, or null at the end of the file
+     */
+    @Nullable
+    static List<String> readRecord(@Nonnull final BufferedReader reader) throws IOException {
+        int c = reader.read();
+        if (c < 0) {
+            return null;
+        }
+        final List<String> values = new ArrayList<>();
+        final StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        while (c >= 0) {
+            if (quoted) {
+                if (c == '"') {
+                    reader.mark(1);
+                    if (reader.read() == '"') {
+                        value.append('"');
+                    } else {
+                        reader.reset();
+                        quoted = false;
+                    }
+                } else {
+                    value.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                value.append((char) c);
+            }
+            c = reader.read();
+        }
+        values.add(value.toString());
+        return values;
+    }
+}
@@ -0,0 +1,151 @@
+package au.csiro.fhir.validation.hl7;
+
+import lombok.SneakyThrows;
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.utilities.VersionUtil;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Digest of the content the validation results of a {@link HL7ValidationConfig} depend on, beyond its settings:
+ * the version of the HL7 validator, the core package, the resolved versions of the implementation guides given as
+ * package ids (with all their dependencies), the content of the implementation guides given as files or folders
+ * and the content of the files of the {@link HL7CodeLists code lists}.
+ * <p>
+ * The digest is computed once on the driver (see {@link HL7ValidationConfig#withResolvedContent()}), so that the
+ * fingerprint of the configuration changes when e.g. a package without a version resolves to a new release or a
+ * guide file or a code list is rebuilt, even though the paths and the package ids stay the same.
+ */
+@Slf4j
+@UtilityClass
+public class HL7ContentDigest {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * The digests of the files read in this JVM, by their path, size and modification time.
+     */
+    private static final Map<String, String> FILE_DIGESTS = new ConcurrentHashMap<>();
+
+    /**
+     * Computes the content digest of the configuration.
+     *
+     * @param config the validation configuration
+     * @return the hex encoded digest of the validator version and the resolved content of the configuration
+     */
+    @Nonnull
+    public static String of(@Nonnull final HL7ValidationConfig config) {
+        final List<String> content = new ArrayList<>();
+        content.add("validator:" + VersionUtil.getVersion());
+        content.add("core:" + HL7Utils.getFhirDefinitionFromVersion(config.getVersion()));
+        FilesystemPackageCacheManager pcm = null;
+        for (final String ig : config.getIgs()) {
+            final File file = new File(ig);
+            if (file.isFile()) {
+                content.add("file:" + fileDigest(file));
+            } else if (file.isDirectory()) {
+                content.add("dir:" + dirDigest(file));
+            } else if (ig.matches(FilesystemPackageCacheManager.PACKAGE_VERSION_REGEX_OPT)) {
+                if (pcm == null) {
+                    pcm = newPcm();
+                }
+                content.add("package:" + packageClosure(pcm, ig));
+            } else {
+                // e.g. an url, which is resolved by the engine and cannot be pinned here
+                content.add("source:" + ig);
+            }
+        }
+        for (final String codeList : config.getCodeLists()) {
+            content.add("codeList:" + codeList + "=" + fileDigest(new File(HL7CodeLists.CodeList.parse(codeList).getFile())));
+        }
+        return hex(digest(String.join("\n", content)));
+    }
+
+    /**
+     * Computes the digest of the content of a file, which is memoized by the file path, size and modification time.
+     *
+     * @param file the file
+     * @return the hex encoded digest of the file content
+     */
+    @Nonnull
+    static String fileDigest(@Nonnull final File file) {
+        final String key = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        return FILE_DIGESTS.computeIfAbsent(key, k -> computeFileDigest(file.toPath()));
+    }
+
+    @Nonnull
+    @SneakyThrows
+    private static String dirDigest(@Nonnull final File dir) {
+        final Path root = dir.toPath();
+        final List<String> entries;
+        try (final Stream<Path> files = Files.walk(root)) {
+            entries = files.filter(Files::isRegularFile)
+                    .map(path -> root.relativize(path) + "=" + fileDigest(path.toFile()))
+                    .sorted()
+                    .collect(Collectors.toUnmodifiableList());
+        }
+        return hex(digest(String.join("\n", entries)));
+    }
+
+    @Nonnull
+    @SneakyThrows
+    private static String packageClosure(@Nonnull final FilesystemPackageCacheManager pcm, @Nonnull final String ig) {
+        final Map<String, NpmPackage> packages = new LinkedHashMap<>();
+        HL7PackageCache.addWithDependencies(packages, pcm, pcm.loadPackage(ig, null));
+        // the date distinguishes the builds of the packages with the 'current' version
+        return packages.entrySet().stream()
+                .map(entry -> entry.getKey() + "@" + entry.getValue().date())
+                .collect(Collectors.joining(","));
+    }
+
+    @Nonnull
+    @SneakyThrows
+    private static FilesystemPackageCacheManager newPcm() {
+        return new FilesystemPackageCacheManager.Builder().build();
+    }
+
+    @Nonnull
+    @SneakyThrows
+    private static String computeFileDigest(@Nonnull final Path path) {
+        final MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        final byte[] buffer = new byte[65536];
+        try (final InputStream is = Files.newInputStream(path)) {
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    @Nonnull
+    @SneakyThrows
+    private static byte[] digest(@Nonnull final String value) {
+        return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Nonnull
+    static String hex(@Nonnull final byte[] digest) {
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
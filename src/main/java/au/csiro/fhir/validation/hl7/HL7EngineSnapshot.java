@@ -0,0 +1,145 @@
+package au.csiro.fhir.validation.hl7;
+
+import lombok.SneakyThrows;
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.PackageInformation;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.utilities.json.model.JsonArray;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.npm.CommonPackages;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.hl7.fhir.validation.ValidationEngine;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Persisted snapshot of the conformance resources loaded into a {@link ValidationEngine}.
+ * <p>
+ * The snapshot is a single npm package (tgz) with all the resources loaded from the implementation guides
+ * of a {@link HL7ValidationConfig} (and their dependencies) with the StructureDefinition snapshots already generated.
+ * Loading the snapshot replaces the loading of the individual implementation guides, including the
+ * resolution of their dependencies and the lazy generation of the profile snapshots on the first use.
+ * <p>
+ * The snapshot is keyed by {@link HL7ValidationConfig#fingerprint()} (see {@link #fileName(HL7ValidationConfig)}).
+ */
+@Slf4j
+@UtilityClass
+public class HL7EngineSnapshot {
+
+    private static final String SNAPSHOT_PACKAGE_PREFIX = "au.csiro.fhir.validation.snapshot.";
+    private static final String SNAPSHOT_VERSION = "1.0.0";
+
+    // the resources are stored in the snapshot in the internal R5 representation
+    private static final String SNAPSHOT_FHIR_VERSION = "5.0.0";
+
+    /**
+     * Gets the file name of the snapshot for the given configuration.
+     *
+     * @param config the validation configuration
+     * @return the name of the snapshot file
+     */
+    @Nonnull
+    public static String fileName(@Nonnull final HL7ValidationConfig config) {
+        return "engine-" + config.fingerprint() + ".tgz";
+    }
+
+    /**
+     * Creates the engine for the configuration and writes its snapshot to the given file.
+     *
+     * @param config the validation configuration
+     * @param file the snapshot file to write
+     */
+    public static void create(@Nonnull final HL7ValidationConfig config, @Nonnull final File file) {
+        write(HL7ValidationService.createEngine(config.toBuilder().engineSnapshot(null).build()), config, file);
+    }
+
+    /**
+     * Writes the snapshot of an initialized engine to the given file.
+     *
+     * @param engine the engine created for the configuration
+     * @param config the configuration the engine was created with
+     * @param file the snapshot file to write
+     */
+    @SneakyThrows
+    public static void write(@Nonnull final ValidationEngine engine, @Nonnull final HL7ValidationConfig config,
+                             @Nonnull final File file) {
+        final SimpleWorkerContext context = engine.getContext();
+        final List<CanonicalResource> resources = context.fetchResourcesByType(CanonicalResource.class).stream()
+                .filter(HL7EngineSnapshot::isSnapshotResource)
+                .filter(CanonicalResource::hasId)
+                .collect(Collectors.toUnmodifiableList());
+        HL7Utils.generateSnapshots(context, resources.stream()
+                .filter(StructureDefinition.class::isInstance)
+                .map(StructureDefinition.class::cast)
+                .collect(Collectors.toUnmodifiableList()));
+        final NpmPackage npm = NpmPackage.empty();
+        npm.setNpm(packageManifest(config));
+        final Set<String> fileNames = new HashSet<>();
+        int count = 0;
+        for (final CanonicalResource resource : resources) {
+            final String fileName = resource.fhirType() + "-" + resource.getIdBase() + ".json";
+            if (fileNames.add(fileName)) {
+                npm.addFile("package", fileName, new JsonParser().composeBytes(resource), null);
+                count++;
+            }
+        }
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IllegalStateException("Cannot create directory: " + parent);
+        }
+        try (final OutputStream os = new FileOutputStream(file)) {
+            npm.save(os);
+        }
+        log.info("Written engine snapshot with {} resources for config: {} to: {}", count, config, file);
+    }
+
+    /**
+     * Loads the snapshot into an engine created for the core definitions only.
+     *
+     * @param engine the engine to load the snapshot into
+     * @param path the path to the snapshot file
+     */
+    @SneakyThrows
+    public static void load(@Nonnull final ValidationEngine engine, @Nonnull final String path) {
+        if (!new File(path).isFile()) {
+            throw new IllegalArgumentException("Engine snapshot not found: " + path);
+        }
+        log.info("Loading engine snapshot from: {}", path);
+        engine.loadPackage(path, null);
+    }
+
+    private static boolean isSnapshotResource(@Nonnull final CanonicalResource resource) {
+        // the core definitions and the extensions loaded by the engine itself are not included
+        final PackageInformation sourcePackage = resource.getSourcePackage();
+        return sourcePackage != null
+                && sourcePackage.getId() != null
+                && !VersionUtilities.isCorePackage(sourcePackage.getId())
+                && !CommonPackages.ID_XVER.equals(sourcePackage.getId());
+    }
+
+    @Nonnull
+    private static JsonObject packageManifest(@Nonnull final HL7ValidationConfig config) {
+        final JsonObject manifest = new JsonObject();
+        manifest.add("name", SNAPSHOT_PACKAGE_PREFIX + config.fingerprint().substring(0, 16));
+        manifest.add("version", SNAPSHOT_VERSION);
+        manifest.add("type", "IG");
+        manifest.add("title", "Validation engine snapshot for: " + String.join(", ", config.getIgs()));
+        final JsonArray fhirVersions = new JsonArray();
+        fhirVersions.add(SNAPSHOT_FHIR_VERSION);
+        manifest.add("fhirVersions", fhirVersions);
+        manifest.add("dependencies", new JsonObject());
+        return manifest;
+    }
+}
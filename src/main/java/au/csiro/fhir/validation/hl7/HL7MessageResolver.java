@@ -1,12 +1,17 @@
 package au.csiro.fhir.validation.hl7;
 
+import au.csiro.fhir.validation.ValidationResult;
 import lombok.SneakyThrows;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.InputStream;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class HL7MessageResolver {
@@ -17,11 +22,31 @@ public class HL7MessageResolver {
             "VALIDATION_VAL_PROFILE_MAXIMUM_OTHER",
             "VALIDATION_VAL_PROFILE_MINIMUM_OTHER");
 
-    @SneakyThrows
+    private static final String DEFAULT_LANGUAGE = "en";
+
     @Nonnull
     static Map<String, String> loadMessages() {
+        return loadMessages(null);
+    }
+
+    /**
+     * Loads the message templates for the language, which are the default (english) templates
+     * overridden by the translated ones (if available), in the same way as the validator resolves them.
+     */
+    @SneakyThrows
+    @Nonnull
+    static Map<String, String> loadMessages(@Nullable final String language) {
         Properties p = new Properties();
         p.load(HL7MessageResolver.class.getResourceAsStream("/Messages.properties"));
+        if (language != null && !DEFAULT_LANGUAGE.equals(language)) {
+            final InputStream translated = Optional.ofNullable(HL7MessageResolver.class.getResourceAsStream("/Messages_" + language + ".properties"))
+                    .orElseGet(() -> HL7MessageResolver.class.getResourceAsStream("/Messages_" + language.split("[-_]")[0] + ".properties"));
+            if (translated != null) {
+                try (translated) {
+                    p.load(translated);
+                }
+            }
+        }
         final Map<String, String> messages = p.entrySet().stream().collect(Collectors.toUnmodifiableMap(e -> e.getKey().toString(), e -> e.getValue().toString()));
         return messages.entrySet().stream()
                 .filter(kv -> !kv.getValue().matches("([\\s]*\\{\\d+\\})*[\\s]*"))
@@ -30,10 +55,121 @@ public class HL7MessageResolver {
                 .collect(Collectors.toUnmodifiableMap(kv -> kv.getKey().replace("_", "0").toUpperCase(), kv -> kv.getValue().trim()));
     }
 
-    private static final MessageResolver INSTANCE = MessageResolver.ofMessages(loadMessages());
+    private static final int MEMO_SIZE = 10_000;
+
+    private static final Map<String, String> MESSAGES = loadMessages();
+
+    private static final IndexedMessageResolver INSTANCE = IndexedMessageResolver.ofMessages(MESSAGES, MEMO_SIZE);
+
+    private static final Map<String, Map<String, String>> MESSAGES_BY_LANGUAGE = new ConcurrentHashMap<>(Map.of(DEFAULT_LANGUAGE, MESSAGES));
+
+    private static final Map<String, IndexedMessageResolver> RESOLVERS_BY_LANGUAGE = new ConcurrentHashMap<>(Map.of(DEFAULT_LANGUAGE, INSTANCE));
 
     @Nonnull
     public static Optional<String> getMessageId(@Nonnull final String message) {
         return INSTANCE.getMessageId(message).map(s -> s.replace("0", "_"));
     }
+
+    /**
+     * Normalizes a message id reported by the validator to the form returned by {@link #getMessageId(String)}.
+     *
+     * @param messageId the message id reported by the validator
+     * @return the normalized message id, if it is the id of a known message template
+     */
+    @Nonnull
+    public static Optional<String> getKnownMessageId(@Nullable final String messageId) {
+        if (messageId == null) {
+            return Optional.empty();
+        }
+        final String key = messageId.replace("_", "0").toUpperCase();
+        return MESSAGES.containsKey(key)
+                ? Optional.of(key.replace("0", "_"))
+                : Optional.empty();
+    }
+
+    /**
+     * Gets the message templates for the language, with the placeholders in the form: {@code {<n>}}.
+     *
+     * @param language the language of the messages (null for the default)
+     * @return the templates by message id (in the form returned by {@link #getMessageId(String)})
+     */
+    @Nonnull
+    public static Map<String, String> getTemplates(@Nullable final String language) {
+        return messagesFor(language).entrySet().stream()
+                .collect(Collectors.toUnmodifiableMap(kv -> kv.getKey().replace("0", "_"), kv -> unescape(kv.getValue())));
+    }
+
+    /**
+     * Converts the issue to the compact form, in which the message is replaced with the values of the placeholders
+     * of its template (see {@link #getTemplates(String)}). The issue is not converted if its message cannot be
+     * exactly reproduced from the template with {@link #formatMessage(String, List)}.
+     *
+     * @param issue the issue
+     * @param language the language of the messages (null for the default)
+     * @return the compact issue or the original issue
+     */
+    @Nonnull
+    public static ValidationResult.Issue compact(@Nonnull final ValidationResult.Issue issue, @Nullable final String language) {
+        final String message = issue.getMessage();
+        if (message == null) {
+            return issue;
+        }
+        final Map<String, String> messages = messagesFor(language);
+        final IndexedMessageResolver resolver = resolverFor(language);
+        final String knownKey = issue.getMessageId() != null
+                ? issue.getMessageId().replace("_", "0").toUpperCase()
+                : null;
+        final String key = knownKey != null && messages.containsKey(knownKey)
+                ? knownKey
+                : resolver.getMessageId(message).orElse(null);
+        if (key == null) {
+            return issue;
+        }
+        final List<String> params = resolver.getParameters(key, message);
+        if (params == null || !message.equals(formatMessage(unescape(messages.get(key)), params))) {
+            return issue;
+        }
+        return issue.toBuilder()
+                .messageId(key.replace("0", "_"))
+                .params(params)
+                .message(null)
+                .build();
+    }
+
+    /**
+     * Formats the message by replacing the placeholders of the template with the parameters, in the order
+     * of the placeholders. This is the formatting the compact issues are checked against, and which needs to be
+     * replicated by their consumers, e.g. in SQL:
+     * {@code aggregate(sequence(0, size(params) - 1), template, (m, i) -> coalesce(replace(m, '{' || i || '}', params[i]), m))}.
+     *
+     * @param template the template
+     * @param params the values of the placeholders (the null values are not replaced)
+     * @return the formatted message
+     */
+    @Nonnull
+    public static String formatMessage(@Nonnull final String template, @Nonnull final List<String> params) {
+        String message = template;
+        for (int i = 0; i < params.size(); i++) {
+            if (params.get(i) != null) {
+                message = message.replace("{" + i + "}", params.get(i));
+            }
+        }
+        return message;
+    }
+
+    @Nonnull
+    private static Map<String, String> messagesFor(@Nullable final String language) {
+        return MESSAGES_BY_LANGUAGE.computeIfAbsent(language != null ? language : DEFAULT_LANGUAGE, HL7MessageResolver::loadMessages);
+    }
+
+    @Nonnull
+    private static IndexedMessageResolver resolverFor(@Nullable final String language) {
+        return RESOLVERS_BY_LANGUAGE.computeIfAbsent(language != null ? language : DEFAULT_LANGUAGE,
+                l -> IndexedMessageResolver.ofMessages(messagesFor(l), MEMO_SIZE));
+    }
+
+    @Nonnull
+    private static String unescape(@Nonnull final String template) {
+        return template.replace("''", "'");
+    }
 }
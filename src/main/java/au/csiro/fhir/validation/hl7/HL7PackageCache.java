@@ -0,0 +1,199 @@
+package au.csiro.fhir.validation.hl7;
+
+import lombok.SneakyThrows;
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.utilities.npm.CommonPackages;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Offline cache of the FHIR packages required to create the engines for a {@link HL7ValidationConfig}.
+ * <p>
+ * The cache is a directory with a tgz file for each package (named {@code <id>#<version>.tgz}) and a manifest
+ * for each configuration listing the packages it requires: the core package, the cross-version extensions
+ * and the implementation guides with all their dependencies. The cache is prepared once (see
+ * {@link #prepare(HL7ValidationConfig, File)}), which is the only step that may access the package registry,
+ * and then installed in each JVM (see {@link #install(String, HL7ValidationConfig)}) before the engines
+ * are created.
+ * <p>
+ * The packages are installed (and extracted) once per JVM into a package cache manager rooted at a temporary
+ * directory, which the engines load the implementation guides from, so that the user's FHIR package cache
+ * ({@code ~/.fhir/packages}) is not modified. The only exceptions are the core package and the cross-version
+ * extensions, which the HL7 validator always loads from the user's cache when the engine is created,
+ * and so are installed there if missing.
+ */
+@Slf4j
+@UtilityClass
+public class HL7PackageCache {
+
+    private static final String PACKAGE_EXTENSION = ".tgz";
+    private static final String MANIFEST_PREFIX = "packages-";
+    private static final String MANIFEST_EXTENSION = ".txt";
+
+    /**
+     * The package cache managers with the packages installed from the cache directories, by the cache directory.
+     */
+    private static final Map<String, FilesystemPackageCacheManager> INSTALLED_CACHES = new ConcurrentHashMap<>();
+
+    /**
+     * Resolves all the packages required by the configuration and writes them to the cache directory.
+     * The packages are resolved from the local package cache or downloaded from the package registry.
+     * The implementation guides given as package files are replaced in the returned configuration with their
+     * package ids, so that they are loaded from the cache.
+     *
+     * @param config the validation configuration
+     * @param cacheDir the cache directory
+     * @return the configuration referring to the implementation guides by package id
+     */
+    @Nonnull
+    @SneakyThrows
+    public static HL7ValidationConfig prepare(@Nonnull final HL7ValidationConfig config, @Nonnull final File cacheDir) {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IllegalStateException("Cannot create directory: " + cacheDir);
+        }
+        final FilesystemPackageCacheManager pcm = new FilesystemPackageCacheManager.Builder().build();
+        final Map<String, NpmPackage> packages = new LinkedHashMap<>();
+        addPackage(packages, pcm.loadPackage(HL7Utils.getFhirDefinitionFromVersion(config.getVersion()), null));
+        addPackage(packages, pcm.loadPackage(CommonPackages.ID_XVER, CommonPackages.VER_XVER));
+        final List<String> igs = new ArrayList<>();
+        for (final String ig : config.getIgs()) {
+            final NpmPackage npm;
+            if (new File(ig).isFile()) {
+                try (final InputStream is = new FileInputStream(ig)) {
+                    npm = NpmPackage.fromPackage(is);
+                }
+            } else {
+                npm = pcm.loadPackage(ig, null);
+            }
+            addWithDependencies(packages, pcm, npm);
+            igs.add(packageId(npm));
+        }
+        for (final Map.Entry<String, NpmPackage> entry : packages.entrySet()) {
+            final File packageFile = new File(cacheDir, entry.getKey() + PACKAGE_EXTENSION);
+            if (!packageFile.isFile()) {
+                log.info("Writing package: {} to: {}", entry.getKey(), packageFile);
+                try (final OutputStream os = new FileOutputStream(packageFile)) {
+                    entry.getValue().save(os);
+                }
+            }
+        }
+        final HL7ValidationConfig offlineConfig = config.toBuilder().clearIgs().igs(igs).build();
+        Files.write(manifestFile(cacheDir, offlineConfig).toPath(), packages.keySet(), StandardCharsets.UTF_8);
+        return offlineConfig;
+    }
+
+    /**
+     * Installs the packages from the cache directory into a package cache manager (once per JVM)
+     * and checks that all the packages required by the configuration are available.
+     * The engines created with the configuration load the implementation guides with the returned manager.
+     *
+     * @param cacheDir the path to the cache directory
+     * @param config the validation configuration (as returned by {@link #prepare(HL7ValidationConfig, File)})
+     * @return the package cache manager with the installed packages
+     * @throws IllegalStateException if any of the required packages is missing from the cache
+     */
+    @Nonnull
+    @SneakyThrows
+    public static FilesystemPackageCacheManager install(@Nonnull final String cacheDir, @Nonnull final HL7ValidationConfig config) {
+        final FilesystemPackageCacheManager pcm = INSTALLED_CACHES.computeIfAbsent(cacheDir, HL7PackageCache::installAll);
+        final File manifest = manifestFile(new File(cacheDir), config);
+        if (!manifest.isFile()) {
+            throw new IllegalStateException("Offline package cache: " + cacheDir + " was not prepared for config: " + config);
+        }
+        final List<String> missing = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8).stream()
+                .filter(packageId -> !isInstalled(pcm, packageId))
+                .collect(Collectors.toUnmodifiableList());
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException("Offline package cache: " + cacheDir + " is missing packages: " + missing);
+        }
+        return pcm;
+    }
+
+    @Nonnull
+    @SneakyThrows
+    private static FilesystemPackageCacheManager installAll(@Nonnull final String cacheDir) {
+        final File[] packageFiles = new File(cacheDir).listFiles((dir, name) -> name.endsWith(PACKAGE_EXTENSION));
+        if (packageFiles == null) {
+            throw new IllegalStateException("Offline package cache not found: " + cacheDir);
+        }
+        final File installDir = Files.createTempDirectory("fhir-packages-").toFile();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> HL7Utils.deleteDirectory(installDir)));
+        final FilesystemPackageCacheManager pcm = new FilesystemPackageCacheManager.Builder()
+                .withCacheFolder(installDir.getPath())
+                .build();
+        final FilesystemPackageCacheManager userPcm = new FilesystemPackageCacheManager.Builder().build();
+        for (final File packageFile : packageFiles) {
+            final String packageId = packageFile.getName().substring(0, packageFile.getName().length() - PACKAGE_EXTENSION.length());
+            installPackage(pcm, packageId, packageFile);
+            // loaded by the engine builder from the user's cache
+            final String id = packageId.substring(0, packageId.indexOf('#'));
+            if ((VersionUtilities.isCorePackage(id) || CommonPackages.ID_XVER.equals(id)) && !isInstalled(userPcm, packageId)) {
+                installPackage(userPcm, packageId, packageFile);
+            }
+        }
+        log.info("Installed {} packages from: {} to: {}", packageFiles.length, cacheDir, installDir);
+        return pcm;
+    }
+
+    @SneakyThrows
+    private static void installPackage(@Nonnull final FilesystemPackageCacheManager pcm, @Nonnull final String packageId,
+                                       @Nonnull final File packageFile) {
+        log.info("Installing package: {} from: {}", packageId, packageFile);
+        try (final InputStream is = new FileInputStream(packageFile)) {
+            pcm.addPackageToCache(packageId.substring(0, packageId.indexOf('#')), packageId.substring(packageId.indexOf('#') + 1),
+                    is, packageFile.getPath());
+        }
+    }
+
+    @SneakyThrows
+    private static boolean isInstalled(@Nonnull final FilesystemPackageCacheManager pcm, @Nonnull final String packageId) {
+        return pcm.packageInstalled(packageId.substring(0, packageId.indexOf('#')), packageId.substring(packageId.indexOf('#') + 1));
+    }
+
+    @Nonnull
+    private static File manifestFile(@Nonnull final File cacheDir, @Nonnull final HL7ValidationConfig config) {
+        return new File(cacheDir, MANIFEST_PREFIX + config.fingerprint() + MANIFEST_EXTENSION);
+    }
+
+    @SneakyThrows
+    static void addWithDependencies(@Nonnull final Map<String, NpmPackage> packages,
+                                    @Nonnull final FilesystemPackageCacheManager pcm,
+                                    @Nonnull final NpmPackage npm) {
+        if (packages.containsKey(packageId(npm))) {
+            return;
+        }
+        // the dependencies are loaded first, in the same way as by the IgLoader
+        for (final String dependency : npm.dependencies()) {
+            if (!VersionUtilities.isCorePackage(dependency.split("#")[0]) && !packages.containsKey(dependency)) {
+                addWithDependencies(packages, pcm, pcm.loadPackage(dependency, null));
+            }
+        }
+        addPackage(packages, npm);
+    }
+
+    private static void addPackage(@Nonnull final Map<String, NpmPackage> packages, @Nonnull final NpmPackage npm) {
+        packages.putIfAbsent(packageId(npm), npm);
+    }
+
+    @Nonnull
+    private static String packageId(@Nonnull final NpmPackage npm) {
+        return npm.id() + "#" + npm.version();
+    }
+}
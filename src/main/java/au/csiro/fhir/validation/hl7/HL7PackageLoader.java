@@ -0,0 +1,243 @@
+package au.csiro.fhir.validation.hl7;
+
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r5.context.IContextResourceLoader;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.hl7.fhir.validation.ValidatorUtils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads implementation guides (and their dependencies) into a {@link ValidationEngine}.
+ * <p>
+ * This replicates the loading of npm packages by {@link org.hl7.fhir.validation.IgLoader#loadIg}, but
+ * the packages of the whole dependency graph are fetched and unpacked in parallel. Only the registration
+ * of the resources in the (not thread safe) worker context is sequential, with the dependencies
+ * loaded before the packages that depend on them.
+ * <p>
+ * The sources that are not npm packages (e.g. folders, urls or files that cannot be read as npm packages) are loaded
+ * with {@link ValidationEngine#loadPackage(String, String)}.
+ * <p>
+ * The fetched packages are keyed by their {@code id#version}, so that a dependency is loaded once, even if it is also
+ * given as a package file.
+ */
+@Slf4j
+class HL7PackageLoader {
+
+    @Value
+    private static class FetchedPackage {
+        @Nonnull
+        NpmPackage npm;
+        long fetchTime;
+    }
+
+    /**
+     * The threads fetching the packages, shared by all the engines created in this JVM.
+     */
+    private static final ExecutorService FETCH_EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), fetchThreadFactory());
+
+    @Nonnull
+    private final ValidationEngine engine;
+
+    /**
+     * The fetched packages by their {@code id#version} and by the package ids they were requested as.
+     */
+    @Nonnull
+    private final Map<String, FetchedPackage> fetched = new HashMap<>();
+
+    private HL7PackageLoader(@Nonnull final ValidationEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Loads the implementation guides into the engine.
+     *
+     * @param engine the engine to load the guides into
+     * @param igs the implementation guides (package ids or package files)
+     */
+    static void loadPackages(@Nonnull final ValidationEngine engine, @Nonnull final List<String> igs) {
+        if (igs.isEmpty()) {
+            return;
+        }
+        new HL7PackageLoader(engine).load(igs);
+    }
+
+    @SneakyThrows
+    private void load(@Nonnull final List<String> igs) {
+        final long startTime = System.currentTimeMillis();
+        final Map<String, FetchedPackage> igPackages = fetchAll(igs);
+        // the guides take precedence over the packages of the same id and version fetched as dependencies
+        igPackages.values().forEach(this::register);
+        // resolve the dependency graph in waves, fetching all the packages of each wave in parallel
+        Set<String> dependencies = dependenciesOf(igPackages.values());
+        while (!dependencies.isEmpty()) {
+            final Map<String, FetchedPackage> dependencyPackages = fetchAll(dependencies);
+            dependencyPackages.forEach((dependency, fetchedPackage) -> {
+                register(fetchedPackage);
+                fetched.putIfAbsent(dependency, fetchedPackage);
+            });
+            dependencies = dependenciesOf(dependencyPackages.values());
+        }
+        log.info("Fetched {} packages in {} ms", new HashSet<>(fetched.values()).size(), System.currentTimeMillis() - startTime);
+        for (final String ig : igs) {
+            final FetchedPackage igPackage = igPackages.get(ig);
+            if (igPackage != null) {
+                loadWithDependencies(ig, igPackage);
+            } else {
+                final long loadStartTime = System.currentTimeMillis();
+                engine.loadPackage(ig, null);
+                log.info("Loaded package: {} in {} ms", ig, System.currentTimeMillis() - loadStartTime);
+            }
+        }
+        log.info("Loaded {} packages in {} ms", igs.size(), System.currentTimeMillis() - startTime);
+    }
+
+    private void register(@Nonnull final FetchedPackage fetchedPackage) {
+        fetched.putIfAbsent(packageId(fetchedPackage.getNpm()), fetchedPackage);
+    }
+
+    private void loadWithDependencies(@Nonnull final String source, @Nonnull final FetchedPackage fetchedPackage) {
+        final SimpleWorkerContext context = engine.getContext();
+        final NpmPackage npm = fetchedPackage.getNpm();
+        if (context.getLoadedPackages().contains(packageId(npm))) {
+            // e.g. a guide that is also a dependency of a guide loaded before
+            return;
+        }
+        for (final String dependency : npm.dependencies()) {
+            if (!context.getLoadedPackages().contains(dependency) && !isCorePackage(dependency)) {
+                loadWithDependencies(dependency, fetched.get(dependency));
+            }
+        }
+        final long loadStartTime = System.currentTimeMillis();
+        final IContextResourceLoader loader = ValidatorUtils.loaderForVersion(npm.fhirVersion());
+        loader.setPatchUrls(VersionUtilities.isCorePackage(npm.id()));
+        final int count = loadFromPackage(context, npm, loader);
+        log.info("Loaded package: {}#{} from: {} - {} resources (fetch: {} ms, load: {} ms)", npm.id(), npm.version(),
+                source, count, fetchedPackage.getFetchTime(), System.currentTimeMillis() - loadStartTime);
+    }
+
+    @SneakyThrows
+    private static int loadFromPackage(@Nonnull final SimpleWorkerContext context, @Nonnull final NpmPackage npm,
+                                       @Nonnull final IContextResourceLoader loader) {
+        return context.loadFromPackage(npm, loader);
+    }
+
+    @Nonnull
+    private Set<String> dependenciesOf(@Nonnull final Iterable<FetchedPackage> packages) {
+        final Set<String> dependencies = new LinkedHashSet<>();
+        for (final FetchedPackage fetchedPackage : packages) {
+            for (final String dependency : fetchedPackage.getNpm().dependencies()) {
+                if (!isCorePackage(dependency) && !fetched.containsKey(dependency)
+                        && !engine.getContext().getLoadedPackages().contains(dependency)) {
+                    dependencies.add(dependency);
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    @Nonnull
+    private Map<String, FetchedPackage> fetchAll(@Nonnull final Iterable<String> sources) {
+        final FilesystemPackageCacheManager pcm = getPcm();
+        final Map<String, CompletableFuture<FetchedPackage>> futures = new HashMap<>();
+        for (final String source : sources) {
+            futures.put(source, CompletableFuture.supplyAsync(() -> fetch(pcm, source), FETCH_EXECUTOR));
+        }
+        final Map<String, FetchedPackage> result = new HashMap<>();
+        for (final Map.Entry<String, CompletableFuture<FetchedPackage>> entry : futures.entrySet()) {
+            try {
+                final FetchedPackage fetchedPackage = entry.getValue().join();
+                if (fetchedPackage != null) {
+                    result.put(entry.getKey(), fetchedPackage);
+                }
+            } catch (final CompletionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                throw new IllegalStateException("Failed to fetch package: " + entry.getKey(), ex.getCause());
+            }
+        }
+        return result;
+    }
+
+    @Nullable
+    @SneakyThrows
+    private static FetchedPackage fetch(@Nonnull final FilesystemPackageCacheManager pcm, @Nonnull final String source) {
+        // the same resolution as in IgLoader.loadIg()
+        final long startTime = System.currentTimeMillis();
+        final NpmPackage npm;
+        final File file = new File(source);
+        if (source.matches(FilesystemPackageCacheManager.PACKAGE_VERSION_REGEX_OPT) && !file.exists()) {
+            npm = pcm.loadPackage(source, null);
+        } else if (file.isFile()) {
+            npm = readPackage(file);
+        } else {
+            npm = null;
+        }
+        return npm != null
+                ? new FetchedPackage(npm, System.currentTimeMillis() - startTime)
+                : null;
+    }
+
+    /**
+     * Reads the file as an npm package, or returns null if it is not one (e.g. a tgz file without the package
+     * manifest, or a single resource), so that it is loaded by the engine in the same way as by the IgLoader.
+     */
+    @Nullable
+    private static NpmPackage readPackage(@Nonnull final File file) {
+        try (final InputStream is = new FileInputStream(file)) {
+            return NpmPackage.fromPackage(is);
+        } catch (final Exception ex) {
+            log.debug("Not an npm package: {}", file, ex);
+            return null;
+        }
+    }
+
+    @Nonnull
+    private static String packageId(@Nonnull final NpmPackage npm) {
+        return npm.id() + "#" + npm.version();
+    }
+
+    @Nonnull
+    private static ThreadFactory fetchThreadFactory() {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, "package-fetch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Nonnull
+    @SneakyThrows
+    private FilesystemPackageCacheManager getPcm() {
+        return engine.getPcm();
+    }
+
+    private static boolean isCorePackage(@Nonnull final String packageId) {
+        return VersionUtilities.isCorePackage(packageId.split("#")[0]);
+    }
+}
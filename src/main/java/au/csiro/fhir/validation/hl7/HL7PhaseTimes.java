@@ -0,0 +1,161 @@
+package au.csiro.fhir.validation.hl7;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.validation.BaseValidator;
+import org.hl7.fhir.validation.ValidationTimeTracker;
+import org.hl7.fhir.validation.instance.InstanceValidator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+
+/**
+ * The time spent in the phases of the validation of a resource (in milliseconds), as tracked by the
+ * {@link ValidationTimeTracker} of the instance validator.
+ * <p>
+ * The phases tracked by the validator may be nested (e.g. the terminology checks of the Bundle entries
+ * are within the special checks of the Bundle), so the sum of the phases may exceed the total time.
+ * The time not attributed to any of the phases, i.e. mostly the structural checks of the elements against the
+ * profiles (including the slicing), is reported as {@code structureMillis}.
+ * <p>
+ * The tracker is read by reflection, so with a version of the validator without it only the total time
+ * is measured (and reported as {@code structureMillis}).
+ */
+@Slf4j
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HL7PhaseTimes implements Serializable {
+
+    @Nullable
+    private static final Field TIME_TRACKER = timeTrackerField();
+
+    /**
+     * The parsing of the json into the element model.
+     */
+    double parseMillis;
+
+    /**
+     * The resolution of the profiles (and extension definitions) of the elements.
+     */
+    double profilesMillis;
+
+    /**
+     * The evaluation of the FHIRPath invariants.
+     */
+    double invariantsMillis;
+
+    /**
+     * The checks specific to some resource types (e.g. Bundles or Questionnaires).
+     */
+    double specialsMillis;
+
+    /**
+     * The terminology checks (of codes and value sets).
+     */
+    double terminologyMillis;
+
+    /**
+     * The time not attributed to the other phases (mostly the structural checks).
+     */
+    double structureMillis;
+
+    double totalMillis;
+
+    /**
+     * The cumulative times (in nanoseconds) of the tracker of a validator at a point in time.
+     */
+    static final class Snapshot {
+        private final long startTime = System.nanoTime();
+        private final long load;
+        private final long sd;
+        private final long fpe;
+        private final long spec;
+        private final long tx;
+
+        Snapshot(@Nullable final ValidationTimeTracker tracker) {
+            this.load = tracker != null ? tracker.getLoadTime() : 0;
+            this.sd = tracker != null ? tracker.getSdTime() : 0;
+            this.fpe = tracker != null ? tracker.getFpeTime() : 0;
+            this.spec = tracker != null ? tracker.getSpecTime() : 0;
+            this.tx = tracker != null ? tracker.getTxTime() : 0;
+        }
+    }
+
+    /**
+     * Creates the times with only the total time, e.g. of an abandoned validation (or 0 for a resource
+     * not validated, e.g. with the result from a cache).
+     *
+     * @param totalMillis the total time in milliseconds
+     * @return the phase times
+     */
+    @Nonnull
+    public static HL7PhaseTimes ofTotal(final double totalMillis) {
+        return new HL7PhaseTimes(0, 0, 0, 0, 0, 0, totalMillis);
+    }
+
+    @Nonnull
+    public HL7PhaseTimes plus(@Nonnull final HL7PhaseTimes other) {
+        return new HL7PhaseTimes(parseMillis + other.parseMillis, profilesMillis + other.profilesMillis,
+                invariantsMillis + other.invariantsMillis, specialsMillis + other.specialsMillis,
+                terminologyMillis + other.terminologyMillis, structureMillis + other.structureMillis,
+                totalMillis + other.totalMillis);
+    }
+
+    /**
+     * Takes the snapshot of the time tracker of the validator.
+     */
+    @Nonnull
+    static Snapshot snapshot(@Nonnull final InstanceValidator validator) {
+        return new Snapshot(timeTrackerOf(validator));
+    }
+
+    /**
+     * Computes the times of the phases since the snapshot (with the same validator).
+     */
+    @Nonnull
+    static HL7PhaseTimes since(@Nonnull final Snapshot start, @Nonnull final InstanceValidator validator) {
+        final long total = System.nanoTime() - start.startTime;
+        final Snapshot end = new Snapshot(timeTrackerOf(validator));
+        final long load = end.load - start.load;
+        final long sd = end.sd - start.sd;
+        final long fpe = end.fpe - start.fpe;
+        final long spec = end.spec - start.spec;
+        final long tx = end.tx - start.tx;
+        return new HL7PhaseTimes(millis(load), millis(sd), millis(fpe), millis(spec), millis(tx),
+                millis(Math.max(0, total - load - sd - fpe - spec - tx)), millis(total));
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / 1e6;
+    }
+
+    @Nullable
+    private static ValidationTimeTracker timeTrackerOf(@Nonnull final InstanceValidator validator) {
+        if (TIME_TRACKER == null) {
+            return null;
+        }
+        try {
+            return (ValidationTimeTracker) TIME_TRACKER.get(validator);
+        } catch (final IllegalAccessException | ClassCastException ex) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Field timeTrackerField() {
+        // the tracker is not exposed by the validator (only formatted by reportTimes())
+        try {
+            final Field field = BaseValidator.class.getDeclaredField("timeTracker");
+            field.setAccessible(true);
+            return field;
+        } catch (final NoSuchFieldException | RuntimeException ex) {
+            log.warn("Cannot access the time tracker of the validator, only the total times are measured", ex);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package au.csiro.fhir.validation.hl7;
+
+import lombok.SneakyThrows;
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.validation.ValidationEngine;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of the terminology server responses, shared by the engines of all the executors and runs.
+ * <p>
+ * The cache is a directory in the format of the terminology cache of the HL7 validator, with a file for each code
+ * system (e.g. {@code loinc.cache}) with the responses keyed by the request, i.e. the code system, version, code,
+ * display and value set of the checked coding and the validation options. The engines created with the cache
+ * (see {@link HL7ValidationConfig#getTxCache()}) are preloaded with a copy of it, as the HL7 validator rewrites
+ * the whole file for each new response and cannot share the directory between the engines.
+ * The responses added by the engines of a JVM since the last call are {@link #collect() collected} into
+ * {@link Entries}, which can be {@link #merge(Entries, File) merged} back into the cache directory,
+ * so that later runs only send the requests not seen before to the server.
+ * <p>
+ * The copies are {@link #release(ValidationEngine) released} with their engines (e.g. when evicted or recycled),
+ * i.e. their remaining entries are kept for the next collection and the directories are deleted. The engines are
+ * only weakly referenced, so the copies of the engines no longer reachable (e.g. cached by the threads of a stopped
+ * executor) are released by the next collection.
+ */
+@Slf4j
+@UtilityClass
+public class HL7TerminologyCache {
+
+    private static final String CACHE_EXTENSION = ".cache";
+    private static final String ENTRY_MARKER = "-------------------------------------------------------------------------------------";
+    private static final String BREAK = "####";
+    private static final String LINE_END = "\r\n";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    /**
+     * The key of the files that are not split into entries (e.g. the cached terminology capabilities).
+     */
+    private static final String WHOLE_FILE = "";
+
+    /**
+     * The cache directories of the engines of this JVM.
+     */
+    private static final Map<File, EngineCache> ENGINE_CACHES = new ConcurrentHashMap<>();
+
+    /**
+     * The entries of the released engines not collected yet.
+     */
+    private static final Entries RELEASED = new Entries();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                ENGINE_CACHES.keySet().forEach(HL7Utils::deleteDirectory)));
+    }
+
+    /**
+     * The names of the entries preloaded in this JVM (see {@link #preload(String, Entries, String)}).
+     */
+    private static final Set<String> PRELOADED_NAMES = new HashSet<>();
+
+    /**
+     * The entries preloaded in this JVM into the engines created with a cache directory, by the cache directory.
+     */
+    private static final Map<String, Entries> PRELOADED = new HashMap<>();
+
+    /**
+     * The cache entries by file name and request (or {@link #WHOLE_FILE}).
+     */
+    public static class Entries implements Serializable {
+
+        private final Map<String, Map<String, String>> entriesByFile = new TreeMap<>();
+
+        void add(@Nonnull final String fileName, @Nonnull final String request, @Nonnull final String entry) {
+            entriesByFile.computeIfAbsent(fileName, k -> new LinkedHashMap<>()).putIfAbsent(request, entry);
+        }
+
+        public void merge(@Nonnull final Entries other) {
+            other.entriesByFile.forEach((fileName, entries) -> entries.forEach((request, entry) -> add(fileName, request, entry)));
+        }
+
+        public int size() {
+            return entriesByFile.values().stream().mapToInt(Map::size).sum();
+        }
+
+        public boolean isEmpty() {
+            return entriesByFile.isEmpty();
+        }
+    }
+
+    /**
+     * The cache directory of an engine, with the entries (as file name and request) preloaded into it or already
+     * collected from it, and the signatures (size and modification time) of its files when last read.
+     * The attached engine is weakly referenced, so that the cache does not keep it from being garbage collected.
+     */
+    private static final class EngineCache {
+        @Nonnull
+        private final File dir;
+        @Nonnull
+        private final String cacheDir;
+        @Nonnull
+        private final Set<String> collected = new HashSet<>();
+        @Nonnull
+        private final Map<String, String> signatures = new HashMap<>();
+        @Nullable
+        private WeakReference<ValidationEngine> engine;
+
+        EngineCache(@Nonnull final File dir, @Nonnull final String cacheDir) {
+            this.dir = dir;
+            this.cacheDir = cacheDir;
+        }
+
+        @Nullable
+        ValidationEngine getEngine() {
+            return engine != null ? engine.get() : null;
+        }
+
+        /**
+         * Checks if the attached engine has been garbage collected.
+         */
+        boolean isUnreachable() {
+            return engine != null && engine.get() == null;
+        }
+
+        /**
+         * Reads the entries of the files modified since the last call.
+         */
+        @Nonnull
+        Entries readModified() {
+            final File[] files = dir.listFiles(file -> file.isFile() && !file.getName().endsWith(TEMP_EXTENSION));
+            final Entries entries = new Entries();
+            if (files != null) {
+                for (final File file : files) {
+                    // taken before reading, so that a file modified while read is read again next time
+                    final String signature = file.length() + "|" + file.lastModified();
+                    if (!signature.equals(signatures.put(file.getName(), signature)) && !readFile(file, entries)) {
+                        signatures.remove(file.getName());
+                    }
+                }
+            }
+            return entries;
+        }
+
+        /**
+         * Adds the entries not collected (or preloaded) yet to the collected entries.
+         */
+        void collectInto(@Nonnull final Entries entries, @Nonnull final Entries collectedEntries) {
+            entries.entriesByFile.forEach((fileName, fileEntries) -> fileEntries.forEach((request, entry) -> {
+                if (collected.add(key(fileName, request))) {
+                    collectedEntries.add(fileName, request, entry);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Creates the terminology cache directory of a new engine, preloaded with the content of the cache
+     * (and the entries {@link #preload(String, Entries, String) preloaded} for the cache in this JVM).
+     * The directory is deleted when the engine (see {@link #attach(String, ValidationEngine)}) is
+     * {@link #release(ValidationEngine) released}, or at the exit of the JVM.
+     *
+     * @param cacheDir the path to the cache directory (may not exist yet)
+     * @return the path to the directory of the engine
+     */
+    @Nonnull
+    @SneakyThrows
+    public static synchronized String newEngineDir(@Nonnull final String cacheDir) {
+        final File engineDir = Files.createTempDirectory("tx-cache-").toFile();
+        copy(new File(cacheDir), engineDir);
+        final Entries preloaded = PRELOADED.get(cacheDir);
+        if (preloaded != null) {
+            merge(preloaded, engineDir);
+        }
+        // the preloaded entries do not need to be collected
+        final EngineCache engineCache = new EngineCache(engineDir, cacheDir);
+        engineCache.collectInto(engineCache.readModified(), new Entries());
+        ENGINE_CACHES.put(engineDir, engineCache);
+        log.debug("Created terminology cache: {} from: {}", engineDir, cacheDir);
+        return engineDir.getPath();
+    }
+
+    /**
+     * Attaches the engine created with the cache directory (see {@link #newEngineDir(String)}), so that the
+     * directory is released with the engine.
+     *
+     * @param engineDir the path to the directory of the engine
+     * @param engine the engine
+     */
+    public static synchronized void attach(@Nonnull final String engineDir, @Nonnull final ValidationEngine engine) {
+        final EngineCache engineCache = ENGINE_CACHES.get(new File(engineDir));
+        if (engineCache != null) {
+            engineCache.engine = new WeakReference<>(engine);
+        }
+    }
+
+    /**
+     * Releases the cache directory of an engine that is no longer used (e.g. evicted or abandoned): the entries
+     * not collected yet are kept for the next {@link #collect() collection}, and the directory is deleted.
+     *
+     * @param engine the engine
+     */
+    public static synchronized void release(@Nonnull final ValidationEngine engine) {
+        final Iterator<EngineCache> engineCaches = ENGINE_CACHES.values().iterator();
+        while (engineCaches.hasNext()) {
+            final EngineCache engineCache = engineCaches.next();
+            if (engineCache.getEngine() == engine) {
+                release(engineCaches, engineCache, RELEASED);
+            }
+        }
+    }
+
+    private static void release(@Nonnull final Iterator<EngineCache> engineCaches, @Nonnull final EngineCache engineCache,
+                                @Nonnull final Entries entries) {
+        engineCache.collectInto(engineCache.readModified(), entries);
+        engineCaches.remove();
+        HL7Utils.deleteDirectory(engineCache.dir);
+        log.debug("Released terminology cache: {}", engineCache.dir);
+    }
+
+    /**
+     * Preloads the entries (once per JVM for each name), e.g. the entries collected by the terminology pre-pass,
+     * into the engines created with the cache directory: the existing engines reload their cache with the entries,
+     * and the new engines are created with them (see {@link #newEngineDir(String)}). The configurations of the
+     * engines are not changed, so the existing engines are reused.
+     * <p>
+     * The existing engines must not be validating while preloaded.
+     *
+     * @param cacheDir the path to the cache directory the engines are created with
+     * @param entries the entries to preload
+     * @param name the unique name of the entries
+     */
+    @SneakyThrows
+    public static synchronized void preload(@Nonnull final String cacheDir, @Nonnull final Entries entries, @Nonnull final String name) {
+        if (!PRELOADED_NAMES.add(name)) {
+            return;
+        }
+        PRELOADED.computeIfAbsent(cacheDir, k -> new Entries()).merge(entries);
+        for (final EngineCache engineCache : ENGINE_CACHES.values()) {
+            if (engineCache.cacheDir.equals(cacheDir)) {
+                final int added = merge(entries, engineCache.dir);
+                // the preloaded entries do not need to be collected
+                engineCache.collectInto(entries, new Entries());
+                final ValidationEngine engine = engineCache.getEngine();
+                if (added > 0 && engine != null) {
+                    engine.getContext().initTxCache(engineCache.dir.getPath());
+                }
+                log.debug("Preloaded terminology cache: {} with: {} new entries", engineCache.dir, added);
+            }
+        }
+    }
+
+    /**
+     * Collects the entries added to the caches of the engines in this JVM since the last call. Only the files
+     * modified since then are read. Each engine collects its own entries, so the entries added by the engines
+     * of a later run (or of another configuration) in the same JVM are collected even if collected before from
+     * another engine. The caches of the engines garbage collected since the last call are released.
+     *
+     * @return the new entries
+     */
+    @Nonnull
+    public static synchronized Entries collect() {
+        final Entries collected = new Entries();
+        collected.merge(RELEASED);
+        RELEASED.entriesByFile.clear();
+        final Iterator<EngineCache> engineCaches = ENGINE_CACHES.values().iterator();
+        while (engineCaches.hasNext()) {
+            final EngineCache engineCache = engineCaches.next();
+            if (engineCache.isUnreachable()) {
+                release(engineCaches, engineCache, collected);
+            } else {
+                engineCache.collectInto(engineCache.readModified(), collected);
+            }
+        }
+        return collected;
+    }
+
+    /**
+     * Merges the entries into the cache directory. The entries already in the cache are kept.
+     *
+     * @param entries the entries to merge
+     * @param cacheDir the cache directory
+     * @return the number of the entries added to the cache
+     */
+    @SneakyThrows
+    public static int merge(@Nonnull final Entries entries, @Nonnull final File cacheDir) {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IllegalStateException("Cannot create directory: " + cacheDir);
+        }
+        final Entries existing = read(cacheDir);
+        int added = 0;
+        for (final Map.Entry<String, Map<String, String>> fileEntries : entries.entriesByFile.entrySet()) {
+            final String fileName = fileEntries.getKey();
+            final Map<String, String> merged = existing.entriesByFile.computeIfAbsent(fileName, k -> new LinkedHashMap<>());
+            final int size = merged.size();
+            fileEntries.getValue().forEach(merged::putIfAbsent);
+            if (merged.size() > size) {
+                added += merged.size() - size;
+                write(new File(cacheDir, fileName), merged);
+            }
+        }
+        return added;
+    }
+
+    private static void copy(@Nonnull final File fromDir, @Nonnull final File toDir) throws IOException {
+        final File[] files = fromDir.listFiles(file -> file.isFile() && !file.getName().endsWith(TEMP_EXTENSION));
+        if (files != null) {
+            for (final File file : files) {
+                Files.copy(file.toPath(), new File(toDir, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    @Nonnull
+    private static Entries read(@Nonnull final File dir) {
+        final Entries entries = new Entries();
+        final File[] files = dir.listFiles(File::isFile);
+        if (files != null) {
+            for (final File file : files) {
+                readFile(file, entries);
+            }
+        }
+        return entries;
+    }
+
+    private static boolean readFile(@Nonnull final File file, @Nonnull final Entries entries) {
+        final String content;
+        try {
+            content = Files.readString(file.toPath(), StandardCharsets.UTF_8);
+        } catch (final IOException ex) {
+            // the file may be being rewritten by the engine, so it is collected next time
+            log.warn("Cannot read terminology cache file: {}", file, ex);
+            return false;
+        }
+        if (isNamedCache(file.getName())) {
+            final String[] chunks = content.split(ENTRY_MARKER, -1);
+            // the engine rewrites the whole file, so the chunk after the last marker may be incomplete
+            for (int i = 0; i < chunks.length - 1; i++) {
+                final String chunk = chunks[i];
+                final int split = chunk.indexOf(BREAK);
+                if (split > 0) {
+                    entries.add(file.getName(), chunk.substring(0, split).trim(), chunk.trim());
+                }
+            }
+        } else {
+            entries.add(file.getName(), WHOLE_FILE, content);
+        }
+        return true;
+    }
+
+    @SneakyThrows
+    private static void write(@Nonnull final File file, @Nonnull final Map<String, String> entries) {
+        final StringBuilder content = new StringBuilder();
+        if (isNamedCache(file.getName())) {
+            content.append(ENTRY_MARKER).append(LINE_END);
+            entries.values().forEach(entry -> content.append(entry).append(LINE_END).append(ENTRY_MARKER).append(LINE_END));
+        } else {
+            content.append(entries.get(WHOLE_FILE));
+        }
+        // replaced atomically, so that the cache can be read by the engines of other runs
+        final File tempFile = new File(file.getParentFile(), file.getName() + TEMP_EXTENSION);
+        Files.writeString(tempFile.toPath(), content, StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Checks if the file has the responses to the individual requests (the cached capabilities start with a dot).
+     */
+    private static boolean isNamedCache(@Nonnull final String fileName) {
+        return fileName.endsWith(CACHE_EXTENSION) && !fileName.startsWith(".");
+    }
+
+    @Nonnull
+    private static String key(@Nonnull final String fileName, @Nonnull final String request) {
+        return fileName + "\n" + request;
+    }
+}
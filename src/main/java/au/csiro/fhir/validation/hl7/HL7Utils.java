@@ -3,13 +3,26 @@ package au.csiro.fhir.validation.hl7;
 import au.csiro.fhir.validation.ValidationResult;
 import lombok.SneakyThrows;
 import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r5.context.ContextUtilities;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.utilities.VersionUtilities;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 
 import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+@Slf4j
 @UtilityClass
 public class HL7Utils {
 
@@ -40,8 +53,10 @@ public class HL7Utils {
         if (message.getLocation() != null) {
             builder.location(message.getLocation());
         }
-        // Try to resolve message id
-        HL7MessageResolver.getMessageId(message.getMessage()).ifPresent(builder::messageId);
+        // Use the message id reported by the validator if known, otherwise try to resolve it from the message
+        HL7MessageResolver.getKnownMessageId(message.getMessageId())
+                .or(() -> HL7MessageResolver.getMessageId(message.getMessage()))
+                .ifPresent(builder::messageId);
         return builder.build();
     }
 
@@ -55,5 +70,38 @@ public class HL7Utils {
                 .collect(Collectors.toUnmodifiableList()));
     }
 
+    /**
+     * Generates the snapshots for the given profiles, so that they are not generated lazily on the first use.
+     * The profiles that already have a valid snapshot are only marked as generated.
+     *
+     * @param context the context the profiles are loaded into
+     * @param structures the profiles to generate the snapshots for
+     */
+    static void generateSnapshots(@Nonnull final IWorkerContext context,
+                                  @Nonnull final Collection<StructureDefinition> structures) {
+        final ContextUtilities utilities = new ContextUtilities(context);
+        for (final StructureDefinition sd : structures) {
+            if (!sd.isGeneratedSnapshot()) {
+                try {
+                    utilities.generateSnapshot(sd);
+                } catch (final Exception ex) {
+                    // leave it to the engine to report the problem when the profile is used
+                    log.warn("Unable to generate snapshot for: {}: {}", sd.getVersionedUrl(), ex.getMessage());
+                }
+            }
+        }
+    }
 
+    /**
+     * Deletes the directory with all its content. The files that cannot be deleted are left behind.
+     *
+     * @param dir the directory to delete
+     */
+    static void deleteDirectory(@Nonnull final File dir) {
+        try (final Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (final IOException | UncheckedIOException ex) {
+            log.warn("Cannot delete directory: {}", dir, ex);
+        }
+    }
 }
@@ -2,6 +2,7 @@ package au.csiro.fhir.validation.hl7;
 
 import lombok.Builder;
 import lombok.Singular;
+import lombok.SneakyThrows;
 import lombok.Value;
 import org.hl7.fhir.r5.utils.validation.constants.BestPracticeWarningLevel;
 import org.hl7.fhir.validation.cli.utils.ValidationLevel;
@@ -9,10 +10,12 @@ import org.hl7.fhir.validation.cli.utils.ValidationLevel;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.List;
 
 @Value
-@Builder
+@Builder(toBuilder = true)
 public class HL7ValidationConfig implements Serializable {
 
     // default version is R4
@@ -37,6 +40,14 @@ public class HL7ValidationConfig implements Serializable {
     @Builder.Default
     String txSever = null;
 
+    /**
+     * Bulk code lists loaded as local code systems (see {@link HL7CodeLists}), as
+     * {@code <system>[|<version>]=<file>[,<code column>[,<display column>]]}.
+     */
+    @Nonnull
+    @Singular("codeList")
+    List<String> codeLists;
+
     /**
      * If true, display mismatches in codings are reported as warnings instead of errors
      */
@@ -52,6 +63,84 @@ public class HL7ValidationConfig implements Serializable {
     @Builder.Default
     ValidationLevel validationLevel = ValidationLevel.HINTS;
 
+    /**
+     * If true, a single engine is created per JVM and shared by all the threads. The engine is fully
+     * initialized upfront and each thread only creates its own lightweight instance validators.
+     */
+    @Builder.Default
+    boolean sharedContext = false;
+
+    /**
+     * Path to a pre-built engine snapshot (see {@link HL7EngineSnapshot}). If set the conformance
+     * resources are loaded from the snapshot instead of from the implementation guides.
+     */
+    @Nullable
+    @Builder.Default
+    String engineSnapshot = null;
+
+    /**
+     * Path to an offline package cache (see {@link HL7PackageCache}). If set the packages are installed
+     * from the cache before the engine is created and must all be available there.
+     */
+    @Nullable
+    @Builder.Default
+    String packageCache = null;
+
+    /**
+     * Path to a persistent terminology cache (see {@link HL7TerminologyCache}). If set the engine is preloaded
+     * with the cached responses of the terminology server, and the new responses can be collected from it.
+     */
+    @Nullable
+    @Builder.Default
+    String txCache = null;
+
+    /**
+     * Digest of the resolved content of the configuration (see {@link HL7ContentDigest}), included in the fingerprint.
+     * If not set, the fingerprint depends only on the settings, e.g. on the paths and ids of the implementation guides.
+     */
+    @Nullable
+    @Builder.Default
+    String contentDigest = null;
+
+    /**
+     * Returns the fingerprint of the settings that affect the validation results.
+     * Two configurations with the same fingerprint produce the same validation results for the same input.
+     *
+     * @return the hex encoded SHA-256 digest of the validation settings
+     */
+    @Nonnull
+    @SneakyThrows
+    public String fingerprint() {
+        final String settings = String.join("\n",
+                version,
+                String.join(",", igs),
+                String.valueOf(language),
+                String.valueOf(txSever),
+                String.valueOf(displayMismatchAsWarning),
+                bestPracticeLevel.name(),
+                validationLevel.name());
+        // only added if used, so that the fingerprints of the other configurations do not change
+        final String allSettings = codeLists.isEmpty()
+                ? settings
+                : settings + "\n" + String.join(",", codeLists);
+        final String allContent = contentDigest == null
+                ? allSettings
+                : allSettings + "\n" + contentDigest;
+        return HL7ContentDigest.hex(MessageDigest.getInstance("SHA-256").digest(allContent.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Returns this configuration with the digest of its resolved content, so that its fingerprint also changes with
+     * the versions of the validator and of the packages and with the content of the implementation guide files.
+     * The packages are resolved from the local package cache or downloaded from the package registry.
+     *
+     * @return the configuration with the content digest
+     */
+    @Nonnull
+    public HL7ValidationConfig withResolvedContent() {
+        return toBuilder().contentDigest(HL7ContentDigest.of(this)).build();
+    }
+
 
     public static HL7ValidationConfig defaultConfig() {
         return HL7ValidationConfig.builder()
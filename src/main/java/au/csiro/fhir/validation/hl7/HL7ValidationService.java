@@ -6,79 +6,518 @@ import au.csiro.fhir.validation.ValidationService;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.utilities.FhirPublication;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.settings.FhirSettings;
 import org.hl7.fhir.utilities.tests.TestConstants;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.IgLoader;
 import org.hl7.fhir.validation.ValidationEngine;
 import org.hl7.fhir.validation.instance.InstanceValidator;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 
 import static java.util.Objects.nonNull;
 
 @Slf4j
 public class HL7ValidationService implements ValidationService {
 
-    private static final ThreadLocal<ValidationEngine> ENGINE = new ThreadLocal<>();
-    private final ValidationEngine validationEngine;
+    /**
+     * The default maximum number of engines (with distinct configurations) kept per thread, and shared per JVM.
+     * The least recently used engine is evicted when the limit is exceeded.
+     */
+    public static final int DEFAULT_MAX_ENGINES = 4;
+
+    /**
+     * The current maximum number of engines, which can be raised with {@link #ensureEngineCapacity(int)}.
+     */
+    private static volatile int maxEngines = DEFAULT_MAX_ENGINES;
+
+    private static final ThreadLocal<Map<HL7ValidationConfig, ValidationEngine>> ENGINES = ThreadLocal.withInitial(
+            HL7ValidationService::lruMap);
+
+    /**
+     * The shared engines, which are created outside the lock of the map, so that the engines for the other
+     * configurations can be used (or created) in the meantime.
+     */
+    private static final Map<HL7ValidationConfig, CompletableFuture<ValidationEngine>> SHARED_ENGINES = lruMap();
+    private static final Manager.FhirFormat FORMAT = Manager.FhirFormat.JSON;
+
+    /**
+     * The threads running the validations with a timeout, one per validating thread (see {@link WatchedThread}).
+     */
+    private static final ThreadLocal<WatchedThread> WATCHED_THREADS = ThreadLocal.withInitial(WatchedThread::new);
+
+    /**
+     * The time the idle watched threads are kept alive for, so that the threads of the finished validating threads
+     * (e.g. of the tasks) are released.
+     */
+    private static final long WATCHED_THREAD_KEEP_ALIVE_MILLIS = 60_000;
+
+    private static final ThreadFactory WATCHED_THREAD_FACTORY = watchedThreadFactory();
+
+    /**
+     * The watched thread of a validating thread, which runs its validations with a timeout. The thread of an abandoned
+     * validation is interrupted and replaced with a new one, but it may keep running (with the abandoned engine)
+     * until it checks the interrupt. At most one abandoned thread is allowed to run per validating thread,
+     * so that the threads and the engines are bounded: the engine is not recycled again until it finishes.
+     */
+    private static final class WatchedThread {
+
+        @Nullable
+        private ExecutorService active;
+
+        @Nullable
+        private ExecutorService abandoned;
+
+        @Nonnull
+        ExecutorService get() {
+            if (active == null) {
+                final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, WATCHED_THREAD_KEEP_ALIVE_MILLIS,
+                        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), WATCHED_THREAD_FACTORY);
+                executor.allowCoreThreadTimeOut(true);
+                active = executor;
+            }
+            return active;
+        }
+
+        /**
+         * Abandons the active thread, after waiting for the thread abandoned before (if still running) to finish.
+         *
+         * @param warnMillis the interval of the warnings logged while waiting
+         */
+        void abandon(final long warnMillis) throws InterruptedException {
+            while (abandoned != null && !abandoned.awaitTermination(warnMillis, TimeUnit.MILLISECONDS)) {
+                log.warn("Waiting for the validation abandoned before to stop, before abandoning another one");
+            }
+            abandoned = active;
+            active = null;
+            if (abandoned != null) {
+                // the thread terminates when the abandoned validation stops
+                abandoned.shutdown();
+            }
+        }
+    }
+
+    /**
+     * The result of a resource validated in a watched thread, with its phase times (if measured).
+     */
+    private static final class Published {
+        @Nonnull
+        private final ValidationResult result;
+        @Nullable
+        private final HL7PhaseTimes phaseTimes;
+
+        Published(@Nonnull final ValidationResult result, @Nullable final HL7PhaseTimes phaseTimes) {
+            this.result = result;
+            this.phaseTimes = phaseTimes;
+        }
+    }
+
+    /**
+     * The total time spent creating the engines in this JVM (in nanoseconds).
+     */
+    private static final AtomicLong ENGINE_INIT_NANOS = new AtomicLong();
+
+    /**
+     * The engine, which is replaced with a new one after an abandoned validation (see {@link #recycleEngine()}).
+     */
+    private volatile ValidationEngine validationEngine;
     private final boolean showProgress;
 
+    /**
+     * The configuration the engine was created with (by {@link #getOrCreate(HL7ValidationConfig)}),
+     * or null if the engine cannot be recreated.
+     */
+    @Nullable
+    private final HL7ValidationConfig config;
+
+    /**
+     * The maximum time to validate a single resource in milliseconds (0 for no limit).
+     */
+    private final long timeoutMillis;
+
+    /**
+     * Receives the phase times of each validated resource (with its index in the batch), or null if not measured.
+     */
+    @Nullable
+    private final ObjIntConsumer<HL7PhaseTimes> phaseTimesListener;
+
     public HL7ValidationService(@Nonnull final ValidationEngine validationEngine, boolean showProgress) {
+        this(validationEngine, showProgress, null, 0, null);
+    }
+
+    private HL7ValidationService(@Nonnull final ValidationEngine validationEngine, final boolean showProgress,
+                                 @Nullable final HL7ValidationConfig config, final long timeoutMillis,
+                                 @Nullable final ObjIntConsumer<HL7PhaseTimes> phaseTimesListener) {
         this.validationEngine = validationEngine;
         this.showProgress = showProgress;
+        this.config = config;
+        this.timeoutMillis = timeoutMillis;
+        this.phaseTimesListener = phaseTimesListener;
+    }
+
+    /**
+     * Creates the service that abandons the validation of the resources that take longer than the timeout,
+     * with a {@link ValidationResult#fromTimeout(long) timeout} result. The validations run in a separate
+     * thread watched by the calling thread, which interrupts the thread of an abandoned validation and replaces
+     * the engine it was using (if created with {@link #getOrCreate(HL7ValidationConfig)}), as it may be left
+     * in an inconsistent state. The abandoned validation may only stop at the end of the resource, and another one
+     * is not abandoned by the calling thread (and the engine is not recycled again) until then.
+     *
+     * @param timeoutMillis the maximum time to validate a single resource in milliseconds (0 for no limit)
+     * @return the service with the timeout
+     */
+    @Nonnull
+    public HL7ValidationService withTimeout(final long timeoutMillis) {
+        return new HL7ValidationService(validationEngine, showProgress, config, timeoutMillis, phaseTimesListener);
+    }
+
+    /**
+     * Creates the service that measures the time spent in the phases of the validation of each resource
+     * (see {@link HL7PhaseTimes}) and passes it to the listener, together with the index of the resource
+     * in the validated batch (0 for a single resource). The listener is called by the calling thread,
+     * also for the abandoned validations, with only the timeout as their total time.
+     *
+     * @param phaseTimesListener the listener of the phase times
+     * @return the service measuring the phase times
+     */
+    @Nonnull
+    public HL7ValidationService withPhaseTimes(@Nonnull final ObjIntConsumer<HL7PhaseTimes> phaseTimesListener) {
+        return new HL7ValidationService(validationEngine, showProgress, config, timeoutMillis, phaseTimesListener);
     }
 
     @Override
     @Nonnull
-    public ValidationResult validateJson(@Nonnull final byte[] data) {
+    public ValidationResult validateJson(@Nonnull final byte[] data, final int offset, final int length) {
+        if (timeoutMillis > 0) {
+            return validateBatch(List.of(Arrays.copyOfRange(data, offset, offset + length))).get(0);
+        }
         try {
-            // this replicates the functionality of ValidationEngine.validate()
-            // but is needed to customize the InstanceValidator
-            final Manager.FhirFormat format = Manager.FhirFormat.JSON;
-            List<ValidationMessage> messages = new ArrayList<>();
-            InstanceValidator validator = validationEngine.getValidator(format);
-            // customize the instance validator
-            validator.setLogProgress(showProgress);
-            validator.validate(null, messages, new ByteArrayInputStream(data), format, Collections.emptyList());
-            return HL7Utils.validationMessagesToResult(messages);
+            return validateJson(newInstanceValidator(), data, offset, length, phaseTimesConsumer(0));
         } catch (final IOException e) {
             return ValidationResult.fromException(e);
         }
     }
 
+    /**
+     * Validates the batch with a single instance validator, which resets its state for each resource.
+     */
+    @Override
+    @Nonnull
+    public List<ValidationResult> validateBatch(@Nonnull final List<byte[]> batch) {
+        if (timeoutMillis > 0) {
+            return validateBatchWithTimeout(batch);
+        }
+        final InstanceValidator validator;
+        try {
+            validator = newInstanceValidator();
+        } catch (final IOException e) {
+            return Collections.nCopies(batch.size(), ValidationResult.fromException(e));
+        }
+        final List<ValidationResult> results = new ArrayList<>(batch.size());
+        for (final byte[] data : batch) {
+            results.add(validateJson(validator, data, 0, data.length, phaseTimesConsumer(results.size())));
+        }
+        return results;
+    }
+
+    /**
+     * Validates the batch with a single instance validator in a watched thread, which publishes the result
+     * of each resource as soon as it is validated. If a result is not published within the timeout the validation
+     * is abandoned and the remaining resources are validated in a new thread with the recycled engine.
+     */
+    @Nonnull
+    private List<ValidationResult> validateBatchWithTimeout(@Nonnull final List<byte[]> batch) {
+        final List<ValidationResult> results = new ArrayList<>(batch.size());
+        while (results.size() < batch.size()) {
+            final List<byte[]> remaining = batch.subList(results.size(), batch.size());
+            final BlockingQueue<Published> published = new LinkedBlockingQueue<>();
+            final ValidationEngine engine = validationEngine;
+            final WatchedThread watchedThread = WATCHED_THREADS.get();
+            final Future<?> worker = watchedThread.get().submit(() -> {
+                final InstanceValidator validator;
+                try {
+                    validator = newInstanceValidator(engine);
+                } catch (final IOException e) {
+                    remaining.forEach(data -> published.add(new Published(ValidationResult.fromException(e), null)));
+                    return;
+                }
+                for (final byte[] data : remaining) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    final HL7PhaseTimes[] phaseTimes = new HL7PhaseTimes[1];
+                    try {
+                        final ValidationResult result = validateJson(validator, data, 0, data.length,
+                                phaseTimesListener != null ? times -> phaseTimes[0] = times : null);
+                        published.add(new Published(result, phaseTimes[0]));
+                    } catch (final RuntimeException e) {
+                        published.add(new Published(ValidationResult.fromException(e), null));
+                    }
+                }
+            });
+            try {
+                while (results.size() < batch.size()) {
+                    final Published result = published.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+                    if (result == null) {
+                        worker.cancel(true);
+                        log.warn("Abandoned the validation of a resource after the timeout of {} ms", timeoutMillis);
+                        if (phaseTimesListener != null) {
+                            phaseTimesListener.accept(HL7PhaseTimes.ofTotal(timeoutMillis), results.size());
+                        }
+                        results.add(ValidationResult.fromTimeout(timeoutMillis));
+                        watchedThread.abandon(timeoutMillis);
+                        recycleEngine();
+                        break;
+                    }
+                    if (result.phaseTimes != null) {
+                        phaseTimesListener.accept(result.phaseTimes, results.size());
+                    }
+                    results.add(result.result);
+                }
+            } catch (final InterruptedException ex) {
+                worker.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the validation result", ex);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Replaces the engine used by an abandoned validation with a new one (also in the engine caches).
+     */
+    private void recycleEngine() {
+        if (config == null) {
+            log.warn("Cannot recycle the engine of an abandoned validation (unknown configuration)");
+            return;
+        }
+        final ValidationEngine abandoned = validationEngine;
+        if (config.isSharedContext()) {
+            synchronized (SHARED_ENGINES) {
+                final CompletableFuture<ValidationEngine> current = SHARED_ENGINES.get(config);
+                if (current != null && current.getNow(null) == abandoned) {
+                    SHARED_ENGINES.remove(config);
+                }
+            }
+        } else {
+            ENGINES.get().remove(config, abandoned);
+        }
+        HL7TerminologyCache.release(abandoned);
+        log.info("Recycling the engine for config: {}", config);
+        validationEngine = getOrCreate(config).validationEngine;
+    }
+
+    @Nonnull
+    private InstanceValidator newInstanceValidator() throws IOException {
+        return newInstanceValidator(validationEngine);
+    }
+
+    @Nonnull
+    private InstanceValidator newInstanceValidator(@Nonnull final ValidationEngine validationEngine) throws IOException {
+        final InstanceValidator validator = validationEngine.getValidator(FORMAT);
+        // customize the instance validator
+        validator.setLogProgress(showProgress);
+        return validator;
+    }
+
+    /**
+     * Gets the consumer passing the phase times of the resource at the index in the batch to the listener,
+     * or null if not measured.
+     */
+    @Nullable
+    private Consumer<HL7PhaseTimes> phaseTimesConsumer(final int index) {
+        return phaseTimesListener != null
+                ? times -> phaseTimesListener.accept(times, index)
+                : null;
+    }
+
+    @Nonnull
+    private ValidationResult validateJson(@Nonnull final InstanceValidator validator, @Nonnull final byte[] data,
+                                          final int offset, final int length,
+                                          @Nullable final Consumer<HL7PhaseTimes> phaseTimesConsumer) {
+        // this replicates the functionality of ValidationEngine.validate()
+        // but is needed to customize the InstanceValidator
+        final List<ValidationMessage> messages = new ArrayList<>();
+        final HL7PhaseTimes.Snapshot start = phaseTimesConsumer != null
+                ? HL7PhaseTimes.snapshot(validator)
+                : null;
+        validator.validate(null, messages, new ByteArrayInputStream(data, offset, length), FORMAT, Collections.emptyList());
+        if (start != null) {
+            phaseTimesConsumer.accept(HL7PhaseTimes.since(start, validator));
+        }
+        return HL7Utils.validationMessagesToResult(messages);
+    }
+
+    /**
+     * Gets the validation service for the given configuration. The engines are cached by the configuration,
+     * either per thread or per JVM if {@link HL7ValidationConfig#isSharedContext()} is set, so that
+     * resources requiring different configurations (e.g. FHIR versions or sets of IGs) can be validated
+     * in the same JVM.
+     *
+     * @param config the validation configuration
+     * @return the validation service
+     */
     @Nonnull
-    @SneakyThrows
     public static HL7ValidationService getOrCreate(@Nonnull final HL7ValidationConfig config) {
-        // NOTE: This is currently assuming that the config does not change for a thread
-        // and always returns the exising engine with the initial config regardless of the input config
-        if (ENGINE.get() != null) {
-            log.debug("Re-using thread-local ValidationEngine for config: {}", config);
-            return new HL7ValidationService(ENGINE.get(), config.isShowProgress());
+        final ValidationEngine validationEngine;
+        if (config.isSharedContext()) {
+            validationEngine = getOrCreateShared(config);
+        } else {
+            validationEngine = ENGINES.get().computeIfAbsent(config, c -> {
+                log.debug("Setting thread-local ValidationEngine for config: {}", c);
+                return timed(() -> createEngine(c));
+            });
         }
+        return new HL7ValidationService(validationEngine, config.isShowProgress(), config, 0, null);
+    }
 
-        log.debug("Setting thread-local clone of ValidationEngine for config: {}", config);
-        ENGINE.set(createEngine(config));
-        return new HL7ValidationService(ENGINE.get(), config.isShowProgress());
+    /**
+     * Raises the maximum number of engines kept per thread and shared per JVM to at least the given number,
+     * e.g. to the number of the configurations used together, so that their engines are not evicted.
+     *
+     * @param engines the number of the engines to keep
+     */
+    public static void ensureEngineCapacity(final int engines) {
+        if (engines > maxEngines) {
+            synchronized (HL7ValidationService.class) {
+                maxEngines = Math.max(maxEngines, engines);
+            }
+        }
     }
 
+    /**
+     * Gets the shared engine for the configuration, or creates it if the calling thread is the first to request it.
+     * The other threads requesting the same configuration wait for the engine to be created.
+     */
     @Nonnull
     @SneakyThrows
+    private static ValidationEngine getOrCreateShared(@Nonnull final HL7ValidationConfig config) {
+        final CompletableFuture<ValidationEngine> created = new CompletableFuture<>();
+        final CompletableFuture<ValidationEngine> existing;
+        synchronized (SHARED_ENGINES) {
+            existing = SHARED_ENGINES.putIfAbsent(config, created);
+        }
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (final CompletionException ex) {
+                throw ex.getCause();
+            }
+        }
+        try {
+            final ValidationEngine validationEngine = timed(() -> createSharedEngine(config));
+            created.complete(validationEngine);
+            return validationEngine;
+        } catch (final Throwable ex) {
+            // the next request creates the engine again
+            synchronized (SHARED_ENGINES) {
+                SHARED_ENGINES.remove(config, created);
+            }
+            created.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Gets the total time spent creating the engines (with {@link #getOrCreate(HL7ValidationConfig)}) in this JVM.
+     *
+     * @return the engine initialization time in milliseconds
+     */
+    public static long getEngineInitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ENGINE_INIT_NANOS.get());
+    }
+
+    @Nonnull
+    private static ValidationEngine timed(@Nonnull final Supplier<ValidationEngine> engineFactory) {
+        final long startTime = System.nanoTime();
+        try {
+            return engineFactory.get();
+        } finally {
+            ENGINE_INIT_NANOS.addAndGet(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Creates an engine that can be shared by multiple threads. All the conformance resources are loaded
+     * and all the profile snapshots are generated upfront, so that the context is not modified
+     * when used concurrently by the instance validators.
+     *
+     * @param config the validation configuration
+     * @return the fully initialized engine
+     */
+    @Nonnull
+    static ValidationEngine createSharedEngine(@Nonnull final HL7ValidationConfig config) {
+        log.debug("Creating shared ValidationEngine for config: {}", config);
+        final ValidationEngine validationEngine = createEngine(config);
+        // this forces the loading of all lazy loaded resources
+        validationEngine.getContext().fetchResourcesByType(CanonicalResource.class);
+        HL7Utils.generateSnapshots(validationEngine.getContext(),
+                validationEngine.getContext().fetchResourcesByType(StructureDefinition.class));
+        return validationEngine;
+    }
+
+    @Nonnull
     // synchronize here - this increases the init time but seems the only way
     // for not to get around all the synchronization issues
     public static synchronized ValidationEngine createEngine(@Nonnull final HL7ValidationConfig config) {
+        log.debug("Creating new ValidationEngine for config: {}", config);
+        final FilesystemPackageCacheManager pcm = nonNull(config.getPackageCache())
+                ? HL7PackageCache.install(config.getPackageCache(), config)
+                : null;
+        // only while creating the engine (the settings are global), and the terminology server still needs the network access
+        final boolean prohibitNetworkAccess = FhirSettings.isProhibitNetworkAccess();
+        if (pcm != null && config.getTxSever() == null) {
+            FhirSettings.setProhibitNetworkAccess(true);
+        }
+        try {
+            return createEngine(config, pcm);
+        } finally {
+            FhirSettings.setProhibitNetworkAccess(prohibitNetworkAccess);
+        }
+    }
+
+    @Nonnull
+    @SneakyThrows
+    private static ValidationEngine createEngine(@Nonnull final HL7ValidationConfig config,
+                                                 @Nullable final FilesystemPackageCacheManager pcm) {
 
         // based on:
         // org.hl7.fhir.validation.ValidatorCli.getValidationEngine
         // org.hl7.fhir.validation.cli.services.ValidationService.buildValidationEngine
 
-        log.debug("Creating new ValidationEngine for config: {}", config);
         ValidationEngine.ValidationEngineBuilder builder = nonNull(config.getTxSever())
                 ? new ValidationEngine.ValidationEngineBuilder().withTxServer(config.getTxSever(),
                 null, FhirPublication.fromCode(config.getVersion()), true)
                 : new ValidationEngine.ValidationEngineBuilder().withNoTerminologyServer();
+        final String txCacheDir = nonNull(config.getTxCache())
+                ? HL7TerminologyCache.newEngineDir(config.getTxCache())
+                : null;
+        if (txCacheDir != null) {
+            // otherwise all the engines share the default cache in the temp directory
+            builder = builder.withTerminologyCachePath(txCacheDir);
+        }
 
         final String fhirDefinition = HL7Utils.getFhirDefinitionFromVersion(config.getVersion());
         log.info("Load FHIR v{} from {}", config.getVersion(), fhirDefinition);
@@ -94,11 +533,63 @@ public class HL7ValidationService implements ValidationService {
                 .setDisplayWarnings(config.isDisplayMismatchAsWarning())
                 .setShowTimes(false)
                 .setDebug(false);
-        for (final String ig : config.getIgs()) {
-            validationEngine.loadPackage(ig, null);
+        if (txCacheDir != null) {
+            HL7TerminologyCache.attach(txCacheDir, validationEngine);
+        }
+        if (pcm != null) {
+            // the guides are loaded from the offline packages
+            validationEngine.setPcm(pcm);
+            validationEngine.setIgLoader(new IgLoader(pcm, validationEngine.getContext(), validationEngine.getVersion(),
+                    validationEngine.isDebug()));
+        }
+        if (nonNull(config.getEngineSnapshot())) {
+            HL7EngineSnapshot.load(validationEngine, config.getEngineSnapshot());
+        } else {
+            HL7PackageLoader.loadPackages(validationEngine, config.getIgs());
+        }
+        if (!config.getCodeLists().isEmpty()) {
+            // not in the engine snapshots, as the code lists are not in a package
+            HL7CodeLists.load(validationEngine, config.getCodeLists());
         }
         log.info("Package Summary: {}", validationEngine.getContext().loadedPackageSummary());
         return validationEngine;
     }
 
+    @Nonnull
+    private static ThreadFactory watchedThreadFactory() {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, "watched-validation-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Releases the resources of an evicted engine (or of the future of a shared engine, if already created).
+     */
+    private static void releaseEngine(@Nullable final Object engine) {
+        final Object created = engine instanceof CompletableFuture
+                ? ((CompletableFuture<?>) engine).isCompletedExceptionally() ? null : ((CompletableFuture<?>) engine).getNow(null)
+                : engine;
+        if (created instanceof ValidationEngine) {
+            HL7TerminologyCache.release((ValidationEngine) created);
+        }
+    }
+
+    @Nonnull
+    private static <K, V> Map<K, V> lruMap() {
+        return new LinkedHashMap<>(DEFAULT_MAX_ENGINES + 1, 1.0f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+                if (size() > maxEngines) {
+                    log.debug("Evicting ValidationEngine for config: {}", eldest.getKey());
+                    releaseEngine(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
 }
@@ -0,0 +1,253 @@
+package au.csiro.fhir.validation.hl7;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Resolves the id of a message from the message templates, with the same results as {@link MessageResolver}.
+ * <p>
+ * The templates are split into the literal fragments between their placeholders and indexed in a trie
+ * by their leading fragment (or by their trailing fragment, for the templates starting with a placeholder).
+ * Only the few templates selected by the index are matched against the message, in the same order
+ * of priority as the alternatives of the {@link MessageResolver} pattern (the longest templates first).
+ * The resolved ids are memoized in a bounded LRU cache, as the same messages are reported for many resources.
+ */
+public class IndexedMessageResolver {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{(\\d+)\\}");
+
+    private static final class Template {
+        @Nonnull
+        final String id;
+        @Nonnull
+        final String[] parts;
+        @Nonnull
+        final Pattern pattern;
+        @Nonnull
+        final int[] placeholders;
+
+        Template(@Nonnull final String id, @Nonnull final String message) {
+            this.id = id;
+            this.parts = MessageResolver.messageToParts(message);
+            this.pattern = Pattern.compile("^" + MessageResolver.messageToRegex(message) + "$");
+            this.placeholders = PLACEHOLDER.matcher(message).results()
+                    .mapToInt(r -> Integer.parseInt(r.group(1)))
+                    .toArray();
+        }
+
+        @Nullable
+        List<String> parameters(@Nonnull final String message) {
+            if (!message.startsWith(parts[0]) || !message.endsWith(parts[parts.length - 1])) {
+                return null;
+            }
+            final String[] values = new String[IntStream.of(placeholders).max().orElse(-1) + 1];
+            int pos = parts[0].length();
+            for (int i = 1; i < parts.length; i++) {
+                // the parameters end at the first occurrence of the next fragment (or at the trailing one)
+                final int end = i < parts.length - 1
+                        ? message.indexOf(parts[i], pos)
+                        : message.length() - parts[i].length();
+                if (end < pos) {
+                    return null;
+                }
+                final String value = message.substring(pos, end);
+                final int placeholder = placeholders[i - 1];
+                if (values[placeholder] != null && !values[placeholder].equals(value)) {
+                    return null;
+                }
+                values[placeholder] = value;
+                pos = end + parts[i].length();
+            }
+            return Arrays.asList(values);
+        }
+
+        boolean matches(@Nonnull final String message, final boolean multiline) {
+            if (multiline) {
+                // `.` does not match line terminators and `$` matches before the final one, so leave these to the regex
+                return pattern.matcher(message).find();
+            }
+            if (!message.startsWith(parts[0])) {
+                return false;
+            }
+            if (parts.length == 1) {
+                return message.length() == parts[0].length();
+            }
+            int pos = parts[0].length();
+            for (int i = 1; i < parts.length - 1; i++) {
+                final int index = message.indexOf(parts[i], pos);
+                if (index < 0) {
+                    return false;
+                }
+                pos = index + parts[i].length();
+            }
+            final String last = parts[parts.length - 1];
+            return message.length() - last.length() >= pos && message.endsWith(last);
+        }
+    }
+
+    private static final class TrieNode {
+        final Map<Character, TrieNode> children = new HashMap<>();
+        final List<Integer> templates = new ArrayList<>();
+    }
+
+    @Nonnull
+    private final List<Template> templates;
+
+    @Nonnull
+    private final Map<String, Template> templatesById = new HashMap<>();
+
+    @Nonnull
+    private final TrieNode prefixIndex = new TrieNode();
+
+    @Nonnull
+    private final TrieNode suffixIndex = new TrieNode();
+
+    @Nonnull
+    private final List<Integer> suffixIndexed = new ArrayList<>();
+
+    @Nonnull
+    private final List<Integer> unindexed = new ArrayList<>();
+
+    @Nonnull
+    private final Map<String, Optional<String>> memo;
+
+    private IndexedMessageResolver(@Nonnull final List<Template> templates, final int memoSize) {
+        this.templates = templates;
+        for (int i = 0; i < templates.size(); i++) {
+            templatesById.put(templates.get(i).id, templates.get(i));
+            final String[] parts = templates.get(i).parts;
+            if (!parts[0].isEmpty()) {
+                add(prefixIndex, parts[0], false, i);
+            } else if (!parts[parts.length - 1].isEmpty()) {
+                add(suffixIndex, parts[parts.length - 1], true, i);
+                suffixIndexed.add(i);
+            } else {
+                unindexed.add(i);
+            }
+        }
+        this.memo = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Optional<String>> eldest) {
+                return size() > memoSize;
+            }
+        };
+    }
+
+    /**
+     * Resolves the id of the message.
+     *
+     * @param message the message
+     * @return the id of the first (longest) template matching the message, if any
+     */
+    @Nonnull
+    public Optional<String> getMessageId(@Nonnull final String message) {
+        synchronized (memo) {
+            final Optional<String> memoized = memo.get(message);
+            if (memoized != null) {
+                return memoized;
+            }
+        }
+        final Optional<String> messageId = resolve(message);
+        synchronized (memo) {
+            memo.put(message, messageId);
+        }
+        return messageId;
+    }
+
+    /**
+     * Extracts the values of the placeholders of a template from a message formatted with it.
+     * Each parameter extends to the first occurrence of the literal fragment following it in the template,
+     * so the values containing that fragment are not extracted correctly.
+     *
+     * @param id the id of the template
+     * @param message the message
+     * @return the values indexed by the placeholder number (null for the numbers not used in the template),
+     * or null if the message does not have the literal fragments of the template
+     */
+    @Nullable
+    public List<String> getParameters(@Nonnull final String id, @Nonnull final String message) {
+        final Template template = templatesById.get(id);
+        return template != null
+                ? template.parameters(message)
+                : null;
+    }
+
+    @Nonnull
+    private Optional<String> resolve(@Nonnull final String message) {
+        final boolean multiline = hasLineTerminator(message);
+        final List<Integer> candidates = new ArrayList<>(unindexed);
+        collect(prefixIndex, message, false, candidates);
+        if (multiline) {
+            // the message may end with a line terminator after the trailing fragment
+            candidates.addAll(suffixIndexed);
+        } else {
+            collect(suffixIndex, message, true, candidates);
+        }
+        candidates.sort(Comparator.naturalOrder());
+        for (final int candidate : candidates) {
+            final Template template = templates.get(candidate);
+            if (template.matches(message, multiline)) {
+                return Optional.of(template.id);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static void add(@Nonnull final TrieNode root, @Nonnull final String key, final boolean reverse, final int template) {
+        TrieNode node = root;
+        for (int i = 0; i < key.length(); i++) {
+            final char c = key.charAt(reverse ? key.length() - 1 - i : i);
+            node = node.children.computeIfAbsent(c, k -> new TrieNode());
+        }
+        node.templates.add(template);
+    }
+
+    private static void collect(@Nonnull final TrieNode root, @Nonnull final String message, final boolean reverse,
+                                @Nonnull final List<Integer> candidates) {
+        TrieNode node = root;
+        for (int i = 0; i < message.length() && node != null; i++) {
+            node = node.children.get(message.charAt(reverse ? message.length() - 1 - i : i));
+            if (node != null) {
+                candidates.addAll(node.templates);
+            }
+        }
+    }
+
+    private static boolean hasLineTerminator(@Nonnull final String message) {
+        for (int i = 0; i < message.length(); i++) {
+            final char c = message.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates the resolver for the message templates.
+     *
+     * @param messages the message templates by id
+     * @param memoSize the maximum number of resolved messages to memoize
+     * @return the resolver
+     */
+    @Nonnull
+    public static IndexedMessageResolver ofMessages(@Nonnull final Map<String, String> messages, final int memoSize) {
+        // the same order as the alternatives in MessageResolver.ofMessages()
+        final List<Template> templates = messages.entrySet().stream()
+                .sorted(Comparator.comparingInt(kv -> -kv.getValue().length()))
+                .map(kv -> new Template(kv.getKey(), kv.getValue()))
+                .collect(Collectors.toUnmodifiableList());
+        return new IndexedMessageResolver(templates, memoSize);
+    }
+}
@@ -9,6 +9,12 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+/**
+ * Resolves the id of a message by matching it against a single pattern with an alternative for each message template.
+ * <p>
+ * This is the reference implementation for {@link IndexedMessageResolver}, which is used to resolve the messages
+ * reported by the validator.
+ */
 @AllArgsConstructor
 public class MessageResolver {
 
@@ -31,11 +37,15 @@ public class MessageResolver {
     }
 
     @Nonnull
-    private static String messageToRegex(@Nonnull final String message) {
+    static String[] messageToParts(@Nonnull final String message) {
         // unescape '' and split message using regex matching {0} and {1} and {2} etc
-        String[] parts = message.replace("''", "'").split("\\{\\d+\\}", -1);
-        // now Pattern.quote() the parts and join them with the regex matching any character
-        return Stream.of(parts).map(Pattern::quote).collect(Collectors.joining(".*"));
+        return message.replace("''", "'").split("\\{\\d+\\}", -1);
+    }
+
+    @Nonnull
+    static String messageToRegex(@Nonnull final String message) {
+        // Pattern.quote() the parts and join them with the regex matching any character
+        return Stream.of(messageToParts(message)).map(Pattern::quote).collect(Collectors.joining(".*"));
     }
 
     @Nonnull
@@ -0,0 +1,61 @@
+package au.csiro.fhir.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderedParallelIteratorTest {
+
+    @Test
+    void testPreservesOrder() {
+        final List<Integer> input = IntStream.range(0, 1000).boxed().collect(Collectors.toUnmodifiableList());
+        final List<Integer> result = Streams.streamOf(OrderedParallelIterator.of(input.iterator(), i -> {
+            sleep(ThreadLocalRandom.current().nextInt(2));
+            return i * 2;
+        }, 8)).collect(Collectors.toUnmodifiableList());
+        assertEquals(input.stream().map(i -> i * 2).collect(Collectors.toUnmodifiableList()), result);
+    }
+
+    @Test
+    void testBoundsElementsInFlight() {
+        final AtomicInteger consumed = new AtomicInteger();
+        final Iterator<Integer> input = IntStream.range(0, 1000).peek(i -> consumed.incrementAndGet()).iterator();
+        final OrderedParallelIterator<Integer, Integer> iterator = OrderedParallelIterator.of(input, i -> i, 4);
+        assertEquals(0, iterator.next());
+        assertTrue(consumed.get() <= 9, "consumed: " + consumed.get());
+        iterator.close();
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    void testPropagatesErrors() {
+        final Iterator<Integer> iterator = OrderedParallelIterator.of(IntStream.range(0, 10).iterator(), i -> {
+            if (i == 5) {
+                throw new IllegalArgumentException("Invalid: " + i);
+            }
+            return i;
+        }, 2);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, iterator.next());
+        }
+        assertThrows(IllegalArgumentException.class, iterator::next);
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
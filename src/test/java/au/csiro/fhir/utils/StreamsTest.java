@@ -0,0 +1,23 @@
+package au.csiro.fhir.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class StreamsTest {
+
+    @Test
+    void testBatchesOf() {
+        final List<List<Integer>> batches = Streams.streamOf(Streams.batchesOf(IntStream.range(0, 7).iterator(), 3))
+                .collect(Collectors.toUnmodifiableList());
+        assertEquals(List.of(List.of(0, 1, 2), List.of(3, 4, 5), List.of(6)), batches);
+        assertFalse(Streams.batchesOf(List.of().iterator(), 3).hasNext());
+        assertThrows(IllegalArgumentException.class, () -> Streams.batchesOf(List.of().iterator(), 0));
+    }
+}
@@ -0,0 +1,120 @@
+package au.csiro.fhir.validation;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CachingValidationServiceTest {
+
+    private final AtomicInteger validations = new AtomicInteger();
+
+    private final ValidationService delegate = (data, offset, length) -> {
+        validations.incrementAndGet();
+        return ValidationResult.of(ValidationResult.Issue.builder()
+                .level("error").type("invalid")
+                .message("length: " + length)
+                .line(1).col(length)
+                .build());
+    };
+
+    @Test
+    void testCachesIdenticalResources() {
+        final List<byte[]> batch = bytes(
+                "{\"resourceType\":\"Patient\",\"id\":\"1\"}",
+                "{\"resourceType\":\"Patient\",\"id\":\"22\"}",
+                "{\"resourceType\":\"Patient\",\"id\":\"1\"}");
+        final List<ValidationResult> expectedResults = delegate.validateBatch(batch);
+        validations.set(0);
+
+        final CachingValidationService service = new CachingValidationService(delegate,
+                ValidationResultCache.getOrCreate(UUID.randomUUID().toString(), 100, false));
+        assertEquals(expectedResults, service.validateBatch(batch));
+        assertEquals(expectedResults.get(1), service.validateJson(batch.get(1)));
+        assertEquals(2, validations.get());
+        assertEquals(2, service.getHits());
+        assertEquals(2, service.getMisses());
+
+        // only the first occurrences of the resources not in the cache are delegated
+        final List<Integer> delegatedIndexes = new ArrayList<>();
+        service.validateBatch(bytes(
+                "{\"resourceType\":\"Patient\",\"id\":\"1\"}",
+                "{\"resourceType\":\"Patient\",\"id\":\"333\"}",
+                "{\"resourceType\":\"Patient\",\"id\":\"333\"}"), delegatedIndexes::add);
+        assertEquals(List.of(1), delegatedIndexes);
+    }
+
+    @Test
+    void testNormalizesIdAndLastUpdated() {
+        final CachingValidationService service = new CachingValidationService(delegate,
+                ValidationResultCache.getOrCreate(UUID.randomUUID().toString(), 100, true));
+        final List<ValidationResult> results = service.validateBatch(bytes(
+                "{\"resourceType\":\"Patient\",\"id\":\"1\",\"meta\":{\"lastUpdated\":\"2022-05-24T15:14:55.471-04:00\"}}",
+                "{\"resourceType\":\"Patient\",\"id\":\"22\",\"meta\":{\"lastUpdated\":\"2023-01-01T00:00:00Z\"}}",
+                "{\"resourceType\":\"Patient\",\"id\":\"1\",\"meta\":{\"lastUpdated\":\"2022-05-24T15:14:55.471-04:00\"}}"));
+        assertEquals(1, validations.get());
+        assertEquals(results.get(0), results.get(2));
+        // the positions do not apply to the resources with different content
+        assertNull(results.get(1).getIssues().get(0).getLine());
+        assertEquals(results.get(0).getIssues().get(0).getMessage(), results.get(1).getIssues().get(0).getMessage());
+    }
+
+    @Test
+    void testDoesNotNormalizeSignificantDifferences() {
+        final CachingValidationService service = new CachingValidationService(delegate,
+                ValidationResultCache.getOrCreate(UUID.randomUUID().toString(), 100, true));
+        service.validateBatch(bytes(
+                "{\"resourceType\":\"Patient\",\"id\":\"1\"}",
+                "{\"resourceType\":\"Patient\",\"id\":\"invalid id!\"}",
+                "{\"resourceType\":\"Observation\",\"valueQuantity\":{\"value\":1.5}}",
+                "{\"resourceType\":\"Observation\",\"valueQuantity\":{\"value\":1.50}}",
+                "{\"resourceType\":\"Patient\",\"active\":true,\"active\":false}",
+                "{\"resourceType\":\"Patient\",\"active\":false}"));
+        assertEquals(6, validations.get());
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsed() {
+        final CachingValidationService service = new CachingValidationService(delegate,
+                ValidationResultCache.getOrCreate(UUID.randomUUID().toString(), 1, false));
+        service.validateBatch(bytes("{\"id\":\"1\"}", "{\"id\":\"2\"}", "{\"id\":\"1\"}"));
+        assertEquals(3, validations.get());
+    }
+
+    @Test
+    void testDoesNotCacheIncompleteResults() {
+        final ValidationService incompleteDelegate = (data, offset, length) -> {
+            validations.incrementAndGet();
+            return length % 2 == 0
+                    ? ValidationResult.fromTimeout(100)
+                    : ValidationResult.fromException(new IllegalStateException("failed"));
+        };
+        final CachingValidationService service = new CachingValidationService(incompleteDelegate,
+                ValidationResultCache.getOrCreate(UUID.randomUUID().toString(), 100, false));
+        final List<byte[]> batch = bytes("{\"id\":\"1\"}", "{\"id\":\"22\"}", "{\"id\":\"1\"}");
+        final List<ValidationResult> results = service.validateBatch(batch);
+        // the repeated resource shares the result within the batch
+        assertEquals(2, validations.get());
+        assertEquals(results.get(0), results.get(2));
+        assertTrue(results.stream().allMatch(ValidationResult::hasIncompleteIssues));
+        service.validateBatch(batch);
+        assertEquals(4, validations.get());
+        assertFalse(delegate.validateJson(batch.get(0)).hasIncompleteIssues());
+    }
+
+    private static List<byte[]> bytes(final String... resources) {
+        return Stream.of(resources)
+                .map(s -> s.getBytes(StandardCharsets.UTF_8))
+                .collect(Collectors.toUnmodifiableList());
+    }
+}
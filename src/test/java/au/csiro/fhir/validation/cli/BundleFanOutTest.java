@@ -0,0 +1,50 @@
+package au.csiro.fhir.validation.cli;
+
+import au.csiro.fhir.validation.cli.BundleFanOut.Entry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class BundleFanOutTest {
+
+    private static final String PATIENT = "{\"resourceType\": \"Patient\", \"id\": \"p1\", \"meta\": {\"versionId\": \"2\"}}";
+    private static final String OBSERVATION = "{\"resourceType\": \"Observation\", \"id\": \"o\\\"1\", "
+            + "\"subject\": {\"reference\": \"urn:uuid:1\"}, \"performer\": [{\"reference\": \"Practitioner/1\"}, {\"reference\": \"urn:uuid:2\"}], "
+            + "\"contained\": [{\"resourceType\": \"Patient\", \"id\": \"c1\"}]}";
+
+    @Test
+    void testScan() {
+        final String bundle = "{\"resourceType\": \"Bundle\", \"entry\": [{\"fullUrl\": \"urn:uuid:1\", \"resource\": " + PATIENT + "}, "
+                + "{\"request\": {\"method\": \"DELETE\"}}, {\"resource\": " + OBSERVATION + "}]}";
+        final List<Entry> entries = BundleFanOut.scan(bundle);
+        assertEquals(3, entries.size());
+
+        final Entry patient = entries.get(0);
+        assertEquals(PATIENT, bundle.substring(patient.getStart(), patient.getEnd()));
+        assertEquals("urn:uuid:1", patient.getFullUrl());
+        assertEquals("{\"resourceType\":\"Patient\",\"id\":\"p1\",\"meta\":{\"versionId\":\"2\"}}", patient.stub());
+        assertEquals("Bundle.entry[0].resource/*Patient/p1*/", patient.location(0));
+
+        assertEquals(-1, entries.get(1).getStart());
+
+        final Entry observation = entries.get(2);
+        assertEquals(OBSERVATION, bundle.substring(observation.getStart(), observation.getEnd()));
+        assertNull(observation.getFullUrl());
+        assertEquals("o\"1", observation.getId());
+        assertEquals("{\"resourceType\":\"Observation\",\"id\":\"o\\\"1\"}", observation.stub());
+        assertEquals(2, observation.getReferences().size());
+        assertArrayEquals(new String[]{".subject", "urn:uuid:1"}, observation.getReferences().get(0));
+        assertArrayEquals(new String[]{".performer[1]", "urn:uuid:2"}, observation.getReferences().get(1));
+    }
+
+    @Test
+    void testScanNotBundle() {
+        assertNull(BundleFanOut.scan(PATIENT));
+        assertNull(BundleFanOut.scan("{\"resourceType\": \"Bundle\", \"entry\": ["));
+        assertEquals(List.of(), BundleFanOut.scan("{\"resourceType\": \"Bundle\"}"));
+    }
+}
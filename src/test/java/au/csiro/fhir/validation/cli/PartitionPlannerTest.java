@@ -0,0 +1,40 @@
+package au.csiro.fhir.validation.cli;
+
+import au.csiro.fhir.validation.cli.PartitionPlanner.GroupCost;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartitionPlannerTest {
+
+    @Test
+    void testLargeGroupsAreSplit() {
+        final List<GroupCost> groups = List.of(
+                new GroupCost("0|Bundle|", 3000, 3),
+                new GroupCost("0|Patient|", 500, 100),
+                new GroupCost("0|Observation|", 500, 100));
+        final int[][] slices = PartitionPlanner.assign(groups, 4);
+        // the bundles are split into the 3 partitions of about the average cost
+        assertEquals(3, slices[0].length);
+        assertEquals(3, IntStream.of(slices[0]).distinct().count());
+        // the small groups are kept together, in the least loaded partition
+        assertArrayEquals(new int[]{3}, slices[1]);
+        assertArrayEquals(new int[]{3}, slices[2]);
+    }
+
+    @Test
+    void testGroupsAreNotSplitBeyondTheirSize() {
+        final List<GroupCost> groups = List.of(
+                new GroupCost("0|Bundle|", 10_000, 2),
+                new GroupCost("0|Patient|", 100, 10));
+        final int[][] slices = PartitionPlanner.assign(groups, 8);
+        assertEquals(2, slices[0].length);
+        assertEquals(1, slices[1].length);
+        assertTrue(IntStream.of(slices[0]).noneMatch(p -> p == slices[1][0]));
+    }
+}
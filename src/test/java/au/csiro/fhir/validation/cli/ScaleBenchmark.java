@@ -0,0 +1,231 @@
+package au.csiro.fhir.validation.cli;
+
+import org.apache.spark.sql.SparkSession;
+import picocli.CommandLine;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The end-to-end scale benchmark of {@link ValidateApp}.
+ * <p>
+ * For each data size the synthetic data is generated with the {@link SyntheticDataGenerator} (or reused if already
+ * present) and validated with `local[N]` for each number of cores N (in increasing order). Each validation runs
+ * in a new JVM (see {@link Worker}), so that the validation engines are created from scratch and the peak heap is
+ * the peak of the single run. The results are appended as csv rows to the results file with:
+ * <ul>
+ *     <li>the throughput in resources per second (including the creation of the engines),</li>
+ *     <li>the scaling efficiency, i.e. the throughput relative to N times the throughput with the smallest N
+ *     of the same data size,</li>
+ *     <li>the peak heap of the validation JVM in MB.</li>
+ * </ul>
+ * Can be run with: `mvn test -Pscale-benchmark -Dscale.args="-n 10,100 -c 1,2,4"`.
+ */
+@CommandLine.Command(name = "scale-benchmark", mixinStandardHelpOptions = true,
+        description = "Measure the throughput of the validation for a range of data sizes and numbers of cores.")
+public class ScaleBenchmark implements Runnable {
+
+    static final String RESULT_PREFIX = "SCALE-BENCHMARK-RESULT:";
+    static final long SEED = 42;
+    static final String CSV_HEADER = "timestamp,resources,variants,cores,elapsedSeconds,resourcesPerSecond,scalingEfficiency,peakHeapMb,exitCode";
+
+    @CommandLine.Option(names = {"--input"}, description = "Input ndjson file or directory with the source resources.",
+            defaultValue = "data/mimic-iv-demo-10")
+    String inputFile;
+
+    @CommandLine.Option(names = {"-i", "--ig"}, description = "Implementation guide(s).", arity = "0..*",
+            defaultValue = "data/packages/kindlab.fhir.mimic/package.tgz")
+    List<String> igs;
+
+    @CommandLine.Option(names = {"-n", "--variants"}, description = "Number(s) of variants of each source resource.",
+            split = ",", defaultValue = "10,100")
+    List<Long> variants;
+
+    @CommandLine.Option(names = {"-c", "--cores"}, description = "Number(s) of the cores of the local spark master.",
+            split = ",", defaultValue = "1,2,4")
+    List<Integer> cores;
+
+    @CommandLine.Option(names = {"-e", "--defect-rate"}, description = "Fraction of the variants with a defect.", defaultValue = "0.01")
+    double defectRate;
+
+    @CommandLine.Option(names = {"-w", "--work-dir"}, description = "Directory for the generated data and the outputs.",
+            defaultValue = "target/scale")
+    String workDir;
+
+    @CommandLine.Option(names = {"-o", "--results"}, description = "Csv file to append the results to.",
+            defaultValue = "target/scale/results.csv")
+    String resultsFile;
+
+    @CommandLine.Option(names = {"-j", "--jvm-option"}, description = "Option(s) of the validation JVMs, e.g. `-Xmx8g`.",
+            arity = "0..*")
+    List<String> jvmOptions = new ArrayList<>();
+
+    @CommandLine.Option(names = {"-a", "--validate-option"}, description = "Additional option(s) of the validation, e.g. `-b=10`.",
+            arity = "0..*")
+    List<String> validateOptions = new ArrayList<>();
+
+    /**
+     * Runs a single validation in `local[N]` and prints its result.
+     * <p>
+     * The peaks of the heap pools are reached at different times (e.g. the eden before a collection and the old
+     * generation after it), so their sum overstates the peak heap. Instead the used heap is sampled during the run.
+     */
+    public static class Worker {
+
+        static final long HEAP_SAMPLING_MILLIS = 50;
+
+        public static void main(String[] args) {
+            final int cores = Integer.parseInt(args[0]);
+            System.setProperty("spark.master", "local[" + cores + "]");
+            final AtomicLong peakHeapBytes = new AtomicLong();
+            final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "heap-sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sampler.scheduleAtFixedRate(() -> peakHeapBytes.accumulateAndGet(usedHeapBytes(), Math::max),
+                    0, HEAP_SAMPLING_MILLIS, TimeUnit.MILLISECONDS);
+            final long startTime = System.nanoTime();
+            final int exitCode = ValidateApp.execute(Arrays.copyOfRange(args, 1, args.length));
+            final long elapsedMillis = (System.nanoTime() - startTime) / 1_000_000;
+            sampler.shutdownNow();
+            peakHeapBytes.accumulateAndGet(usedHeapBytes(), Math::max);
+            System.out.println(RESULT_PREFIX + " " + elapsedMillis + " " + peakHeapBytes.get() + " " + exitCode);
+            System.exit(exitCode);
+        }
+
+        private static long usedHeapBytes() {
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+    }
+
+    @Override
+    public void run() {
+        if (System.getProperty("spark.master") == null) {
+            System.setProperty("spark.master", "local[*]");
+        }
+        final File results = new File(resultsFile);
+        final boolean newResults = !results.isFile();
+        try {
+            Files.createDirectories(results.getAbsoluteFile().toPath().getParent());
+            try (final PrintWriter writer = new PrintWriter(Files.newBufferedWriter(results.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+                if (newResults) {
+                    writer.println(CSV_HEADER);
+                }
+                for (final long variantCount : variants) {
+                    final File data = new File(workDir, "data-" + variantCount + "-" + defectRate);
+                    final long resources = generate(data, variantCount);
+                    // the efficiency is relative to the smallest number of cores, which is run first
+                    double baseThroughput = 0;
+                    int baseCores = 0;
+                    for (final int coreCount : new TreeSet<>(cores)) {
+                        final File output = new File(workDir, "output-" + variantCount + "-" + coreCount + ".parquet");
+                        final long[] result = validate(data, output, coreCount);
+                        final double elapsedSeconds = result[0] / 1000.0;
+                        final double throughput = resources / elapsedSeconds;
+                        if (baseCores == 0) {
+                            baseThroughput = throughput;
+                            baseCores = coreCount;
+                        }
+                        final double efficiency = throughput * baseCores / (baseThroughput * coreCount);
+                        final String row = String.format(Locale.ROOT, "%s,%d,%d,%d,%.3f,%.2f,%.3f,%d,%d", Instant.now(),
+                                resources, variantCount, coreCount, elapsedSeconds, throughput, efficiency,
+                                result[1] / (1024 * 1024), result[2]);
+                        System.out.println("Result: " + row);
+                        writer.println(row);
+                        writer.flush();
+                    }
+                }
+            }
+        } catch (final IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        System.out.println("Results appended to: " + results);
+    }
+
+    private long generate(@Nonnull final File data, final long variantCount) {
+        final SparkSession sparkSession = SparkSession.builder().appName("FhirGenerator").getOrCreate();
+        sparkSession.sparkContext().setLogLevel("WARN");
+        if (new File(data, "_SUCCESS").isFile()) {
+            System.out.println("Using generated data: " + data);
+            return sparkSession.read().text(data.getPath()).count();
+        }
+        final SyntheticDataGenerator generator = new SyntheticDataGenerator();
+        generator.inputFile = inputFile;
+        generator.outputFile = data.getPath();
+        generator.variants = variantCount;
+        generator.defectRate = defectRate;
+        generator.seed = SEED;
+        return generator.generate(sparkSession);
+    }
+
+    @Nonnull
+    private long[] validate(@Nonnull final File data, @Nonnull final File output, final int coreCount) throws IOException {
+        final List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.addAll(jvmOptions);
+        command.add("-classpath");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Worker.class.getName());
+        command.add(String.valueOf(coreCount));
+        command.add(data.getPath());
+        command.add(output.getPath());
+        command.add("-d");
+        command.add("WARN");
+        igs.forEach(ig -> {
+            command.add("-i");
+            command.add(ig);
+        });
+        command.addAll(validateOptions);
+        System.out.println("Validating: " + data + " with local[" + coreCount + "]");
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        long[] result = null;
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                System.out.println("  " + line);
+                if (line.startsWith(RESULT_PREFIX)) {
+                    result = Arrays.stream(line.substring(RESULT_PREFIX.length()).trim().split(" "))
+                            .mapToLong(Long::parseLong).toArray();
+                }
+            }
+        }
+        try {
+            process.waitFor();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while validating: " + data, ex);
+        }
+        if (result == null) {
+            throw new IOException("The validation of: " + data + " failed with exit code: " + process.exitValue());
+        }
+        return result;
+    }
+
+    static int execute(String[] args) {
+        return new CommandLine(new ScaleBenchmark()).execute(args);
+    }
+
+    public static void main(String[] args) {
+        System.exit(execute(args));
+    }
+}
@@ -0,0 +1,137 @@
+package au.csiro.fhir.validation.cli;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.functions;
+import org.apache.spark.util.LongAccumulator;
+import picocli.CommandLine;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Expands the ndjson FHIR resources (e.g. the MIMIC demo) into the given number of synthetic variants of each
+ * resource with the {@link SyntheticResourceGenerator}, for the scale benchmarks.
+ * <p>
+ * The output is a directory partitioned by the `filename` column (as expected by {@link ValidateApp}), e.g.:
+ * <pre>
+ *     output/
+ *      filename=MimicPatient/
+ *          part-00000-xxx.txt
+ *      filename=MimicCondition/
+ *          part-00000-xxx.txt
+ * </pre>
+ */
+@CommandLine.Command(name = "generate-fhir", mixinStandardHelpOptions = true,
+        description = "Generate synthetic variants of ndjson FHIR resources.")
+public class SyntheticDataGenerator implements Runnable {
+
+    @CommandLine.Parameters(index = "0", description = "Input ndjson file or directory (the file names are used as the `filename`).")
+    String inputFile;
+
+    @CommandLine.Parameters(index = "1", description = "Output directory.")
+    String outputFile;
+
+    @CommandLine.Option(names = {"-n", "--variants"}, description = "Number of variants of each resource.", defaultValue = "100")
+    long variants;
+
+    @CommandLine.Option(names = {"-e", "--defect-rate"}, description = "Fraction of the variants with a defect.", defaultValue = "0.01")
+    double defectRate;
+
+    @CommandLine.Option(names = {"--seed"}, description = "Random seed.", defaultValue = "42")
+    long seed;
+
+    @CommandLine.Option(names = {"--partitions"}, description = "Number of partitions (files) of each `filename`. " +
+            "0 means the default parallelism.", defaultValue = "0")
+    int partitions;
+
+    @CommandLine.Option(names = {"-d", "--log-level"}, description = "Spark log level", defaultValue = "WARN")
+    String debugLevel;
+
+    /**
+     * A source resource with its `filename`.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Source implements Serializable {
+        String filename;
+        String value;
+    }
+
+    @Override
+    public void run() {
+        final SparkSession sparkSession = SparkSession.builder()
+                .appName("FhirGenerator")
+                .getOrCreate();
+        if (!debugLevel.isEmpty()) {
+            sparkSession.sparkContext().setLogLevel(debugLevel);
+        }
+        final long resources = generate(sparkSession);
+        System.out.println("Generated: " + resources + " resources in: " + outputFile);
+    }
+
+    /**
+     * Generates the variants.
+     *
+     * @param sparkSession the spark session
+     * @return the number of the generated resources
+     */
+    long generate(@Nonnull final SparkSession sparkSession) {
+        final List<Source> sources = sparkSession.read().text(inputFile)
+                .select(functions.regexp_extract(functions.input_file_name(), "([^/]+?)(\\.ndjson)?$", 1).as("filename"),
+                        functions.col("value"))
+                .where(functions.length(functions.trim(functions.col("value"))).gt(0))
+                .as(Encoders.bean(Source.class))
+                .collectAsList();
+        final SyntheticResourceGenerator generator = SyntheticResourceGenerator.of(
+                sources.stream().map(Source::getValue).collect(Collectors.toList()), seed, defectRate);
+        System.out.println("Generating: " + variants + " variants of: " + sources.size() + " resources, with defect rate: "
+                + defectRate);
+
+        final Broadcast<List<Source>> broadcastSources = new JavaSparkContext(sparkSession.sparkContext()).broadcast(sources);
+        final Map<SyntheticResourceGenerator.Defect, LongAccumulator> defects = new EnumMap<>(SyntheticResourceGenerator.Defect.class);
+        Arrays.stream(SyntheticResourceGenerator.Defect.values())
+                .forEach(defect -> defects.put(defect, sparkSession.sparkContext().longAccumulator(defect.name())));
+        final int numPartitions = partitions > 0 ? partitions : sparkSession.sparkContext().defaultParallelism();
+        final Dataset<Row> output = sparkSession.range(0, variants, 1, numPartitions)
+                .flatMap((FlatMapFunction<Long, Source>) variant -> {
+                    final List<Source> result = new ArrayList<>(broadcastSources.value().size());
+                    for (final Source source : broadcastSources.value()) {
+                        final SyntheticResourceGenerator.Variant generated = generator.generate(source.getValue(), variant);
+                        if (generated.getDefect() != null) {
+                            defects.get(generated.getDefect()).add(1);
+                        }
+                        result.add(new Source(source.getFilename(), generated.getResource()));
+                    }
+                    return result.iterator();
+                }, Encoders.bean(Source.class))
+                .select("filename", "value");
+        output.write().mode(SaveMode.Overwrite).partitionBy("filename").text(outputFile);
+        defects.forEach((defect, count) -> System.out.println("Defect: " + defect + " -> " + count.value()));
+        return variants * sources.size();
+    }
+
+    static int execute(String[] args) {
+        return new CommandLine(new SyntheticDataGenerator()).execute(args);
+    }
+
+    public static void main(String[] args) {
+        System.exit(execute(args));
+    }
+}
@@ -0,0 +1,324 @@
+package au.csiro.fhir.validation.cli;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import lombok.SneakyThrows;
+import lombok.Value;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Generates the variants of json FHIR resources for the scale benchmarks.
+ * <p>
+ * In each variant of a resource the ids are replaced with ids unique to the variant (and so are the ids in the
+ * references, so that the references between the variants of the resources stay consistent), all the dates
+ * of the variants with the same number are shifted by the same random number of days (so that e.g. the encounters
+ * of a patient stay after the birth date), and the codings are replaced with random codings observed in the same
+ * element of the source resources with the same profiles (whole codings are swapped, so that the codes stay valid
+ * in their systems and the bindings of the profiles). A controlled fraction of the variants is given one of the known
+ * {@link Defect defects}. The variants are deterministic for the seed.
+ */
+class SyntheticResourceGenerator implements Serializable {
+
+    /**
+     * The maximum shift of the dates in days (in either direction).
+     */
+    static final int MAX_DATE_SHIFT_DAYS = 5 * 365;
+
+    static final String UNKNOWN_ELEMENT = "syntheticUnknownElement";
+    static final String INVALID_CODE = "SYNTHETIC-INVALID-CODE";
+    static final String INVALID_DATE = "2021-02-30";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final Pattern DATE = Pattern.compile("^\\d{4}-\\d{2}-\\d{2}.*");
+    private static final Pattern REFERENCE = Pattern.compile("^[A-Z][A-Za-z]+/[A-Za-z0-9\\-.]{1,64}$");
+
+    /**
+     * The defects injected into the variants, with the issues they are known to cause.
+     */
+    enum Defect {
+        /**
+         * An element not defined for the resource (an error).
+         */
+        UNKNOWN_ELEMENT,
+        /**
+         * A code not in the code system of the coding (an error or a warning, depending on the binding).
+         */
+        INVALID_CODE,
+        /**
+         * A date that does not exist (an error).
+         */
+        INVALID_DATE
+    }
+
+    /**
+     * A variant of a resource.
+     */
+    @Value
+    static class Variant {
+        @Nonnull
+        String resource;
+        @Nullable
+        Defect defect;
+    }
+
+    private final long seed;
+    private final double defectRate;
+
+    /**
+     * The (json) codings observed in the source resources, by the profiles of the resources and the path of
+     * the element (e.g. `http://example.org/StructureDefinition/condition|Condition.code.coding`).
+     */
+    @Nonnull
+    private final Map<String, List<String>> codingsByPath;
+
+    private SyntheticResourceGenerator(final long seed, final double defectRate, @Nonnull final Map<String, List<String>> codingsByPath) {
+        this.seed = seed;
+        this.defectRate = defectRate;
+        this.codingsByPath = codingsByPath;
+    }
+
+    /**
+     * Creates the generator for the variants of the source resources.
+     *
+     * @param sources the source resources (used to collect the codings)
+     * @param seed the random seed
+     * @param defectRate the fraction of the variants with a defect
+     * @return the generator
+     */
+    @Nonnull
+    @SneakyThrows
+    static SyntheticResourceGenerator of(@Nonnull final Iterable<String> sources, final long seed, final double defectRate) {
+        if (defectRate < 0 || defectRate > 1) {
+            throw new IllegalArgumentException("The defect rate must be between 0 and 1: " + defectRate);
+        }
+        final Map<String, Set<String>> codings = new HashMap<>();
+        for (final String source : sources) {
+            try (final JsonParser parser = JSON_FACTORY.createParser(source)) {
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    collectCodings(parser, rootPath(source), codings);
+                }
+            }
+        }
+        final Map<String, List<String>> codingsByPath = new HashMap<>();
+        codings.forEach((path, values) -> codingsByPath.put(path, List.copyOf(values)));
+        return new SyntheticResourceGenerator(seed, defectRate, codingsByPath);
+    }
+
+    private static void collectCodings(@Nonnull final JsonParser parser, @Nonnull final String path,
+                                       @Nonnull final Map<String, Set<String>> codings) throws IOException {
+        // the parser is at the start of an object
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            final boolean array = token == JsonToken.START_ARRAY;
+            if (array) {
+                token = parser.nextToken();
+            }
+            while (token != null && token != JsonToken.END_ARRAY) {
+                if (token == JsonToken.START_OBJECT && "coding".equals(field)) {
+                    final StringWriter coding = new StringWriter();
+                    try (final JsonGenerator generator = JSON_FACTORY.createGenerator(coding)) {
+                        generator.copyCurrentStructure(parser);
+                    }
+                    codings.computeIfAbsent(path + "." + field, k -> new LinkedHashSet<>()).add(coding.toString());
+                } else if (token == JsonToken.START_OBJECT) {
+                    collectCodings(parser, path + "." + field, codings);
+                } else {
+                    parser.skipChildren();
+                }
+                token = array ? parser.nextToken() : null;
+            }
+        }
+    }
+
+    /**
+     * Generates a variant of a resource.
+     *
+     * @param resource the source resource
+     * @param variant the number of the variant
+     * @return the variant (the same for the same resource, variant number and seed)
+     */
+    @Nonnull
+    @SneakyThrows
+    Variant generate(@Nonnull final String resource, final long variant) {
+        // the shift only depends on the variant number, so it is the same for the related resources
+        final int dateShift = new SplittableRandom(seed * 31 + variant * 1_000_003L)
+                .nextInt(-MAX_DATE_SHIFT_DAYS, MAX_DATE_SHIFT_DAYS + 1);
+        final SplittableRandom random = new SplittableRandom(seed * 31 + variant * 1_000_003L + resource.hashCode());
+        final Defect defect = random.nextDouble() < defectRate
+                ? Defect.values()[random.nextInt(Defect.values().length)]
+                : null;
+        final Rewrite rewrite = new Rewrite(variant, dateShift, random, defect);
+        final StringWriter writer = new StringWriter(resource.length() + 64);
+        try (final JsonParser parser = JSON_FACTORY.createParser(resource);
+             final JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+            parser.nextToken();
+            rewrite.copyObject(parser, generator, rootPath(resource), 0);
+        }
+        return new Variant(writer.toString(), rewrite.injected);
+    }
+
+    /**
+     * The rewriting of a single variant.
+     */
+    private final class Rewrite {
+        private final long variant;
+        private final int dateShift;
+        @Nonnull
+        private final SplittableRandom random;
+        @Nullable
+        private Defect pending;
+        @Nullable
+        private Defect injected;
+
+        Rewrite(final long variant, final int dateShift, @Nonnull final SplittableRandom random, @Nullable final Defect defect) {
+            this.variant = variant;
+            this.dateShift = dateShift;
+            this.random = random;
+            this.pending = defect;
+        }
+
+        void copyObject(@Nonnull final JsonParser parser, @Nonnull final JsonGenerator generator, @Nonnull final String path,
+                        final int depth) throws IOException {
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                generator.writeFieldName(field);
+                parser.nextToken();
+                copyValue(parser, generator, field, path + "." + field, depth);
+            }
+            if (depth == 0 && pending != null) {
+                // the defects that could not be injected in the values fall back to an unknown element
+                generator.writeStringField(UNKNOWN_ELEMENT, "synthetic");
+                injected = Defect.UNKNOWN_ELEMENT;
+                pending = null;
+            }
+            generator.writeEndObject();
+        }
+
+        private void copyValue(@Nonnull final JsonParser parser, @Nonnull final JsonGenerator generator, @Nonnull final String field,
+                               @Nonnull final String path, final int depth) throws IOException {
+            switch (parser.currentToken()) {
+                case START_OBJECT:
+                    final List<String> codings = "coding".equals(field) && pending != Defect.INVALID_CODE
+                            ? codingsByPath.get(path)
+                            : null;
+                    if (codings != null && !codings.isEmpty()) {
+                        parser.skipChildren();
+                        generator.writeRawValue(codings.get(random.nextInt(codings.size())));
+                    } else {
+                        copyObject(parser, generator, path, depth + 1);
+                    }
+                    break;
+                case START_ARRAY:
+                    generator.writeStartArray();
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        copyValue(parser, generator, field, path, depth);
+                    }
+                    generator.writeEndArray();
+                    break;
+                case VALUE_STRING:
+                    generator.writeString(rewriteString(field, path, parser.getText(), depth));
+                    break;
+                default:
+                    generator.copyCurrentEvent(parser);
+            }
+        }
+
+        @Nonnull
+        private String rewriteString(@Nonnull final String field, @Nonnull final String path, @Nonnull final String value,
+                                     final int depth) {
+            if ("id".equals(field) && depth == 0) {
+                return variantId(value);
+            }
+            if ("reference".equals(field) && REFERENCE.matcher(value).matches()) {
+                final int separator = value.indexOf('/');
+                return value.substring(0, separator + 1) + variantId(value.substring(separator + 1));
+            }
+            if ("code".equals(field) && path.endsWith(".coding.code") && pending == Defect.INVALID_CODE) {
+                pending = null;
+                injected = Defect.INVALID_CODE;
+                return INVALID_CODE;
+            }
+            if (DATE.matcher(value).matches()) {
+                if (pending == Defect.INVALID_DATE) {
+                    pending = null;
+                    injected = Defect.INVALID_DATE;
+                    return INVALID_DATE + value.substring(10);
+                }
+                try {
+                    return LocalDate.parse(value.substring(0, 10)).plusDays(dateShift) + value.substring(10);
+                } catch (final DateTimeParseException ex) {
+                    return value;
+                }
+            }
+            return value;
+        }
+
+        @Nonnull
+        private String variantId(@Nonnull final String id) {
+            return UUID.nameUUIDFromBytes((seed + "/" + variant + "/" + id).getBytes(StandardCharsets.UTF_8)).toString();
+        }
+    }
+
+    /**
+     * Gets the root of the element paths of the resource: its profiles (sorted) and its resource type,
+     * e.g. `http://example.org/StructureDefinition/condition|Condition`.
+     */
+    @Nonnull
+    private static String rootPath(@Nonnull final String resource) throws IOException {
+        final String resourceType = ValidationMetrics.resourceTypeOf(resource.getBytes(StandardCharsets.UTF_8));
+        return String.join(",", profiles(resource)) + "|" + (resourceType != null ? resourceType : "");
+    }
+
+    /**
+     * Reads the `meta.profile` of a json resource.
+     */
+    @Nonnull
+    private static Set<String> profiles(@Nonnull final String resource) throws IOException {
+        final Set<String> profiles = new TreeSet<>();
+        try (final JsonParser parser = JSON_FACTORY.createParser(resource)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return profiles;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("meta".equals(field) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final String metaField = parser.getCurrentName();
+                        if (parser.nextToken() == JsonToken.START_ARRAY && "profile".equals(metaField)) {
+                            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                                profiles.add(parser.getValueAsString());
+                            }
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    return profiles;
+                }
+                parser.skipChildren();
+            }
+        }
+        return profiles;
+    }
+}
@@ -0,0 +1,103 @@
+package au.csiro.fhir.validation.cli;
+
+import au.csiro.fhir.validation.cli.SyntheticResourceGenerator.Defect;
+import au.csiro.fhir.validation.cli.SyntheticResourceGenerator.Variant;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SyntheticResourceGeneratorTest {
+
+    private static final String PATIENT = "{\"resourceType\": \"Patient\", \"id\": \"p1\", \"birthDate\": \"2000-01-15\"}";
+    private static final String CONDITION_1 = "{\"resourceType\": \"Condition\", \"id\": \"c1\", " +
+            "\"code\": {\"coding\": [{\"system\": \"http://snomed.info/sct\", \"code\": \"111\", \"display\": \"One\"}]}, " +
+            "\"subject\": {\"reference\": \"Patient/p1\"}, \"recordedDate\": \"2020-05-01T10:00:00Z\"}";
+    private static final String CONDITION_2 = "{\"resourceType\": \"Condition\", \"id\": \"c2\", " +
+            "\"code\": {\"coding\": [{\"system\": \"http://loinc.org\", \"code\": \"222\", \"display\": \"Two\"}]}, " +
+            "\"subject\": {\"reference\": \"Patient/p1\"}}";
+
+    @Test
+    void testVariantsAreDeterministicAndConsistent() {
+        final SyntheticResourceGenerator generator = SyntheticResourceGenerator.of(List.of(PATIENT, CONDITION_1, CONDITION_2), 7, 0);
+        final Variant patient = generator.generate(PATIENT, 3);
+        final Variant condition = generator.generate(CONDITION_1, 3);
+        assertEquals(patient, generator.generate(PATIENT, 3));
+        assertNotEquals(patient, generator.generate(PATIENT, 4));
+        assertNull(patient.getDefect());
+        assertNull(condition.getDefect());
+
+        // the id of the patient variant is used in the references of the condition variant
+        final String patientId = patient.getResource().replaceAll(".*\"id\":\"([^\"]+)\".*", "$1");
+        assertNotEquals("p1", patientId);
+        assertTrue(condition.getResource().contains("\"reference\":\"Patient/" + patientId + "\""));
+
+        // the codings are swapped as a whole
+        for (long i = 0; i < 20; i++) {
+            final String resource = generator.generate(CONDITION_1, i).getResource();
+            assertTrue(resource.contains("{\"system\":\"http://snomed.info/sct\",\"code\":\"111\",\"display\":\"One\"}")
+                    || resource.contains("{\"system\":\"http://loinc.org\",\"code\":\"222\",\"display\":\"Two\"}"), resource);
+            assertTrue(resource.matches(".*\"recordedDate\":\"\\d{4}-\\d{2}-\\d{2}T10:00:00Z\".*"), resource);
+        }
+    }
+
+    @Test
+    void testDatesAreShiftedTogetherForTheVariant() {
+        final String encounter = "{\"resourceType\": \"Encounter\", \"id\": \"e1\", " +
+                "\"subject\": {\"reference\": \"Patient/p1\"}, \"period\": {\"start\": \"2000-01-16\"}}";
+        final SyntheticResourceGenerator generator = SyntheticResourceGenerator.of(List.of(PATIENT, encounter), 7, 0);
+        for (long i = 0; i < 20; i++) {
+            final LocalDate birthDate = LocalDate.parse(generator.generate(PATIENT, i).getResource()
+                    .replaceAll(".*\"birthDate\":\"([^\"]+)\".*", "$1"));
+            final LocalDate start = LocalDate.parse(generator.generate(encounter, i).getResource()
+                    .replaceAll(".*\"start\":\"([^\"]+)\".*", "$1"));
+            assertEquals(birthDate.plusDays(1), start);
+        }
+    }
+
+    @Test
+    void testCodingsAreSwappedWithinTheProfile() {
+        final String profiled = CONDITION_2.replace("\"id\": \"c2\"",
+                "\"id\": \"c2\", \"meta\": {\"profile\": [\"http://example.org/StructureDefinition/condition\"]}");
+        final SyntheticResourceGenerator generator = SyntheticResourceGenerator.of(List.of(CONDITION_1, profiled), 7, 0);
+        for (long i = 0; i < 20; i++) {
+            assertTrue(generator.generate(CONDITION_1, i).getResource().contains("\"code\":\"111\""));
+            assertTrue(generator.generate(profiled, i).getResource().contains("\"code\":\"222\""));
+        }
+    }
+
+    @Test
+    void testDefects() {
+        final SyntheticResourceGenerator generator = SyntheticResourceGenerator.of(List.of(PATIENT, CONDITION_1), 7, 1);
+        for (long i = 0; i < 20; i++) {
+            final Variant patient = generator.generate(PATIENT, i);
+            assertNotNull(patient.getDefect());
+            switch (patient.getDefect()) {
+                case INVALID_DATE:
+                    assertTrue(patient.getResource().contains(SyntheticResourceGenerator.INVALID_DATE), patient.getResource());
+                    break;
+                case UNKNOWN_ELEMENT:
+                    // also the fallback of the invalid codes, as the patient has no codings
+                    assertTrue(patient.getResource().contains(SyntheticResourceGenerator.UNKNOWN_ELEMENT), patient.getResource());
+                    break;
+                default:
+                    throw new AssertionError("Unexpected defect: " + patient.getDefect());
+            }
+            final Variant condition = generator.generate(CONDITION_1, i);
+            if (condition.getDefect() == Defect.INVALID_CODE) {
+                assertTrue(condition.getResource().contains("\"code\":\"" + SyntheticResourceGenerator.INVALID_CODE + "\""));
+            }
+        }
+        assertFalse(SyntheticResourceGenerator.of(List.of(PATIENT), 7, 0).generate(PATIENT, 1).getResource()
+                .contains(SyntheticResourceGenerator.UNKNOWN_ELEMENT));
+        assertThrows(IllegalArgumentException.class, () -> SyntheticResourceGenerator.of(List.of(PATIENT), 7, 1.5));
+    }
+}
@@ -0,0 +1,32 @@
+package au.csiro.fhir.validation.cli;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TerminologyPrepassTest {
+
+    @Test
+    void testCodingKeys() {
+        final String observation = "{\"resourceType\": \"Observation\", " +
+                "\"code\": {\"coding\": [{\"system\": \"http://loinc.org\", \"code\": \"8867-4\", \"display\": \"Heart rate\"}, " +
+                "{\"system\": \"http://loinc.org\", \"code\": \"8867-4\", \"display\": \"Heart rate\"}]}, " +
+                "\"component\": [{\"code\": {\"coding\": [{\"system\": \"http://loinc.org\", \"code\": \"8480-6\"}]}}, " +
+                "{\"code\": {\"coding\": [{\"system\": \"http://loinc.org\", \"display\": \"No code\"}], \"text\": \"text\"}}], " +
+                "\"meta\": {\"profile\": [\"http://example.org/profile\", \"http://example.org/other\"]}}";
+        // the profile is after the codings, the duplicates and the codings without a code are ignored
+        assertEquals(List.of(
+                        "Observation|http://example.org/profile|code.coding|http://loinc.org|null|8867-4|Heart rate",
+                        "Observation|http://example.org/profile|component.code.coding|http://loinc.org|null|8480-6|null"),
+                TerminologyPrepass.codingKeys(observation.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testCodingKeysOfInvalidJson() {
+        assertEquals(List.of(), TerminologyPrepass.codingKeys("{\"resourceType\": \"Patient\", ".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(List.of(), TerminologyPrepass.codingKeys("[]".getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -1,8 +1,38 @@
 package au.csiro.fhir.validation.cli;
 
+import au.csiro.fhir.validation.ValidationResult;
+import au.csiro.fhir.validation.hl7.TerminologyServerStub;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.streaming.Trigger;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
 import org.junit.jupiter.api.Test;
 
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class ValidateAppTest {
 
@@ -20,4 +50,469 @@ class ValidateAppTest {
         int exitCode = ValidateApp.execute(new String[]{"data/mimic-iv-demo-10_partitioned", "target/MimicDemo-validation.parquet","-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-p", "-d", "WARN"});
         assertEquals(0, exitCode);
     }
+
+    @Test
+    void testWithEngineSnapshot() {
+        System.setProperty("spark.master", "local[*]");
+        int exitCode = ValidateApp.execute(new String[]{"data/mimic-iv-demo-10/MimicPatient.ndjson", "target/MimicPatient-snapshot-validation.parquet", "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-s", "target/snapshots", "-d", "WARN"});
+        assertEquals(0, exitCode);
+    }
+
+    @Test
+    void testWithThreadsPerTask() {
+        System.setProperty("spark.master", "local[2]");
+        int exitCode = ValidateApp.execute(new String[]{"data/mimic-iv-demo-10_partitioned", "target/MimicDemo-threads-validation.parquet", "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-t", "4", "-b", "3", "-d", "WARN"});
+        assertEquals(0, exitCode);
+    }
+
+    @Test
+    void testWithResourceTimeout() throws IOException {
+        System.setProperty("spark.master", "local[2]");
+        final String patient = Files.readString(Path.of("data/Patient_mimic.json")).replaceAll("\\s*\\n\\s*", " ");
+        final String observation = Files.readString(Path.of("src/test/resources/fhir/Observation_Loinc_OK.json"))
+                .replaceAll("\\s*\\n\\s*", " ");
+        final Path input = Path.of("target/timeout-input.ndjson");
+        Files.writeString(input, patient + "\n" + observation + "\n");
+        final Path cacheDir = Path.of("target/tx-timeout-cache");
+        deleteRecursively(cacheDir);
+        // the validation of the observation waits for the delayed response for its loinc code
+        try (final TerminologyServerStub server = TerminologyServerStub.start()
+                .withValidateCodeDelay("http://loinc.org", 15_000)) {
+            assertEquals(0, ValidateApp.execute(new String[]{input.toString(), "target/MimicPatient-timeout-validation.parquet",
+                    "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-tx", server.getUrl(), "-tc", cacheDir.toString(),
+                    "-rt", "5000", "-m", "-d", "WARN"}));
+        }
+
+        final SparkSession spark = SparkSession.builder().getOrCreate();
+        final Dataset<Row> output = spark.read().parquet("target/MimicPatient-timeout-validation.parquet");
+        assertEquals(2, output.count());
+        // only the observation is abandoned
+        assertEquals(1, output.where("exists(issues, i -> i.type = '" + ValidationResult.TIMEOUT_TYPE + "')").count());
+        // and it is not in the manifest, so that it is validated again by the next incremental run
+        final Dataset<Row> manifest = spark.read().parquet("target/MimicPatient-timeout-validation.parquet" + ValidateApp.MANIFEST_SUFFIX);
+        assertEquals(1, manifest.count());
+        assertEquals(output.where("NOT exists(issues, i -> i.type = '" + ValidationResult.TIMEOUT_TYPE + "')")
+                        .selectExpr("md5(cast(resource AS BINARY))").first().getString(0),
+                manifest.first().getString(manifest.first().fieldIndex(ValidateApp.HASH_COLUMN)));
+    }
+
+    @Test
+    void testWithMetrics() throws IOException {
+        System.setProperty("spark.master", "local[2]");
+        assertEquals(0, ValidateApp.execute(new String[]{"data/mimic-iv-demo-10/MimicPatient.ndjson", "target/MimicPatient-metrics-validation.parquet",
+                "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-mt", "-d", "WARN"}));
+        final SparkSession spark = SparkSession.builder().getOrCreate();
+        final Row metrics = spark.read().option("multiLine", true)
+                .json("target/MimicPatient-metrics-validation.parquet" + ValidateApp.METRICS_SUFFIX)
+                .selectExpr("resources", "bytes", "latencyByResourceType.Patient.count AS patients",
+                        "engineInitMillisByExecutor.driver AS engineInit",
+                        "aggregate(map_values(from_json(to_json(issuesByLevel), 'map<string,long>')), 0L, (a, v) -> a + v) AS issues")
+                .first();
+        assertEquals(10L, metrics.getLong(0));
+        assertEquals(Files.size(Path.of("data/mimic-iv-demo-10/MimicPatient.ndjson")) - 10, metrics.getLong(1));
+        assertEquals(10L, metrics.getLong(2));
+        assertTrue(metrics.getLong(3) >= 0);
+        assertEquals(spark.read().parquet("target/MimicPatient-metrics-validation.parquet").selectExpr("explode(issues)").count(),
+                metrics.getLong(4));
+    }
+
+    @Test
+    void testWithPhaseTimes() {
+        System.setProperty("spark.master", "local[2]");
+        assertEquals(0, ValidateApp.execute(new String[]{"data/mimic-iv-demo-10_partitioned", "target/MimicDemo-phase-times-validation.parquet",
+                "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-ph", "-d", "WARN"}));
+        final Dataset<Row> output = SparkSession.builder().getOrCreate().read().parquet("target/MimicDemo-phase-times-validation.parquet");
+        // all the resources are in the output, with the phase times
+        assertEquals(SparkSession.builder().getOrCreate().read().text("data/mimic-iv-demo-10_partitioned").count(), output.count());
+        assertEquals(0, output.filter("phaseTimes IS NULL OR phaseTimes.totalMillis <= 0 OR phaseTimes.parseMillis <= 0").count());
+    }
+
+    @Test
+    void testWithPhaseTimesAndResultCache() throws IOException {
+        System.setProperty("spark.master", "local[2]");
+        final String patients = Files.readString(Path.of("data/mimic-iv-demo-10/MimicPatient.ndjson"));
+        final Path input = Path.of("target/phase-times-repeated.ndjson");
+        Files.writeString(input, patients + patients);
+        assertEquals(0, ValidateApp.execute(new String[]{input.toString(), "target/MimicPatient-phase-times-cache-validation.parquet",
+                "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-ph", "-rc", "1000", "-d", "WARN"}));
+        final Dataset<Row> output = SparkSession.builder().getOrCreate().read().parquet("target/MimicPatient-phase-times-cache-validation.parquet");
+        // all the resources are in the output, with zero times for the repeated ones (from the cache)
+        assertEquals(20, output.count());
+        assertEquals(0, output.filter("phaseTimes IS NULL").count());
+        assertEquals(10, output.filter("phaseTimes.totalMillis = 0").count());
+    }
+
+    @Test
+    void testWithTxCache() throws IOException {
+        System.setProperty("spark.master", "local[2]");
+        final Path cacheDir = Path.of("target/tx-cache-validation");
+        deleteRecursively(cacheDir);
+        final List<String> codes = List.of("8661-1", "8867-4", "8310-5");
+        final List<String> observations = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            observations.add("{\"resourceType\": \"Observation\", \"id\": \"o" + i + "\", \"status\": \"final\", " +
+                    "\"code\": {\"coding\": [{\"system\": \"http://loinc.org\", \"code\": \"" + codes.get(i % codes.size()) + "\"}]}}");
+        }
+        final Path input = Path.of("target/tx-cache-input.ndjson");
+        Files.write(input, observations, StandardCharsets.UTF_8);
+        try (final TerminologyServerStub server = TerminologyServerStub.start()) {
+            final String[] args = {input.toString(), "target/tx-cache-validation.parquet",
+                    "-tx", server.getUrl(), "-tc", cacheDir.toString(), "-d", "WARN"};
+            assertEquals(0, ValidateApp.execute(args));
+            assertTrue(server.getValidateCodeRequests() >= codes.size());
+            final String cache = Files.readString(cacheDir.resolve("loinc.cache"), StandardCharsets.UTF_8);
+            codes.forEach(code -> assertTrue(cache.contains("\"code\" : \"" + code + "\""), code));
+
+            // the codes are not sent to the server again
+            server.reset();
+            assertEquals(0, ValidateApp.execute(args));
+            assertEquals(0, server.getValidateCodeRequests());
+        }
+    }
+
+    @Test
+    void testWithTxPrepass() throws IOException {
+        System.setProperty("spark.master", "local[2]");
+        final Path cacheDir = Path.of("target/tx-prepass-cache");
+        deleteRecursively(cacheDir);
+        final Path distinctCacheDir = Path.of("target/tx-prepass-distinct-cache");
+        deleteRecursively(distinctCacheDir);
+        final List<String> codes = List.of("8661-1", "8867-4", "8310-5");
+        final List<String> observations = new ArrayList<>();
+        for (int i = 0; i < 24; i++) {
+            observations.add("{\"resourceType\": \"Observation\", \"id\": \"o" + i + "\", \"status\": \"final\", " +
+                    "\"code\": {\"coding\": [{\"system\": \"http://loinc.org\", \"code\": \"" + codes.get(i % codes.size()) + "\"}]}}");
+        }
+        final Path distinctInput = Path.of("target/tx-prepass-distinct-input.ndjson");
+        Files.write(distinctInput, observations.subList(0, codes.size()), StandardCharsets.UTF_8);
+        final Path input = Path.of("target/tx-prepass-input.ndjson");
+        Files.write(input, observations, StandardCharsets.UTF_8);
+        try (final TerminologyServerStub server = TerminologyServerStub.start()) {
+            // the requests for a single resource with each code (otherwise the default cache of the engines is used)
+            assertEquals(0, ValidateApp.execute(new String[]{distinctInput.toString(), "target/tx-prepass-distinct-validation.parquet",
+                    "-tx", server.getUrl(), "-tc", distinctCacheDir.toString(), "-d", "WARN"}));
+            final int distinctRequests = server.getValidateCodeRequests();
+            assertTrue(distinctRequests >= codes.size());
+
+            // the requests are only sent by the pre-pass
+            server.reset();
+            assertEquals(0, ValidateApp.execute(new String[]{input.toString(), "target/tx-prepass-validation.parquet",
+                    "-tx", server.getUrl(), "-tc", cacheDir.toString(), "-tp", "-d", "WARN"}));
+            assertEquals(distinctRequests, server.getValidateCodeRequests());
+            final String cache = Files.readString(cacheDir.resolve("loinc.cache"), StandardCharsets.UTF_8);
+            codes.forEach(code -> assertTrue(cache.contains("\"code\" : \"" + code + "\""), code));
+
+            // the pre-pass does not change the results
+            final Path plainCacheDir = Path.of("target/tx-prepass-plain-cache");
+            deleteRecursively(plainCacheDir);
+            assertEquals(0, ValidateApp.execute(new String[]{input.toString(), "target/tx-prepass-plain-validation.parquet",
+                    "-tx", server.getUrl(), "-tc", plainCacheDir.toString(), "-d", "WARN"}));
+            final SparkSession spark = SparkSession.builder().getOrCreate();
+            final Dataset<Row> withPrepass = spark.read().parquet("target/tx-prepass-validation.parquet");
+            final Dataset<Row> withoutPrepass = spark.read().parquet("target/tx-prepass-plain-validation.parquet");
+            assertEquals(withoutPrepass.count(), withPrepass.count());
+            assertEquals(0, withPrepass.exceptAll(withoutPrepass).count());
+        }
+        // the pre-pass requires the terminology cache
+        assertEquals(1, ValidateApp.execute(new String[]{input.toString(), "target/tx-prepass-validation.parquet",
+                "-tp", "-d", "WARN"}));
+    }
+
+    @Test
+    void testWithRoutes() {
+        System.setProperty("spark.master", "local[*]");
+        int exitCode = ValidateApp.execute(new String[]{"data/mimic-iv-demo-10_partitioned", "target/MimicDemo-routes-validation.parquet", "-r", "http://mimic.mit.edu/fhir/mimic/=4.0.1,data/packages/kindlab.fhir.mimic/package.tgz", "-d", "WARN"});
+        assertEquals(0, exitCode);
+    }
+
+    @Test
+    void testWithPrewarm() {
+        System.setProperty("spark.master", "local[2]");
+        int exitCode = ValidateApp.execute(new String[]{"data/mimic-iv-demo-10_partitioned", "target/MimicDemo-prewarm-validation.parquet", "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-w", "5", "-d", "WARN"});
+        assertEquals(0, exitCode);
+    }
+
+    @Test
+    void testWithOfflinePackages() {
+        System.setProperty("spark.master", "local[*]");
+        int exitCode = ValidateApp.execute(new String[]{"data/mimic-iv-demo-10/MimicPatient.ndjson", "target/MimicPatient-offline-validation.parquet", "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-k", "target/offline-packages", "-d", "WARN"});
+        assertEquals(0, exitCode);
+    }
+
+    @Test
+    void testWithOfflinePackagesAndEngineSnapshot() {
+        System.setProperty("spark.master", "local[*]");
+        // the snapshot is created on the driver from the offline packages too
+        int exitCode = ValidateApp.execute(new String[]{"data/mimic-iv-demo-10/MimicPatient.ndjson", "target/MimicPatient-offline-snapshot-validation.parquet", "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-k", "target/offline-packages", "-s", "target/offline-snapshots", "-d", "WARN"});
+        assertEquals(0, exitCode);
+    }
+
+    @Test
+    void testWithResultCache() {
+        System.setProperty("spark.master", "local[*]");
+        int exitCode = ValidateApp.execute(new String[]{"data/mimic-iv-demo-10_partitioned", "target/MimicDemo-cache-validation.parquet", "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-rc", "1000", "-rn", "-d", "WARN"});
+        assertEquals(0, exitCode);
+    }
+
+    @Test
+    void testIncrementalValidation() {
+        System.setProperty("spark.master", "local[*]");
+        final String[] common = {"-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-d", "WARN"};
+        assertEquals(0, ValidateApp.execute(concat(new String[]{"data/mimic-iv-demo-10/MimicPatient.ndjson",
+                "target/MimicPatient-full-validation.parquet", "-m"}, common)));
+        assertEquals(0, ValidateApp.execute(concat(new String[]{"data/mimic-iv-demo-10_partitioned",
+                "target/MimicDemo-full-validation.parquet"}, common)));
+        // the patients are carried forward and only the other resources are validated
+        assertEquals(0, ValidateApp.execute(concat(new String[]{"data/mimic-iv-demo-10_partitioned",
+                "target/MimicDemo-incremental-validation.parquet", "--previous", "target/MimicPatient-full-validation.parquet"}, common)));
+
+        final SparkSession spark = SparkSession.builder().getOrCreate();
+        final Dataset<Row> full = spark.read().parquet("target/MimicDemo-full-validation.parquet");
+        final Dataset<Row> incremental = spark.read().parquet("target/MimicDemo-incremental-validation.parquet")
+                .select(full.columns()[0], Arrays.copyOfRange(full.columns(), 1, full.columns().length));
+        assertEquals(full.count(), incremental.count());
+        assertEquals(0, full.exceptAll(incremental).count());
+        assertEquals(spark.read().text("data/mimic-iv-demo-10_partitioned").count(),
+                spark.read().parquet("target/MimicDemo-incremental-validation.parquet_manifest").count());
+    }
+
+    @Test
+    void testIncrementalValidationWithChangedConfig() {
+        System.setProperty("spark.master", "local[*]");
+        assertEquals(0, ValidateApp.execute(new String[]{"data/mimic-iv-demo-10/MimicPatient.ndjson",
+                "target/MimicPatient-noig-validation.parquet", "-m", "-d", "WARN"}));
+        // a different configuration invalidates all the previous results
+        assertEquals(0, ValidateApp.execute(new String[]{"data/mimic-iv-demo-10/MimicPatient.ndjson",
+                "target/MimicPatient-changed-validation.parquet", "--previous", "target/MimicPatient-noig-validation.parquet",
+                "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-d", "WARN"}));
+        assertEquals(0, ValidateApp.execute(new String[]{"data/mimic-iv-demo-10/MimicPatient.ndjson",
+                "target/MimicPatient-ig-validation.parquet", "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-d", "WARN"}));
+
+        final SparkSession spark = SparkSession.builder().getOrCreate();
+        final Dataset<Row> expected = spark.read().parquet("target/MimicPatient-ig-validation.parquet");
+        final Dataset<Row> changed = spark.read().parquet("target/MimicPatient-changed-validation.parquet")
+                .select(expected.columns()[0], Arrays.copyOfRange(expected.columns(), 1, expected.columns().length));
+        assertEquals(expected.count(), changed.count());
+        assertEquals(0, expected.exceptAll(changed).count());
+    }
+
+    @Test
+    void testIncrementalValidationWithChangedIgContent() throws IOException {
+        System.setProperty("spark.master", "local[*]");
+        final Path ig = Path.of("target/incremental-ig/package.tgz");
+        Files.createDirectories(ig.getParent());
+        Files.copy(Path.of("data/packages/kindlab.fhir.mimic/package.tgz"), ig, StandardCopyOption.REPLACE_EXISTING);
+        final String[] common = {"-i", ig.toString(), "-d", "WARN"};
+        assertEquals(0, ValidateApp.execute(concat(new String[]{"data/mimic-iv-demo-10/MimicPatient.ndjson",
+                "target/MimicPatient-ig-content-validation.parquet", "-m"}, common)));
+        // the same path with a different guide invalidates all the previous results
+        try (final OutputStream os = Files.newOutputStream(ig)) {
+            new FilesystemPackageCacheManager.Builder().build().loadPackage("hl7.fhir.us.core#4.0.0").save(os);
+        }
+        assertEquals(0, ValidateApp.execute(concat(new String[]{"data/mimic-iv-demo-10/MimicPatient.ndjson",
+                "target/MimicPatient-changed-ig-content-validation.parquet", "--previous", "target/MimicPatient-ig-content-validation.parquet"}, common)));
+        assertEquals(0, ValidateApp.execute(new String[]{"data/mimic-iv-demo-10/MimicPatient.ndjson",
+                "target/MimicPatient-uscore-validation.parquet", "-i", ig.toString(), "-d", "WARN"}));
+
+        final SparkSession spark = SparkSession.builder().getOrCreate();
+        final Dataset<Row> expected = spark.read().parquet("target/MimicPatient-uscore-validation.parquet");
+        final Dataset<Row> changed = spark.read().parquet("target/MimicPatient-changed-ig-content-validation.parquet")
+                .select(expected.columns()[0], Arrays.copyOfRange(expected.columns(), 1, expected.columns().length));
+        assertEquals(expected.count(), changed.count());
+        assertEquals(0, expected.exceptAll(changed).count());
+        assertNotEquals(0, spark.read().parquet("target/MimicPatient-ig-content-validation.parquet").exceptAll(expected).count());
+    }
+
+    @Test
+    void testCompactIssues() {
+        System.setProperty("spark.master", "local[*]");
+        assertEquals(0, ValidateApp.execute(new String[]{"data/mimic-iv-demo-10_partitioned", "target/MimicDemo-expanded-validation.parquet",
+                "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-d", "WARN"}));
+        assertEquals(0, ValidateApp.execute(new String[]{"data/mimic-iv-demo-10_partitioned", "target/MimicDemo-compact-validation.parquet",
+                "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-ci", "-d", "WARN"}));
+
+        final SparkSession spark = SparkSession.builder().getOrCreate();
+        final Dataset<Row> expected = spark.read().parquet("target/MimicDemo-expanded-validation.parquet")
+                .selectExpr("resource", "explode(issues) AS issue")
+                .selectExpr("resource", "issue.level", "issue.messageId", "issue.message");
+        // the parameters are only in the compact issues
+        assertFalse(Arrays.asList(spark.read().parquet("target/MimicDemo-expanded-validation.parquet")
+                .selectExpr("explode(issues) AS issue").select("issue.*").columns()).contains("params"));
+        final Dataset<Row> compactIssues = spark.read().parquet("target/MimicDemo-compact-validation.parquet")
+                .selectExpr("resource", "explode(issues) AS issue");
+        assertTrue(compactIssues.where("issue.message IS NULL").count() > 0);
+        final Dataset<Row> messages = spark.read().parquet("target/MimicDemo-compact-validation.parquet_messages");
+        final Dataset<Row> formatted = compactIssues
+                .join(messages, compactIssues.col("issue.messageId").equalTo(messages.col("messageId"))
+                        // validated without a language
+                        .and(messages.col("language").isNull()), "left")
+                .selectExpr("resource", "issue.level", "issue.messageId",
+                        "coalesce(issue.message, aggregate(sequence(0, size(issue.params) - 1), template, " +
+                                "(m, i) -> coalesce(replace(m, '{' || i || '}', issue.params[i]), m))) AS message");
+        assertEquals(expected.count(), formatted.count());
+        assertEquals(0, expected.exceptAll(formatted).count());
+    }
+
+    @Test
+    void testReferenceOutput() throws IOException {
+        System.setProperty("spark.master", "local[*]");
+        final String[] common = {"-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-d", "WARN"};
+        assertEquals(0, ValidateApp.execute(concat(new String[]{"data/mimic-iv-demo-10_partitioned",
+                "target/MimicDemo-resources-validation.parquet"}, common)));
+        assertEquals(0, ValidateApp.execute(concat(new String[]{"data/mimic-iv-demo-10_partitioned",
+                "target/MimicDemo-reference-validation.parquet", "-ro", "-m"}, common)));
+        // the previous results are carried forward in the reference layout as well
+        assertEquals(0, ValidateApp.execute(concat(new String[]{"data/mimic-iv-demo-10_partitioned",
+                "target/MimicDemo-reference-incremental-validation.parquet", "-ro", "--previous", "target/MimicDemo-reference-validation.parquet"}, common)));
+
+        final SparkSession spark = SparkSession.builder().getOrCreate();
+        final Dataset<Row> expected = spark.read().parquet("target/MimicDemo-resources-validation.parquet")
+                .selectExpr("filename", "md5(cast(resource AS binary)) AS hash", "explode(issues) AS issue")
+                .selectExpr("filename", "hash", "issue.*");
+        for (final String output : List.of("target/MimicDemo-reference-validation.parquet", "target/MimicDemo-reference-incremental-validation.parquet")) {
+            final Dataset<Row> reference = spark.read().parquet(output);
+            assertEquals(expected.count(), reference.count());
+            assertEquals(0, expected.exceptAll(reference.select(expected.columns()[0],
+                    Arrays.copyOfRange(expected.columns(), 1, expected.columns().length))).count());
+        }
+        // the references point to the resources in the input
+        for (final Row row : spark.read().parquet("target/MimicDemo-reference-validation.parquet")
+                .select("source", "offset", "hash").distinct().collectAsList()) {
+            final byte[] line;
+            try (final RandomAccessFile file = new RandomAccessFile(new File(URI.create(row.getString(0))), "r")) {
+                file.seek(row.getLong(1));
+                line = file.readLine().getBytes(StandardCharsets.ISO_8859_1);
+            }
+            assertEquals(row.getString(2), spark.createDataset(List.of(line), Encoders.BINARY())
+                    .selectExpr("md5(value)").first().getString(0));
+        }
+    }
+
+    @Test
+    void testStreaming() throws IOException {
+        System.setProperty("spark.master", "local[*]");
+        final Path input = Path.of("target/streaming-input");
+        deleteRecursively(input);
+        deleteRecursively(Path.of("target/MimicDemo-streaming-validation.parquet"));
+        deleteRecursively(Path.of("target/MimicDemo-streaming-validation.parquet" + ValidateApp.CHECKPOINT_SUFFIX));
+        final String[] args = {"target/streaming-input", "target/MimicDemo-streaming-validation.parquet",
+                "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "--streaming", "--trigger", ValidateApp.AVAILABLE_NOW_TRIGGER,
+                "--max-files-per-trigger", "1", "-d", "WARN"};
+        // the files arriving after the first run are validated by the next one
+        copyPartition("MimicPatient", input);
+        assertEquals(0, ValidateApp.execute(args));
+        copyPartition("MimicCondition", input);
+        copyPartition("MimicObservationED", input);
+        assertEquals(0, ValidateApp.execute(args));
+        assertEquals(0, ValidateApp.execute(new String[]{"data/mimic-iv-demo-10_partitioned", "target/MimicDemo-batch-validation.parquet",
+                "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-d", "WARN"}));
+
+        final SparkSession spark = SparkSession.builder().getOrCreate();
+        final Dataset<Row> expected = spark.read().parquet("target/MimicDemo-batch-validation.parquet");
+        final Dataset<Row> streamed = spark.read().parquet("target/MimicDemo-streaming-validation.parquet")
+                .select(expected.columns()[0], Arrays.copyOfRange(expected.columns(), 1, expected.columns().length));
+        assertEquals(expected.count(), streamed.count());
+        assertEquals(0, expected.exceptAll(streamed).count());
+    }
+
+    @Test
+    void testPlannedPartitions() {
+        System.setProperty("spark.master", "local[*]");
+        assertEquals(0, ValidateApp.execute(new String[]{"data/mimic-iv-demo-10_partitioned", "target/MimicDemo-unplanned-validation.parquet",
+                "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-d", "WARN"}));
+        assertEquals(0, ValidateApp.execute(new String[]{"data/mimic-iv-demo-10_partitioned", "target/MimicDemo-planned-validation.parquet",
+                "-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-pp", "3", "-d", "WARN"}));
+        final SparkSession spark = SparkSession.builder().getOrCreate();
+        final Dataset<Row> expected = spark.read().parquet("target/MimicDemo-unplanned-validation.parquet");
+        final Dataset<Row> planned = spark.read().parquet("target/MimicDemo-planned-validation.parquet");
+        assertEquals(3, planned.inputFiles().length);
+        // the issues reported for the first resources validated by an engine may differ (e.g. the display language
+        // of the first terminology check), and those depend on the order of the resources
+        assertEquals(0, expected.select("resource", "filename").exceptAll(planned.select("resource", "filename")).count());
+        assertEquals(0, planned.select("resource", "filename").exceptAll(expected.select("resource", "filename")).count());
+    }
+
+    @Test
+    void testBundleFanOut() throws IOException {
+        System.setProperty("spark.master", "local[*]");
+        final List<String> resources = new ArrayList<>();
+        for (final String filename : List.of("MimicPatient", "MimicCondition", "MimicObservationED")) {
+            resources.addAll(Files.readAllLines(Path.of("data/mimic-iv-demo-10", filename + ".ndjson")));
+        }
+        // an unresolved internal reference and a duplicate fullUrl
+        resources.set(10, resources.get(10).replaceFirst("\"Patient/[^\"]+\"", "\"urn:uuid:00000000-0000-0000-0000-000000000000\""));
+        final List<String> entries = new ArrayList<>();
+        for (final String resource : resources) {
+            entries.add("{\"fullUrl\": \"urn:uuid:" + UUID.nameUUIDFromBytes(resource.getBytes(StandardCharsets.UTF_8)) +
+                    "\", \"resource\": " + resource + "}");
+        }
+        entries.add(entries.get(0));
+        final String bundle = "{\"resourceType\": \"Bundle\", \"type\": \"collection\", \"entry\": [" + String.join(", ", entries) + "]}";
+        final Path input = Files.createDirectories(Path.of("target/bundles"));
+        Files.write(input.resolve("bundles.ndjson"), List.of(concat(new String[]{bundle}, resources.subList(0, 10).toArray(String[]::new))));
+        final String[] common = {"-i", "data/packages/kindlab.fhir.mimic/package.tgz", "-d", "WARN"};
+        assertEquals(0, ValidateApp.execute(concat(new String[]{"target/bundles", "target/Bundles-validation.parquet"}, common)));
+        assertEquals(0, ValidateApp.execute(concat(new String[]{"target/bundles", "target/Bundles-fan-out-validation.parquet", "-fb", "10"}, common)));
+
+        final SparkSession spark = SparkSession.builder().getOrCreate();
+        final Dataset<Row> expected = spark.read().parquet("target/Bundles-validation.parquet")
+                .selectExpr("md5(resource) AS hash", "explode(issues) AS issue").selectExpr("hash", "issue.level", "issue.messageId", "issue.location", "issue.col");
+        final Dataset<Row> fannedOut = spark.read().parquet("target/Bundles-fan-out-validation.parquet")
+                .selectExpr("md5(resource) AS hash", "explode(issues) AS issue").selectExpr("hash", "issue.level", "issue.messageId", "issue.location", "issue.col");
+        // the issues of the entries are reported at the same locations as for the whole Bundle
+        assertEquals(0, fannedOut.exceptAll(expected).count());
+        // except for the matching of the relative references to the other entries, and the issues the validator
+        // reports twice for the entries (with and without the type and id of the resource)
+        assertEquals(0, expected.exceptAll(fannedOut)
+                .filter("messageId NOT IN ('BUNDLE_POSSSIBLE_MATCHES', 'BUNDLE_BUNDLE_POSSIBLE_MATCH_WRONG_FU')")
+                .filter("location NOT RLIKE '^Bundle\\\\.entry\\\\[\\\\d+]\\\\.resource$'")
+                .count());
+        assertTrue(fannedOut.filter("messageId = 'BUNDLE_BUNDLE_NOT_LOCAL'").count() > 0);
+    }
+
+    @Test
+    void testParseTrigger() {
+        assertEquals(Trigger.AvailableNow(), ValidateApp.parseTrigger(ValidateApp.AVAILABLE_NOW_TRIGGER));
+        assertEquals(Trigger.ProcessingTime("30 seconds"), ValidateApp.parseTrigger("30 seconds"));
+        assertThrows(IllegalArgumentException.class, () -> ValidateApp.parseTrigger("soon"));
+    }
+
+    @Test
+    void testFilenamePartition() {
+        assertEquals("MimicPatient", ValidateApp.filenamePartition("file:/data/filename=MimicPatient/part-0.ndjson"));
+        assertEquals("a b", ValidateApp.filenamePartition("file:/data/filename=a%20b/part-0.ndjson"));
+        assertNull(ValidateApp.filenamePartition("file:/data/MimicPatient.ndjson"));
+    }
+
+    private static void copyPartition(@Nonnull final String filename, @Nonnull final Path target) throws IOException {
+        final Path partition = Files.createDirectories(target.resolve("filename=" + filename));
+        Files.copy(Path.of("data/mimic-iv-demo-10_partitioned", "filename=" + filename, filename + ".ndjson"),
+                partition.resolve(filename + ".ndjson"));
+    }
+
+    private static void deleteRecursively(@Nonnull final Path path) throws IOException {
+        if (Files.exists(path)) {
+            try (final Stream<Path> paths = Files.walk(path)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    @Nonnull
+    private static String[] concat(@Nonnull final String[] first, @Nonnull final String[] second) {
+        final String[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    @Test
+    void testParseRoute() {
+        assertEquals(new ValidateApp.Route("http://mimic.mit.edu/fhir/mimic/", "4.0.1", List.of("a.tgz", "b#1.0.0")),
+                ValidateApp.Route.parse("http://mimic.mit.edu/fhir/mimic/=4.0.1,a.tgz,b#1.0.0"));
+        assertEquals(new ValidateApp.Route("http://hl7.org/fhir/", "5.0.0", List.of()),
+                ValidateApp.Route.parse("http://hl7.org/fhir/=5.0.0"));
+        assertEquals(new ValidateApp.Route("http://hl7.org/fhir/", "4.0.1", List.of("igs/a=1.tgz")),
+                ValidateApp.Route.parse("http://hl7.org/fhir/=4.0.1,igs/a=1.tgz"));
+        assertThrows(IllegalArgumentException.class, () -> ValidateApp.Route.parse("http://hl7.org/fhir/"));
+    }
 }
\ No newline at end of file
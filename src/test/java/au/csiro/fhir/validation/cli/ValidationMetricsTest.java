@@ -0,0 +1,63 @@
+package au.csiro.fhir.validation.cli;
+
+import au.csiro.fhir.validation.ValidationResult;
+import au.csiro.fhir.validation.ValidationResult.Issue;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ValidationMetricsTest {
+
+    @Test
+    void testResourceTypeOf() {
+        assertEquals("Patient", ValidationMetrics.resourceTypeOf(
+                "{\"id\": \"p1\", \"contained\": [{\"resourceType\": \"Organization\"}], \"resourceType\": \"Patient\"}".getBytes(StandardCharsets.UTF_8)));
+        assertNull(ValidationMetrics.resourceTypeOf("{\"id\": \"p1\"}".getBytes(StandardCharsets.UTF_8)));
+        assertNull(ValidationMetrics.resourceTypeOf("[1, 2]".getBytes(StandardCharsets.UTF_8)));
+        assertNull(ValidationMetrics.resourceTypeOf("{\"resourceType\": ".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testRecordAndMerge() {
+        final byte[] patient = "{\"resourceType\": \"Patient\"}".getBytes(StandardCharsets.UTF_8);
+        final ValidationResult result = ValidationResult.of(
+                Issue.builder().level("error").type("structure").message("m1").messageId("ID_1").build(),
+                Issue.builder().level("warning").type("structure").message("m2").build());
+
+        final ValidationMetrics.Accumulator accumulator = new ValidationMetrics.Accumulator();
+        assertTrue(accumulator.isZero());
+        final ValidationMetrics first = new ValidationMetrics();
+        first.record(patient, result, 0.5);
+        first.recordEngineInit("1", 1000);
+        final ValidationMetrics second = new ValidationMetrics();
+        second.record(patient, ValidationResult.of(), 150.0);
+        second.record("{}".getBytes(StandardCharsets.UTF_8), ValidationResult.of(), 100_000.0);
+        second.recordEngineInit("1", 1200);
+        accumulator.add(first);
+        accumulator.merge(accumulator.copy());
+        accumulator.add(second);
+
+        final ValidationMetrics metrics = accumulator.value();
+        assertEquals(4, metrics.getResources());
+        assertEquals(2, metrics.getResourcesWithIssues());
+        assertEquals(3L * patient.length + 2, metrics.getBytes());
+        assertEquals(Map.of("error", 2L, "warning", 2L), metrics.getIssuesByLevel());
+        assertEquals(Map.of("ID_1", 2L, ValidationMetrics.UNKNOWN, 2L), metrics.getIssuesByMessageId());
+        assertEquals(Map.of("1", 1200L), metrics.getEngineInitMillisByExecutor());
+
+        final ValidationMetrics.LatencyHistogram patients = metrics.getLatencyByResourceType().get("Patient");
+        assertEquals(3, patients.getCount());
+        assertEquals(151.0, patients.getTotalMillis());
+        assertEquals(150.0, patients.getMaxMillis());
+        // 0.5 ms in the <= 1 ms bucket, 150 ms in the <= 200 ms bucket
+        assertArrayEquals(new long[]{2, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0}, patients.getBuckets());
+        assertEquals(1, metrics.getLatencyByResourceType().get(ValidationMetrics.UNKNOWN)
+                .getBuckets()[ValidationMetrics.LATENCY_BOUNDS_MILLIS.length]);
+    }
+}
@@ -4,6 +4,11 @@ import au.csiro.fhir.validation.ValidationResult;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 class HapiHL7ValidationServiceTest {
@@ -36,4 +41,19 @@ class HapiHL7ValidationServiceTest {
         assertEquals(expectedResult, result);
     }
 
-}
\ No newline at end of file
+    @Test
+    void testValidateBatch() {
+        final HapiValidationService service = HapiValidationService.getOrCreate(FhirVersionEnum.R4);
+        final List<byte[]> batch = Stream.of(
+                        "{ \"resourceType\": \"Patient\", \"name\": {}}",
+                        "{ deer }",
+                        "{ \"resourceType\": \"Patient\", \"active\": true}",
+                        "{ \"resourceType\": \"Patient\", \"xxx\":\"yy\"}")
+                .map(s -> s.getBytes(StandardCharsets.UTF_8))
+                .collect(Collectors.toUnmodifiableList());
+        final List<ValidationResult> expectedResults = batch.stream()
+                .map(service::validateJson)
+                .collect(Collectors.toUnmodifiableList());
+        assertEquals(expectedResults, service.validateBatch(batch));
+    }
+}
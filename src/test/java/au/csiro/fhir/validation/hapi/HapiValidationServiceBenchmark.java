@@ -0,0 +1,66 @@
+package au.csiro.fhir.validation.hapi;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Measures the throughput of the (parser based) validation of the MIMIC demo resources (10 of each type)
+ * with {@link HapiValidationService#validateJson(byte[])}. The throughput is per resource.
+ * <p>
+ * Run with: {@code mvn test -Pbenchmark -Dbenchmark=HapiValidationServiceBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HapiValidationServiceBenchmark {
+
+    private static final int RESOURCES = 10;
+
+    @Param({"MimicPatient", "MimicCondition", "MimicObservationED"})
+    public String resourceFile;
+
+    private List<byte[]> resources;
+    private HapiValidationService validationService;
+
+    @Setup
+    public void setUp() throws IOException {
+        resources = Files.readAllLines(Paths.get("data/mimic-iv-demo-10", resourceFile + ".ndjson")).stream()
+                .map(line -> line.getBytes(StandardCharsets.UTF_8))
+                .collect(Collectors.toUnmodifiableList());
+        if (resources.size() != RESOURCES) {
+            throw new IllegalStateException("Expected " + RESOURCES + " resources in: " + resourceFile + " but found: " + resources.size());
+        }
+        validationService = HapiValidationService.getOrCreate(FhirVersionEnum.R4);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RESOURCES)
+    public void validateJson(final Blackhole blackhole) {
+        for (final byte[] resource : resources) {
+            blackhole.consume(validationService.validateJson(resource));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package au.csiro.fhir.validation.hl7;
+
+import au.csiro.fhir.validation.ValidationResult;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HL7CodeListsTest {
+
+    @Test
+    void testParseCodeList() {
+        assertEquals(new HL7CodeLists.CodeList("http://loinc.org", "2.77", "Loinc.csv", "LOINC_NUM", "LONG_COMMON_NAME"),
+                HL7CodeLists.CodeList.parse("http://loinc.org|2.77=Loinc.csv,LOINC_NUM,LONG_COMMON_NAME"));
+        assertEquals(new HL7CodeLists.CodeList("http://hl7.org/fhir/sid/icd-10", null, "data/icd10.csv", "code", "display"),
+                HL7CodeLists.CodeList.parse("http://hl7.org/fhir/sid/icd-10=data/icd10.csv"));
+        assertThrows(IllegalArgumentException.class, () -> HL7CodeLists.CodeList.parse("http://loinc.org"));
+    }
+
+    @Test
+    void testReadRecord() throws IOException {
+        final BufferedReader reader = new BufferedReader(new StringReader(
+                "code,display\r\n\"A\",\"Quoted, with \"\"quotes\"\"\"\n\"B\",\"Two\nlines\"\nC,\n"));
+        assertEquals(List.of("code", "display"), HL7CodeLists.readRecord(reader));
+        assertEquals(List.of("A", "Quoted, with \"quotes\""), HL7CodeLists.readRecord(reader));
+        assertEquals(List.of("B", "Two\nlines"), HL7CodeLists.readRecord(reader));
+        assertEquals(List.of("C", ""), HL7CodeLists.readRecord(reader));
+        assertNull(HL7CodeLists.readRecord(reader));
+    }
+
+    @Test
+    void testValidateWithCodeList() throws IOException {
+        final Path file = Path.of("target/code-lists/loinc.csv");
+        Files.createDirectories(file.getParent());
+        Files.write(file, List.of("\uFEFF\"LOINC_NUM\",\"COMPONENT\",\"LONG_COMMON_NAME\"",
+                "\"8867-4\",\"Heart rate\",\"Heart rate\"",
+                "\"8661-1\",\"Chief complaint\",\"Chief complaint - Reported\"",
+                "\"8661-1\",\"Duplicate\",\"Duplicate\""), StandardCharsets.UTF_8);
+        final HL7ValidationConfig config = HL7ValidationConfig.builder()
+                .codeList("http://loinc.org=" + file + ",LOINC_NUM,LONG_COMMON_NAME")
+                // otherwise the engine uses the default terminology cache, shared with the other tests
+                .txCache("target/code-lists/tx-cache")
+                .build();
+        final HL7ValidationService validationService = new HL7ValidationService(HL7ValidationService.createEngine(config), false);
+
+        // the code and the display are validated without a terminology server
+        assertEquals(List.of(), codingIssues(validationService.validateJson(observation("8661-1", "Chief complaint - Reported"))));
+        assertEquals(List.of("error:UNKNOWN_CODE_IN_VERSION"),
+                codingIssues(validationService.validateJson(observation("9999-9", "Unknown"))));
+        assertEquals(List.of("error:DISPLAY_NAME_FOR__SHOULD_BE_ONE_OF__INSTEAD_OF_ONE"),
+                codingIssues(validationService.validateJson(observation("8661-1", "Duplicate"))));
+    }
+
+    @Test
+    void testCodesInListAreNotSentToServer() throws IOException {
+        final Path file = Path.of("target/code-lists/loinc-server.csv");
+        Files.createDirectories(file.getParent());
+        Files.write(file, List.of("code,display", "8867-4,Heart rate", "8661-1,Chief complaint - Reported"), StandardCharsets.UTF_8);
+        try (final TerminologyServerStub server = TerminologyServerStub.start()) {
+            final HL7ValidationConfig config = HL7ValidationConfig.builder()
+                    .txSever(server.getUrl())
+                    .codeList("http://loinc.org=" + file)
+                    .txCache("target/code-lists/tx-cache-server")
+                    .build();
+            final HL7ValidationService validationService = new HL7ValidationService(HL7ValidationService.createEngine(config), false);
+            server.reset();
+            assertEquals(List.of(), codingIssues(validationService.validateJson(observation("8867-4", "Heart rate"))));
+            assertEquals(List.of(), codingIssues(validationService.validateJson(observation("8661-1", "Chief complaint - Reported"))));
+            assertEquals(0, server.getValidateCodeRequests());
+        }
+    }
+
+    @Test
+    void testChangedCodeListAtTheSamePath() throws IOException {
+        final Path file = Path.of("target/code-lists/loinc-changed.csv");
+        Files.createDirectories(file.getParent());
+        Files.write(file, List.of("code,display", "8867-4,Heart rate"), StandardCharsets.UTF_8);
+        final HL7ValidationConfig config = HL7ValidationConfig.builder()
+                .codeList("http://loinc.org=" + file)
+                .txCache("target/code-lists/tx-cache-changed")
+                .build();
+        final String fingerprint = config.withResolvedContent().fingerprint();
+        assertEquals(List.of("error:UNKNOWN_CODE_IN_VERSION"), codingIssues(new HL7ValidationService(
+                HL7ValidationService.createEngine(config), false).validateJson(observation("8661-1", "Chief complaint - Reported"))));
+
+        // both the fingerprint and the index of the code list follow the content of the file
+        Files.write(file, List.of("code,display", "8867-4,Heart rate", "8661-1,Chief complaint - Reported"), StandardCharsets.UTF_8);
+        assertTrue(file.toFile().setLastModified(file.toFile().lastModified() + 1000));
+        assertNotEquals(fingerprint, config.withResolvedContent().fingerprint());
+        assertEquals(List.of(), codingIssues(new HL7ValidationService(
+                HL7ValidationService.createEngine(config), false).validateJson(observation("8661-1", "Chief complaint - Reported"))));
+    }
+
+    private static byte[] observation(final String code, final String display) {
+        return ("{\"resourceType\": \"Observation\", \"status\": \"final\", \"code\": {\"coding\": [{\"system\": \"http://loinc.org\", " +
+                "\"code\": \"" + code + "\", \"display\": \"" + display + "\"}]}, \"valueString\": \"value\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> codingIssues(final ValidationResult result) {
+        return result.getIssues().stream()
+                .filter(issue -> issue.getLocation() != null && issue.getLocation().startsWith("Observation.code.coding"))
+                .map(issue -> issue.getLevel() + ":" + issue.getMessageId())
+                .collect(Collectors.toList());
+    }
+}
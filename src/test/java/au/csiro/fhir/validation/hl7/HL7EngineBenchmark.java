@@ -0,0 +1,57 @@
+package au.csiro.fhir.validation.hl7;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.hl7.fhir.validation.ValidationEngine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to create a validation engine with {@link HL7ValidationService#createEngine(HL7ValidationConfig)},
+ * with the core definitions only and with the {@code kindlab.fhir.mimic} IG, and of a shared engine (with all
+ * the resources loaded and the snapshots generated upfront) with the IG. Each invocation creates a new engine,
+ * so the packages are already in the local package cache after the first one.
+ * <p>
+ * Run with: {@code mvn test -Pbenchmark -Dbenchmark=HL7EngineBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HL7EngineBenchmark {
+
+    @Param({"core", "mimic"})
+    public String igs;
+
+    private HL7ValidationConfig config;
+
+    @Setup
+    public void setUp() {
+        final HL7ValidationConfig.HL7ValidationConfigBuilder builder = HL7ValidationConfig.builder();
+        if ("mimic".equals(igs)) {
+            builder.ig("data/packages/kindlab.fhir.mimic/package.tgz");
+        }
+        config = builder.build();
+    }
+
+    @Benchmark
+    public ValidationEngine createEngine() {
+        return HL7ValidationService.createEngine(config);
+    }
+
+    @Benchmark
+    public ValidationEngine createSharedEngine() {
+        return HL7ValidationService.createSharedEngine(config);
+    }
+}
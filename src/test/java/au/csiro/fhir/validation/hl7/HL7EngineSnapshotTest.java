@@ -0,0 +1,65 @@
+package au.csiro.fhir.validation.hl7;
+
+import au.csiro.fhir.validation.ValidationResult;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HL7EngineSnapshotTest {
+
+    private final HL7ValidationConfig config = HL7ValidationConfig.builder()
+            .ig("data/packages/kindlab.fhir.mimic/package.tgz")
+            .build();
+
+    @Test
+    void testFingerprint() {
+        assertEquals(config.fingerprint(), config.toBuilder().showProgress(true).engineSnapshot("x.tgz").build().fingerprint());
+        assertNotEquals(config.fingerprint(), config.toBuilder().language("de").build().fingerprint());
+        assertNotEquals(config.fingerprint(), HL7ValidationConfig.defaultConfig().fingerprint());
+    }
+
+    @Test
+    void testFingerprintWithResolvedContent() throws Exception {
+        final File igFile = new File("target/snapshots/content-ig.tgz");
+        Files.createDirectories(igFile.getParentFile().toPath());
+        Files.copy(Paths.get("data/packages/kindlab.fhir.mimic/package.tgz"), igFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        final HL7ValidationConfig fileConfig = HL7ValidationConfig.fromIGs(igFile.getPath());
+        final String fingerprint = fileConfig.withResolvedContent().fingerprint();
+        assertNotEquals(fileConfig.fingerprint(), fingerprint);
+        assertEquals(fingerprint, fileConfig.withResolvedContent().fingerprint());
+
+        // the same path with a different content
+        Files.write(igFile.toPath(), "not a package".getBytes(StandardCharsets.UTF_8));
+        assertTrue(igFile.setLastModified(igFile.lastModified() + 1000));
+        assertNotEquals(fingerprint, fileConfig.withResolvedContent().fingerprint());
+    }
+
+    @Test
+    void testSnapshotEngineProducesSameResults() throws Exception {
+        final File snapshotFile = new File("target/snapshots", HL7EngineSnapshot.fileName(config));
+        HL7EngineSnapshot.create(config, snapshotFile);
+        assertTrue(snapshotFile.isFile());
+
+        final ValidationEngine igEngine = HL7ValidationService.createEngine(config);
+        final ValidationEngine snapshotEngine = HL7ValidationService.createEngine(
+                config.toBuilder().engineSnapshot(snapshotFile.getPath()).build());
+
+        final List<String> resources = Files.readAllLines(Paths.get("data/mimic-iv-demo-10/MimicPatient.ndjson"));
+        for (final String resource : resources) {
+            final byte[] data = resource.getBytes(StandardCharsets.UTF_8);
+            final ValidationResult expected = new HL7ValidationService(igEngine, false).validateJson(data);
+            final ValidationResult actual = new HL7ValidationService(snapshotEngine, false).validateJson(data);
+            assertEquals(expected, actual);
+        }
+    }
+}
@@ -1,13 +1,21 @@
 package au.csiro.fhir.validation.hl7;
 
+import au.csiro.fhir.validation.ValidationResult;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class HL7MessageResolverTest {
 
@@ -48,4 +56,76 @@ public class HL7MessageResolverTest {
         assertEquals(id.replace("0", "_"), resolvedId);
     }
 
+    private static Stream<String> provideMessageVariants() {
+        // the templates with the placeholders filled in different ways, and some messages not matching any template
+        return Stream.concat(
+                HL7MessageResolver.loadMessages().values().stream()
+                        .map(t -> t.replace("''", "'"))
+                        .flatMap(t -> Stream.of(t,
+                                t.replaceAll("\\{\\d+\\}", ""),
+                                t.replaceAll("\\{\\d+\\}", "'http://example.org/fhir/StructureDefinition/x'"),
+                                t.replaceAll("\\{\\d+\\}", "a\nb"),
+                                t + "\n",
+                                t + " (extra)",
+                                "prefix " + t)),
+                Stream.of("", "Unknown message", "\n", "{0}"));
+    }
+
+    @Test
+    void testIndexedResolverIsEquivalentToRegexResolver() {
+        final Map<String, String> messages = HL7MessageResolver.loadMessages();
+        final MessageResolver expected = MessageResolver.ofMessages(messages);
+        final IndexedMessageResolver actual = IndexedMessageResolver.ofMessages(messages, 100);
+        provideMessageVariants().forEach(message ->
+                assertEquals(expected.getMessageId(message), actual.getMessageId(message), message));
+        // memoized
+        provideMessageVariants().forEach(message ->
+                assertEquals(expected.getMessageId(message), actual.getMessageId(message), message));
+    }
+
+    @Test
+    void testKnownMessageId() {
+        assertEquals(Optional.of("TYPE_SPECIFIC_CHECKS_DT_URL_RESOLVE"), HL7MessageResolver.getKnownMessageId("Type_Specific_Checks_DT_URL_Resolve"));
+        assertEquals(Optional.empty(), HL7MessageResolver.getKnownMessageId("Not_A_Message_Id"));
+        assertEquals(Optional.empty(), HL7MessageResolver.getKnownMessageId(null));
+    }
+
+    @Test
+    void testCompactIssue() {
+        final ValidationResult.Issue issue = ValidationResult.Issue.builder()
+                .level("error")
+                .type("invalid")
+                .message("URL value 'http://mimic.mit.edu/fhir/mimic/identifier/encounter-hosp' does not resolve")
+                .location("Encounter.identifier[0].system")
+                .build();
+        final ValidationResult.Issue compact = HL7MessageResolver.compact(issue, null);
+        assertNull(compact.getMessage());
+        assertEquals("TYPE_SPECIFIC_CHECKS_DT_URL_RESOLVE", compact.getMessageId());
+        assertEquals(List.of("http://mimic.mit.edu/fhir/mimic/identifier/encounter-hosp"), compact.getParams());
+        assertEquals("Encounter.identifier[0].system", compact.getLocation());
+        assertEquals(issue.getMessage(), HL7MessageResolver.formatMessage(
+                HL7MessageResolver.getTemplates(null).get(compact.getMessageId()), compact.getParams()));
+
+        final ValidationResult.Issue unknown = issue.toBuilder().message("Unknown message").build();
+        assertSame(unknown, HL7MessageResolver.compact(unknown, null));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"en", "de", "ja"})
+    void testCompactIssuesRoundTrip(final String language) {
+        final Map<String, String> templates = HL7MessageResolver.getTemplates(language);
+        long compacted = 0;
+        for (final Map.Entry<String, String> template : templates.entrySet()) {
+            final String message = template.getValue().replaceAll("\\{(\\d+)\\}", "value-$1");
+            final ValidationResult.Issue compact = HL7MessageResolver.compact(ValidationResult.Issue.builder()
+                    .level("error").type("invalid").message(message).build(), language);
+            if (compact.getMessage() == null) {
+                assertEquals(message, HL7MessageResolver.formatMessage(templates.get(compact.getMessageId()), compact.getParams()));
+                compacted++;
+            } else {
+                assertEquals(message, compact.getMessage());
+            }
+        }
+        assertTrue(compacted > templates.size() * 9 / 10, "compacted: " + compacted + " of: " + templates.size());
+    }
 }
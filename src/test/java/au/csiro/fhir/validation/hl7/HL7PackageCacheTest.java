@@ -0,0 +1,47 @@
+package au.csiro.fhir.validation.hl7;
+
+import org.hl7.fhir.utilities.settings.FhirSettings;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HL7PackageCacheTest {
+
+    @Test
+    void testPrepareAndValidateOffline() {
+        final File cacheDir = new File("target/offline-packages");
+        final HL7ValidationConfig config = HL7PackageCache.prepare(
+                HL7ValidationConfig.fromIGs("data/packages/kindlab.fhir.mimic/package.tgz"), cacheDir);
+        assertEquals(List.of("kindlab.fhir.mimic#1.3.0"), config.getIgs());
+        assertTrue(new File(cacheDir, "hl7.fhir.r4.core#4.0.1.tgz").isFile());
+        assertTrue(new File(cacheDir, "hl7.fhir.us.core#4.0.0.tgz").isFile());
+        assertTrue(new File(cacheDir, "kindlab.fhir.mimic#1.3.0.tgz").isFile());
+
+        final HL7ValidationService validationService = HL7ValidationService.getOrCreate(
+                config.toBuilder().packageCache(cacheDir.getPath()).build());
+        assertTrue(validationService.validateJson("{\"resourceType\":\"Patient\"}".getBytes(StandardCharsets.UTF_8))
+                .getIssues().stream().noneMatch(i -> "fatal".equals(i.getLevel())));
+        // only prohibited while the engine was created
+        assertFalse(FhirSettings.isProhibitNetworkAccess());
+    }
+
+    @Test
+    void testFailsOnMissingPackages() throws Exception {
+        final File cacheDir = new File("target/offline-packages-missing");
+        final HL7ValidationConfig config = HL7ValidationConfig.fromIGs("missing.package#1.0.0");
+        cacheDir.mkdirs();
+        Files.write(new File(cacheDir, "packages-" + config.fingerprint() + ".txt").toPath(),
+                List.of("missing.package#1.0.0"), StandardCharsets.UTF_8);
+        final IllegalStateException ex = assertThrows(IllegalStateException.class,
+                () -> HL7PackageCache.install(cacheDir.getPath(), config));
+        assertTrue(ex.getMessage().contains("missing.package#1.0.0"), ex.getMessage());
+    }
+}
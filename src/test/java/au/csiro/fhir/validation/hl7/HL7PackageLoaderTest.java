@@ -0,0 +1,59 @@
+package au.csiro.fhir.validation.hl7;
+
+import au.csiro.fhir.validation.ValidationResult;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HL7PackageLoaderTest {
+
+    private static final String MIMIC_IG = "data/packages/kindlab.fhir.mimic/package.tgz";
+
+    @Test
+    void testLoadsSamePackagesAsEngine() throws Exception {
+        final ValidationEngine engine = HL7ValidationService.createEngine(HL7ValidationConfig.defaultConfig());
+        engine.loadPackage(MIMIC_IG, null);
+        final ValidationEngine parallelEngine = HL7ValidationService.createEngine(HL7ValidationConfig.fromIGs(MIMIC_IG));
+
+        assertArrayEquals(engine.getContext().getLoadedPackages().stream().sorted().toArray(),
+                parallelEngine.getContext().getLoadedPackages().stream().sorted().toArray());
+
+        final List<String> resources = Files.readAllLines(Paths.get("data/mimic-iv-demo-10/MimicPatient.ndjson"));
+        for (final String resource : resources) {
+            final byte[] data = resource.getBytes(StandardCharsets.UTF_8);
+            final ValidationResult expected = new HL7ValidationService(engine, false).validateJson(data);
+            final ValidationResult actual = new HL7ValidationService(parallelEngine, false).validateJson(data);
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    void testLoadsDependencyGivenAsFile() throws Exception {
+        // the us core package is a dependency of the mimic package
+        final File usCoreFile = new File("target/packages/hl7.fhir.us.core.tgz");
+        Files.createDirectories(usCoreFile.getParentFile().toPath());
+        try (final OutputStream os = new FileOutputStream(usCoreFile)) {
+            new FilesystemPackageCacheManager.Builder().build().loadPackage("hl7.fhir.us.core#4.0.0").save(os);
+        }
+        final ValidationEngine engine = HL7ValidationService.createEngine(HL7ValidationConfig.fromIGs(MIMIC_IG));
+        final ValidationEngine dependencyFirstEngine = HL7ValidationService.createEngine(
+                HL7ValidationConfig.fromIGs(usCoreFile.getPath(), MIMIC_IG));
+        final ValidationEngine dependencyLastEngine = HL7ValidationService.createEngine(
+                HL7ValidationConfig.fromIGs(MIMIC_IG, usCoreFile.getPath()));
+
+        final Object[] expected = engine.getContext().getLoadedPackages().stream().sorted().toArray();
+        assertArrayEquals(expected, dependencyFirstEngine.getContext().getLoadedPackages().stream().sorted().toArray());
+        assertArrayEquals(expected, dependencyLastEngine.getContext().getLoadedPackages().stream().sorted().toArray());
+    }
+}
@@ -0,0 +1,86 @@
+package au.csiro.fhir.validation.hl7;
+
+import au.csiro.fhir.validation.ValidationResult;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HL7TerminologyCacheTest {
+
+    @Test
+    void testRepeatedRunsUseTheCache() throws Exception {
+        final File cacheDir = new File("target/tx-cache-test");
+        if (cacheDir.exists()) {
+            try (final Stream<Path> paths = Files.walk(cacheDir.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+        final byte[] observation = Files.readAllBytes(Path.of("src/test/resources/fhir/Observation_Loinc_OK.json"));
+        try (final TerminologyServerStub server = TerminologyServerStub.start()) {
+            final HL7ValidationConfig config = HL7ValidationConfig.builder()
+                    .txSever(server.getUrl())
+                    .txCache(cacheDir.getPath())
+                    .build();
+
+            // the first run sends the code to the server and the response is merged into the cache
+            final ValidationResult firstResult = new HL7ValidationService(HL7ValidationService.createEngine(config), false)
+                    .validateJson(observation);
+            assertEquals(1, server.getValidateCodeRequests());
+            final HL7TerminologyCache.Entries entries = HL7TerminologyCache.collect();
+            assertTrue(entries.size() > 0);
+            assertEquals(entries.size(), HL7TerminologyCache.merge(entries, cacheDir));
+            assertTrue(new File(cacheDir, "loinc.cache").isFile());
+            assertTrue(HL7TerminologyCache.collect().isEmpty());
+            assertEquals(0, HL7TerminologyCache.merge(entries, cacheDir));
+
+            // a new engine is preloaded with the cache and does not send the code again
+            server.reset();
+            final ValidationResult secondResult = new HL7ValidationService(HL7ValidationService.createEngine(config), false)
+                    .validateJson(observation);
+            assertEquals(0, server.getValidateCodeRequests());
+            assertEquals(firstResult, secondResult);
+            assertTrue(HL7TerminologyCache.collect().isEmpty());
+        }
+    }
+
+    @Test
+    void testReleasedEnginesKeepTheirEntries() throws Exception {
+        final File cacheDir = new File("target/tx-cache-release-test");
+        final byte[] observation = Files.readAllBytes(Path.of("src/test/resources/fhir/Observation_Loinc_OK.json"));
+        try (final TerminologyServerStub server = TerminologyServerStub.start()) {
+            final HL7ValidationConfig config = HL7ValidationConfig.builder()
+                    .txSever(server.getUrl())
+                    .txCache(cacheDir.getPath())
+                    .build();
+            HL7TerminologyCache.collect();
+            final long engineDirs = countEngineDirs();
+            final ValidationEngine engine = HL7ValidationService.createEngine(config);
+            assertEquals(engineDirs + 1, countEngineDirs());
+            new HL7ValidationService(engine, false).validateJson(observation);
+
+            // the entries of the released engine are collected after its directory is deleted
+            HL7TerminologyCache.release(engine);
+            assertEquals(engineDirs, countEngineDirs());
+            final HL7TerminologyCache.Entries entries = HL7TerminologyCache.collect();
+            assertTrue(entries.size() > 0);
+
+            // another engine (of a later run) collects its own entries, even if the same as collected before
+            new HL7ValidationService(HL7ValidationService.createEngine(config), false).validateJson(observation);
+            assertEquals(2, server.getValidateCodeRequests());
+            assertEquals(entries.size(), HL7TerminologyCache.collect().size());
+        }
+    }
+
+    private static long countEngineDirs() {
+        final File[] dirs = new File(System.getProperty("java.io.tmpdir")).listFiles(file -> file.getName().startsWith("tx-cache-"));
+        return dirs != null ? dirs.length : 0;
+    }
+}
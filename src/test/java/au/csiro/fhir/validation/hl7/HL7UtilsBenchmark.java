@@ -0,0 +1,65 @@
+package au.csiro.fhir.validation.hl7;
+
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.hl7.fhir.validation.instance.InstanceValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conversion of the validator messages to the results (including the resolution of the message ids
+ * of the messages without one) with {@link HL7Utils#validationMessagesToResult(List)}, for the messages reported
+ * for each of the MIMIC demo resources.
+ * <p>
+ * Run with: {@code mvn test -Pbenchmark -Dbenchmark=HL7UtilsBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HL7UtilsBenchmark {
+
+    private List<List<ValidationMessage>> messages;
+
+    @Setup
+    public void setUp() throws Exception {
+        final ValidationEngine engine = HL7ValidationService.createEngine(HL7ValidationConfig.builder()
+                .ig("data/packages/kindlab.fhir.mimic/package.tgz")
+                .build());
+        final InstanceValidator validator = engine.getValidator(Manager.FhirFormat.JSON);
+        messages = new ArrayList<>();
+        for (final String resourceFile : List.of("MimicPatient", "MimicCondition", "MimicObservationED")) {
+            for (final byte[] resource : HL7ValidationServiceBenchmark.readResources(resourceFile)) {
+                final List<ValidationMessage> resourceMessages = new ArrayList<>();
+                validator.validate(null, resourceMessages, new ByteArrayInputStream(resource), Manager.FhirFormat.JSON,
+                        Collections.emptyList());
+                messages.add(resourceMessages);
+            }
+        }
+    }
+
+    @Benchmark
+    public void validationMessagesToResult(final Blackhole blackhole) {
+        for (final List<ValidationMessage> resourceMessages : messages) {
+            blackhole.consume(HL7Utils.validationMessagesToResult(resourceMessages));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package au.csiro.fhir.validation.hl7;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Measures the throughput of the validation of the MIMIC demo resources (10 of each type) with the
+ * {@code kindlab.fhir.mimic} IG, one at a time with {@link HL7ValidationService#validateJson(byte[])} and together
+ * with {@link HL7ValidationService#validateBatch(List)}. The throughput is per resource.
+ * <p>
+ * Run with: {@code mvn test -Pbenchmark -Dbenchmark=HL7ValidationServiceBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HL7ValidationServiceBenchmark {
+
+    static final int RESOURCES = 10;
+
+    @Param({"MimicPatient", "MimicCondition", "MimicObservationED"})
+    public String resourceFile;
+
+    private List<byte[]> resources;
+    private HL7ValidationService validationService;
+
+    @Setup
+    public void setUp() throws IOException {
+        resources = readResources(resourceFile);
+        validationService = HL7ValidationService.getOrCreate(HL7ValidationConfig.builder()
+                .ig("data/packages/kindlab.fhir.mimic/package.tgz")
+                .build());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RESOURCES)
+    public void validateJson(final Blackhole blackhole) {
+        for (final byte[] resource : resources) {
+            blackhole.consume(validationService.validateJson(resource));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RESOURCES)
+    public void validateBatch(final Blackhole blackhole) {
+        blackhole.consume(validationService.validateBatch(resources));
+    }
+
+    /**
+     * Reads the resources of a MIMIC demo file.
+     *
+     * @param resourceFile the name of the file (without the extension)
+     * @return the UTF-8 encoded resources
+     */
+    static List<byte[]> readResources(final String resourceFile) throws IOException {
+        final List<byte[]> resources = Files.readAllLines(Paths.get("data/mimic-iv-demo-10", resourceFile + ".ndjson")).stream()
+                .map(line -> line.getBytes(StandardCharsets.UTF_8))
+                .collect(Collectors.toUnmodifiableList());
+        if (resources.size() != RESOURCES) {
+            throw new IllegalStateException("Expected " + RESOURCES + " resources in: " + resourceFile + " but found: " + resources.size());
+        }
+        return resources;
+    }
+}
@@ -3,9 +3,21 @@ package au.csiro.fhir.validation.hl7;
 import au.csiro.fhir.validation.ValidationResult;
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class HL7ValidationServiceTest {
 
@@ -60,4 +72,125 @@ class HL7ValidationServiceTest {
         );
         assertEquals(expectedResult, result);
     }
-}
\ No newline at end of file
+
+    @Test
+    void testValidateSlice() throws Exception {
+        final HL7ValidationService validationService = HL7ValidationService.getOrCreate(config);
+        final byte[] patient = Files.readAllBytes(Paths.get("data/Patient_mimic.json"));
+        final byte[] padded = new byte[patient.length + 20];
+        System.arraycopy(patient, 0, padded, 10, patient.length);
+        final ValidationResult expected = validationService.validateJson(patient);
+        assertEquals(expected, validationService.validateJson(padded, 10, patient.length));
+        assertEquals(expected, validationService.validateJson(ByteBuffer.wrap(padded, 10, patient.length)));
+        assertEquals(expected, validationService.validateJson(ByteBuffer.allocateDirect(patient.length).put(patient).flip()));
+    }
+
+    @Test
+    void testEnginesByConfig() throws Exception {
+        final byte[] patient = Files.readAllBytes(Paths.get("data/Patient_mimic.json"));
+        final ValidationResult withIg = HL7ValidationService.getOrCreate(config).validateJson(patient);
+        final ValidationResult withoutIg = HL7ValidationService.getOrCreate(HL7ValidationConfig.defaultConfig()).validateJson(patient);
+        // the mimic profile can only be resolved by the engine with the mimic IG
+        assertTrue(withoutIg.getIssues().stream().anyMatch(i -> "TYPE_SPECIFIC_CHECKS_DT_CANONICAL_RESOLVE".equals(i.getMessageId())));
+        assertTrue(withIg.getIssues().stream().noneMatch(i -> "TYPE_SPECIFIC_CHECKS_DT_CANONICAL_RESOLVE".equals(i.getMessageId())));
+        assertEquals(withIg, HL7ValidationService.getOrCreate(config).validateJson(patient));
+    }
+
+    @Test
+    void testValidateBatch() throws Exception {
+        final List<byte[]> batch = Stream.concat(
+                        readLines(Paths.get("data/mimic-iv-demo-10/MimicPatient.ndjson")),
+                        Stream.of("invalid json", "{}", "{\"resourceType\":\"Patient\"}"))
+                .map(s -> s.getBytes(StandardCharsets.UTF_8))
+                .collect(Collectors.toUnmodifiableList());
+        final HL7ValidationService validationService = HL7ValidationService.getOrCreate(config);
+        final List<ValidationResult> expectedResults = batch.stream()
+                .map(validationService::validateJson)
+                .collect(Collectors.toUnmodifiableList());
+        assertEquals(expectedResults, validationService.validateBatch(batch));
+    }
+
+    @Test
+    void testSharedContextConcurrentValidation() throws Exception {
+        final List<byte[]> resources;
+        try (final Stream<Path> files = Files.list(Paths.get("data/mimic-iv-demo-10"))) {
+            resources = files.sorted()
+                    .flatMap(HL7ValidationServiceTest::readLines)
+                    .map(s -> s.getBytes(StandardCharsets.UTF_8))
+                    .collect(Collectors.toUnmodifiableList());
+        }
+        final HL7ValidationService referenceService = new HL7ValidationService(HL7ValidationService.createEngine(config), false);
+        final List<ValidationResult> expectedResults = resources.stream()
+                .map(referenceService::validateJson)
+                .collect(Collectors.toUnmodifiableList());
+
+        final HL7ValidationConfig sharedConfig = config.toBuilder().sharedContext(true).showProgress(false).build();
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<List<ValidationResult>>> futures = Stream.generate(() -> executor.submit(() -> {
+                        final HL7ValidationService service = HL7ValidationService.getOrCreate(sharedConfig);
+                        return resources.stream().map(service::validateJson).collect(Collectors.toUnmodifiableList());
+                    }))
+                    .limit(16)
+                    .collect(Collectors.toUnmodifiableList());
+            for (final Future<List<ValidationResult>> future : futures) {
+                assertEquals(expectedResults, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testPhaseTimes() throws Exception {
+        final byte[] patient = Files.readAllBytes(Paths.get("data/Patient_mimic.json"));
+        final List<Integer> validated = new ArrayList<>();
+        final List<HL7PhaseTimes> times = new ArrayList<>();
+        final HL7ValidationService service = HL7ValidationService.getOrCreate(config).withPhaseTimes((phaseTimes, index) -> {
+            validated.add(index);
+            times.add(phaseTimes);
+        });
+        final ValidationResult expectedResult = HL7ValidationService.getOrCreate(config).validateJson(patient);
+        assertEquals(expectedResult, service.validateJson(patient));
+        assertEquals(List.of(0), validated);
+        final HL7PhaseTimes phaseTimes = times.get(0);
+        assertTrue(phaseTimes.getParseMillis() > 0);
+        assertTrue(phaseTimes.getStructureMillis() > 0);
+        assertTrue(phaseTimes.getTotalMillis() >= phaseTimes.getParseMillis() + phaseTimes.getStructureMillis());
+
+        // by the index in the batch, also with a timeout
+        validated.clear();
+        assertEquals(List.of(expectedResult, expectedResult), service.withTimeout(600_000).validateBatch(List.of(patient, patient)));
+        assertEquals(List.of(0, 1), validated);
+    }
+
+    @Test
+    void testTimeout() throws Exception {
+        final byte[] patient = Files.readAllBytes(Paths.get("data/Patient_mimic.json"));
+        final byte[] observation = Files.readAllBytes(Paths.get("src/test/resources/fhir/Observation_Loinc_OK.json"));
+        // the validation of the observation waits for the delayed response for its loinc code, which is not
+        // in a new cache, and the abandoned validation stops soon after
+        try (final TerminologyServerStub server = TerminologyServerStub.start()
+                .withValidateCodeDelay("http://loinc.org", 15_000)) {
+            final HL7ValidationConfig txConfig = config.toBuilder()
+                    .txSever(server.getUrl())
+                    .txCache(Files.createTempDirectory(Paths.get("target"), "tx-timeout-cache").toString())
+                    .build();
+            final HL7ValidationService service = HL7ValidationService.getOrCreate(txConfig).withTimeout(5000);
+            final ValidationResult expectedResult = HL7ValidationService.getOrCreate(txConfig).validateJson(patient);
+
+            final List<ValidationResult> results = service.validateBatch(List.of(patient, observation, patient));
+            assertEquals(List.of(expectedResult, ValidationResult.fromTimeout(5000), expectedResult), results);
+            // the remaining resources are validated with the recycled engine
+            assertEquals(expectedResult, service.validateJson(patient));
+        }
+    }
+
+    private static Stream<String> readLines(final Path path) {
+        try {
+            return Files.readAllLines(path).stream();
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package au.csiro.fhir.validation.hl7;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the resolution of the ids of the whole catalogue of validator messages (with the placeholders
+ * filled in) by the regex {@link MessageResolver} and the {@link IndexedMessageResolver}.
+ * <p>
+ * Run with: {@code mvn test -Pbenchmark -Dbenchmark=MessageResolverBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageResolverBenchmark {
+
+    private List<String> messages;
+    private MessageResolver regexResolver;
+    private IndexedMessageResolver indexedResolver;
+    private IndexedMessageResolver memoizedResolver;
+
+    @Setup
+    public void setUp() {
+        final Map<String, String> templates = HL7MessageResolver.loadMessages();
+        messages = templates.values().stream()
+                .map(t -> t.replace("''", "'").replaceAll("\\{\\d+\\}", "http://mimic.mit.edu/fhir/mimic/CodeSystem/x"))
+                .sorted()
+                .collect(Collectors.toUnmodifiableList());
+        regexResolver = MessageResolver.ofMessages(templates);
+        indexedResolver = IndexedMessageResolver.ofMessages(templates, 0);
+        memoizedResolver = IndexedMessageResolver.ofMessages(templates, messages.size());
+    }
+
+    @Benchmark
+    public void regex(final Blackhole blackhole) {
+        for (final String message : messages) {
+            blackhole.consume(regexResolver.getMessageId(message));
+        }
+    }
+
+    @Benchmark
+    public void indexed(final Blackhole blackhole) {
+        for (final String message : messages) {
+            blackhole.consume(indexedResolver.getMessageId(message));
+        }
+    }
+
+    @Benchmark
+    public void indexedMemoized(final Blackhole blackhole) {
+        for (final String message : messages) {
+            blackhole.consume(memoizedResolver.getMessageId(message));
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package au.csiro.fhir.validation.hl7;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local stand-in for an R4 terminology server, which accepts all the codes (with the display of the request)
+ * and counts the requests. The responses for the codes of a system can be delayed, e.g. to exceed a timeout.
+ */
+public class TerminologyServerStub implements AutoCloseable {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String SOFTWARE = "{\"name\":\"TerminologyServerStub\",\"version\":\"1.0.0\"}";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, Long> delaysMillis = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger validateCodeRequests = new AtomicInteger();
+
+    private TerminologyServerStub(@Nonnull final HttpServer server) {
+        this.server = server;
+        server.createContext("/", this::handle);
+        // the delayed responses do not hold up the other requests
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Starts the server on a free local port.
+     */
+    @Nonnull
+    public static TerminologyServerStub start() throws IOException {
+        final TerminologyServerStub stub = new TerminologyServerStub(HttpServer.create(new InetSocketAddress("localhost", 0), 0));
+        stub.server.start();
+        return stub;
+    }
+
+    @Nonnull
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/r4";
+    }
+
+    /**
+     * Delays the responses to the $validate-code requests for the codes of the system.
+     */
+    @Nonnull
+    public TerminologyServerStub withValidateCodeDelay(@Nonnull final String system, final long delayMillis) {
+        delaysMillis.put(system, delayMillis);
+        return this;
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public int getValidateCodeRequests() {
+        return validateCodeRequests.get();
+    }
+
+    public void reset() {
+        requests.set(0);
+        validateCodeRequests.set(0);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(@Nonnull final HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        final String uri = exchange.getRequestURI().toString();
+        final byte[] body = exchange.getRequestBody().readAllBytes();
+        if (uri.contains("/metadata") && uri.contains("mode=terminology")) {
+            respond(exchange, 200, "{\"resourceType\":\"TerminologyCapabilities\",\"status\":\"active\",\"date\":\"2024-01-01\"," +
+                    "\"kind\":\"instance\",\"software\":" + SOFTWARE + ",\"codeSystem\":[{\"uri\":\"http://loinc.org\"}]}");
+        } else if (uri.contains("/metadata")) {
+            respond(exchange, 200, "{\"resourceType\":\"CapabilityStatement\",\"status\":\"active\",\"date\":\"2024-01-01\"," +
+                    "\"kind\":\"instance\",\"fhirVersion\":\"4.0.1\",\"format\":[\"json\"],\"software\":" + SOFTWARE + "}");
+        } else if (uri.contains("/tx-reg/resolve")) {
+            // the registry of the terminology ecosystem, which resolves all the code systems to this server
+            respond(exchange, 200, "{\"authoritative\":[],\"candidates\":[{\"url\":\"" + getUrl() + "\"}]}");
+        } else if (uri.contains("$validate-code")) {
+            validateCodeRequests.incrementAndGet();
+            final Map<String, String> coding = coding(body);
+            delay(delaysMillis.getOrDefault(coding.getOrDefault("system", ""), 0L));
+            respond(exchange, 200, validateCodeResponse(coding));
+        } else {
+            respond(exchange, 404, "{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"error\",\"code\":\"not-supported\"}]}");
+        }
+    }
+
+    /**
+     * Reads the system, code and display of the first coding in the request parameters.
+     */
+    @Nonnull
+    private static Map<String, String> coding(@Nonnull final byte[] body) throws IOException {
+        final Map<String, String> coding = new HashMap<>();
+        try (final JsonParser parser = JSON_FACTORY.createParser(body)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.FIELD_NAME && "valueCoding".equals(parser.getCurrentName())) {
+                    parser.nextToken();
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final String field = parser.getCurrentName();
+                        parser.nextToken();
+                        coding.put(field, parser.getText());
+                        parser.skipChildren();
+                    }
+                    break;
+                }
+            }
+        }
+        return coding;
+    }
+
+    @Nonnull
+    private static String validateCodeResponse(@Nonnull final Map<String, String> coding) throws IOException {
+        final StringWriter writer = new StringWriter();
+        try (final JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeStringField("resourceType", "Parameters");
+            generator.writeArrayFieldStart("parameter");
+            generator.writeStartObject();
+            generator.writeStringField("name", "result");
+            generator.writeBooleanField("valueBoolean", true);
+            generator.writeEndObject();
+            for (final String[] parameter : new String[][]{{"system", "valueUri"}, {"code", "valueCode"}, {"display", "valueString"}}) {
+                if (coding.containsKey(parameter[0])) {
+                    generator.writeStartObject();
+                    generator.writeStringField("name", parameter[0]);
+                    generator.writeStringField(parameter[1], coding.get(parameter[0]));
+                    generator.writeEndObject();
+                }
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return writer.toString();
+    }
+
+    private static void delay(final long delayMillis) throws IOException {
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while delaying the response");
+            }
+        }
+    }
+
+    private static void respond(@Nonnull final HttpExchange exchange, final int status, @Nonnull final String response) throws IOException {
+        final byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (final OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}